@@ -0,0 +1,459 @@
+package hack.bp.assembler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/****************************************************************************************
+ *  Benchmarks of the parts of the assembler, each one run on the same fixed corpora:
+ *
+ *  	parser          Parser.advance() and commandType() over a mapped file.
+ *  	code.strings    Code.dest(), comp() and jump() on the mnemonics of every C_COMMAND.
+ *  	code.bits       The int API of Code on the same mnemonics.
+ *  	symbols         SymbolTable lookups of every symbol of the program, as the passes do
+ *  	                them: intern() from the characters, then the address by id.
+ *  	pass1           Tokenizing and parsing every line into an InstructionList and
+ *  	                defining the labels.
+ *  	pass2           Resolving the symbols and writing the .hack text (to a channel that
+ *  	                drops it).
+ *  	assemble.memory Assembler.assemble() on the source held in memory.
+ *  	assemble.file   Assembler.assemble() on a file, writing the .hack file.
+ *
+ *  The throughput is reported in instructions (A_COMMANDs and C_COMMANDs of the corpus,
+ *  or the mnemonics/symbols looked up) per second, with the standard deviation between
+ *  the measured iterations, and the allocation rate in bytes per instruction.
+ *
+ *  Usage: AssemblerBenchmarks [-w warm-up iterations] [-i iterations]
+ *  		[-t ms per iteration] [filter]
+ *
+ *  Only the benchmarks whose name starts with the filter are run.
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ *	0.2 -	The symbols benchmark uses intern() and the ids like the passes. -bp
+ ***************************************************************************************/
+public class AssemblerBenchmarks
+{
+	private final static long SEED = 0x4841434BL;
+	private final static int[] CORPUS_SIZES = { 1000, 10000, 100000 };
+
+	public static void main( String[] args ) throws Exception
+	{
+		int warmUp = 3;
+		int iterations = 5;
+		long iterationTime = 500;
+		String filter = "";
+
+		for( int i = 0; i < args.length; i++ )
+		{
+			if( args[ i ].equals( "-w" ) && ( i + 1 < args.length ) )
+				warmUp = Integer.parseInt( args[ ++i ] );
+			else if( args[ i ].equals( "-i" ) && ( i + 1 < args.length ) )
+				iterations = Integer.parseInt( args[ ++i ] );
+			else if( args[ i ].equals( "-t" ) && ( i + 1 < args.length ) )
+				iterationTime = Long.parseLong( args[ ++i ] );
+			else
+				filter = args[ i ];
+		}
+
+		System.out.println( String.format( "%-16s %-8s %16s %14s %10s",
+				"Benchmark", "Corpus", "instr/s", "+/-", "B/instr" ) );
+
+		for( int size : CORPUS_SIZES )
+		{
+			Corpus corpus = Corpus.generate( size / 1000 + "k", size, SEED );
+
+			for( Benchmark benchmark : createBenchmarks() )
+			{
+				if( !benchmark.getName().startsWith( filter ) )
+					continue;
+
+				benchmark.setUp( corpus );
+				Benchmark.Result result = benchmark.measure( warmUp, iterations, iterationTime );
+
+				System.out.println( String.format( "%-16s %-8s %16.0f %14.0f %10s",
+						result.getName(), corpus.getName(), result.getThroughput(),
+						result.getThroughputError(), ( result.getAllocationRate() < 0 ) ? "n/a" :
+							String.format( "%.2f", result.getAllocationRate() ) ) );
+			}
+		}
+	}
+
+	/************************************************************************************
+	 *  Returns a new instance of every benchmark.
+	 ***********************************************************************************/
+	private static List<Benchmark> createBenchmarks()
+	{
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+		benchmarks.add( new ParserBenchmark() );
+		benchmarks.add( new CodeStringsBenchmark() );
+		benchmarks.add( new CodeBitsBenchmark() );
+		benchmarks.add( new SymbolsBenchmark() );
+		benchmarks.add( new FirstPassBenchmark() );
+		benchmarks.add( new SecondPassBenchmark() );
+		benchmarks.add( new MemoryBenchmark() );
+		benchmarks.add( new FileBenchmark() );
+
+		return benchmarks;
+	}
+
+	/************************************************************************************
+	 *  Tokenizes every line of the corpus and returns the instructions of the given
+	 *  type, each one as a String[] of its fields.
+	 ***********************************************************************************/
+	private static List<String[]> fields( Corpus corpus, Parser.Commands type )
+	{
+		List<String[]> fields = new ArrayList<String[]>();
+		MappedSource lines = new MappedSource( ByteBuffer.wrap( corpus.getSource() ) );
+		Instruction instruction = new Instruction();
+
+		while( lines.hasNextLine() )
+		{
+			lines.nextLine();
+			instruction.tokenize( lines );
+
+			if( instruction.getType() != type )
+				continue;
+
+			if( type == Parser.Commands.C_COMMAND )
+				fields.add( new String[] { instruction.dest(), instruction.comp(), instruction.jump() } );
+			else
+				fields.add( new String[] { instruction.symbol() } );
+		}
+
+		return fields;
+	}
+
+	/************************************************************************************
+	 *  Parses the corpus into an InstructionList with the assembler's first pass.
+	 ***********************************************************************************/
+	private static InstructionList parse( Assembler assembler, Corpus corpus )
+	{
+		MappedSource lines = new MappedSource( ByteBuffer.wrap( corpus.getSource() ) );
+		Instruction instruction = new Instruction();
+		InstructionList instructions = new InstructionList();
+		int sourceLineNumber = 0;
+
+		while( lines.hasNextLine() )
+		{
+			lines.nextLine();
+			sourceLineNumber++;
+
+			instruction.tokenize( lines );
+			assembler.parseCommand( instruction, instructions, sourceLineNumber );
+		}
+
+		assembler.defineLabels( instructions );
+
+		return instructions;
+	}
+
+	/************************************************************************************
+	 *  Channel that drops everything written to it.
+	 ***********************************************************************************/
+	private static class NullChannel implements WritableByteChannel
+	{
+		public int write( ByteBuffer buffer )
+		{
+			int count = buffer.remaining();
+			buffer.position( buffer.limit() );
+
+			return count;
+		}
+
+		public boolean isOpen()
+		{
+			return true;
+		}
+
+		public void close()
+		{
+		}
+	}
+
+	private static class ParserBenchmark extends Benchmark
+	{
+		private String m_fileName = null;
+		private int m_instructionCount = 0;
+
+		ParserBenchmark()
+		{
+			super( "parser" );
+		}
+
+		@Override
+		public void setUp( Corpus corpus ) throws IOException
+		{
+			m_fileName = corpus.getFile().getPath();
+			m_instructionCount = corpus.getInstructionCount();
+		}
+
+		@Override
+		public long run()
+		{
+			Parser parser = new Parser( m_fileName, Parser.InputMode.MAPPED );
+			long types = 0;
+
+			while( parser.hasMoreCommands() )
+			{
+				parser.advance();
+				types += parser.commandType().ordinal();
+			}
+
+			s_sink += types;
+
+			return m_instructionCount;
+		}
+	}
+
+	private static class CodeStringsBenchmark extends Benchmark
+	{
+		private String[][] m_fields = null;
+		private Code m_code = new Code();
+
+		CodeStringsBenchmark()
+		{
+			super( "code.strings" );
+		}
+
+		@Override
+		public void setUp( Corpus corpus )
+		{
+			m_fields = fields( corpus, Parser.Commands.C_COMMAND ).toArray( new String[ 0 ][] );
+		}
+
+		@Override
+		public long run()
+		{
+			long length = 0;
+
+			for( String[] field : m_fields )
+				length += m_code.dest( field[ 0 ] ).length() + m_code.comp( field[ 1 ] ).length() +
+						m_code.jump( field[ 2 ] ).length();
+
+			s_sink += length;
+
+			return m_fields.length;
+		}
+	}
+
+	private static class CodeBitsBenchmark extends Benchmark
+	{
+		private String[][] m_fields = null;
+
+		CodeBitsBenchmark()
+		{
+			super( "code.bits" );
+		}
+
+		@Override
+		public void setUp( Corpus corpus )
+		{
+			m_fields = fields( corpus, Parser.Commands.C_COMMAND ).toArray( new String[ 0 ][] );
+		}
+
+		@Override
+		public long run()
+		{
+			long words = 0;
+
+			for( String[] field : m_fields )
+				words += Code.cCommand( Code.destBits( field[ 0 ] ), Code.compBits( field[ 1 ] ),
+						Code.jumpBits( field[ 2 ] ) );
+
+			s_sink += words;
+
+			return m_fields.length;
+		}
+	}
+
+	private static class SymbolsBenchmark extends Benchmark
+	{
+		private char[][] m_symbols = null;
+		private SymbolTable m_symbolTable = null;
+
+		SymbolsBenchmark()
+		{
+			super( "symbols" );
+		}
+
+		@Override
+		public void setUp( Corpus corpus )
+		{
+			List<char[]> symbols = new ArrayList<char[]>();
+
+			// The @s with a letter (the others are values, not symbols)
+			for( String[] field : fields( corpus, Parser.Commands.A_COMMAND ) )
+			{
+				if( field[ 0 ].matches( ".*\\p{L}.*" ) )
+					symbols.add( field[ 0 ].toCharArray() );
+			}
+
+			m_symbols = symbols.toArray( new char[ symbols.size() ][] );
+			m_symbolTable = new SymbolTable( SymbolTable.PREDEFINED );
+
+			// Every symbol gets an address, as after the passes
+			for( int i = 0; i < m_symbols.length; i++ )
+			{
+				int id = m_symbolTable.intern( m_symbols[ i ], 0, m_symbols[ i ].length );
+
+				if( !m_symbolTable.isDefined( id ) )
+					m_symbolTable.setAddress( id, i );
+			}
+		}
+
+		@Override
+		public long run()
+		{
+			long addresses = 0;
+
+			// The first pass interns the symbol, the second pass reads its address by id
+			for( char[] symbol : m_symbols )
+				addresses += m_symbolTable.getAddress( m_symbolTable.intern( symbol, 0, symbol.length ) );
+
+			s_sink += addresses;
+
+			return m_symbols.length;
+		}
+	}
+
+	private static class FirstPassBenchmark extends Benchmark
+	{
+		private Corpus m_corpus = null;
+		private Assembler m_assembler = new Assembler();
+
+		FirstPassBenchmark()
+		{
+			super( "pass1" );
+			m_assembler.setVerbose( false );
+		}
+
+		@Override
+		public void setUp( Corpus corpus )
+		{
+			m_corpus = corpus;
+		}
+
+		@Override
+		public long run()
+		{
+			m_assembler.init();
+			s_sink += parse( m_assembler, m_corpus ).size();
+
+			return m_corpus.getInstructionCount();
+		}
+	}
+
+	private static class SecondPassBenchmark extends Benchmark
+	{
+		private InstructionList m_instructions = null;
+		private int m_instructionCount = 0;
+		private Assembler m_assembler = new Assembler();
+		private HackWriter m_out = new HackWriter( new NullChannel() );
+
+		SecondPassBenchmark()
+		{
+			super( "pass2" );
+			m_assembler.setVerbose( false );
+		}
+
+		@Override
+		public void setUp( Corpus corpus )
+		{
+			m_assembler.init();
+			m_instructions = parse( m_assembler, corpus );
+			m_instructionCount = corpus.getInstructionCount();
+		}
+
+		@Override
+		public long run() throws IOException
+		{
+			// The variables get their addresses again (the labels keep theirs)
+			m_assembler.resetAddresses();
+			m_assembler.defineLabels( m_instructions );
+
+			long words = 0;
+
+			for( int i = 0; i < m_instructions.size(); i++ )
+			{
+				int word = m_assembler.resolveWord( m_instructions.getType( i ),
+						m_instructions.getOperand( i ) );
+
+				if( word >= 0 )
+				{
+					m_out.writeWord( word );
+					words++;
+				}
+			}
+
+			m_out.flush();
+			s_sink += words;
+
+			return m_instructionCount;
+		}
+	}
+
+	private static class MemoryBenchmark extends Benchmark
+	{
+		private ByteBuffer m_source = null;
+		private int m_instructionCount = 0;
+		private NullChannel m_out = new NullChannel();
+
+		MemoryBenchmark()
+		{
+			super( "assemble.memory" );
+		}
+
+		@Override
+		public void setUp( Corpus corpus )
+		{
+			m_source = ByteBuffer.wrap( corpus.getSource() );
+			m_instructionCount = corpus.getInstructionCount();
+		}
+
+		@Override
+		public long run()
+		{
+			Assembler assembler = new Assembler();
+
+			assembler.setVerbose( false );
+			s_sink += assembler.assemble( m_source.duplicate(), m_out );
+
+			return m_instructionCount;
+		}
+	}
+
+	private static class FileBenchmark extends Benchmark
+	{
+		private String m_fileName = null;
+		private int m_instructionCount = 0;
+
+		FileBenchmark()
+		{
+			super( "assemble.file" );
+		}
+
+		@Override
+		public void setUp( Corpus corpus ) throws IOException
+		{
+			m_fileName = corpus.getFile().getPath();
+			m_instructionCount = corpus.getInstructionCount();
+		}
+
+		@Override
+		public long run()
+		{
+			Assembler assembler = new Assembler();
+
+			assembler.setVerbose( false );
+			s_sink += assembler.assemble( m_fileName );
+
+			return m_instructionCount;
+		}
+	}
+}
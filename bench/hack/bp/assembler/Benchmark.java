@@ -0,0 +1,179 @@
+package hack.bp.assembler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/****************************************************************************************
+ *  One micro-benchmark and the loop that measures it. A benchmark is set up once for a
+ *  corpus, then run() is called repeatedly: first for the warm-up iterations (so the
+ *  JIT has compiled the code that is measured), then for the measured ones. Every
+ *  iteration calls run() until a fixed amount of time has passed and records how many
+ *  instructions went through per second and how many bytes were allocated per
+ *  instruction (read from the JVM's per-thread allocation counter when it has one).
+ *
+ *  Nothing is printed while measuring, so the console does not end up in the numbers.
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ ***************************************************************************************/
+public abstract class Benchmark
+{
+	// Results are folded into this so the JIT cannot drop the work as dead code
+	protected static volatile long s_sink = 0;
+
+	private String m_name = null;
+
+	protected Benchmark( String name )
+	{
+		this.m_name = name;
+	}
+
+	public String getName()
+	{
+		return m_name;
+	}
+
+	/************************************************************************************
+	 *  Prepares the benchmark for the corpus (outside of the measurement).
+	 ***********************************************************************************/
+	public void setUp( Corpus corpus ) throws Exception
+	{
+	}
+
+	/************************************************************************************
+	 *  Runs the measured operation once. Returns the number of instructions it
+	 *  processed.
+	 ***********************************************************************************/
+	public abstract long run() throws Exception;
+
+	/************************************************************************************
+	 *  Measures the benchmark: warmUp iterations are thrown away, then iterations are
+	 *  measured, each one lasting at least iterationTime milliseconds.
+	 ***********************************************************************************/
+	public Result measure( int warmUp, int iterations, long iterationTime ) throws Exception
+	{
+		for( int i = 0; i < warmUp; i++ )
+			iterate( iterationTime, null );
+
+		Result result = new Result( m_name, iterations );
+
+		for( int i = 0; i < iterations; i++ )
+			iterate( iterationTime, result );
+
+		return result;
+	}
+
+	/************************************************************************************
+	 *  Calls run() for iterationTime milliseconds and adds the iteration to the result
+	 *  (if any).
+	 ***********************************************************************************/
+	private void iterate( long iterationTime, Result result ) throws Exception
+	{
+		long deadline = iterationTime * 1000000L;
+		long instructions = 0;
+		long allocatedStart = allocatedBytes();
+		long timerStart = System.nanoTime();
+		long elapsedTime = 0;
+
+		do
+		{
+			instructions += run();
+			elapsedTime = System.nanoTime() - timerStart;
+		}
+		while( elapsedTime < deadline );
+
+		long allocated = allocatedBytes() - allocatedStart;
+
+		if( result != null )
+			result.add( instructions, elapsedTime, ( allocatedStart < 0 ) ? -1 : allocated );
+	}
+
+	/************************************************************************************
+	 *  Returns the number of bytes allocated by this thread so far, or -1 if the JVM
+	 *  does not count them.
+	 ***********************************************************************************/
+	static long allocatedBytes()
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		if( threads instanceof com.sun.management.ThreadMXBean )
+		{
+			com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean)threads;
+
+			if( counter.isThreadAllocatedMemorySupported() && counter.isThreadAllocatedMemoryEnabled() )
+				return counter.getThreadAllocatedBytes( Thread.currentThread().getId() );
+		}
+
+		return -1;
+	}
+
+	/************************************************************************************
+	 *  Measured iterations of one benchmark.
+	 ***********************************************************************************/
+	public static class Result
+	{
+		private String m_name = null;
+		private double[] m_throughputs = null;
+		private int m_count = 0;
+		private long m_instructions = 0;
+		private long m_allocated = 0;
+
+		Result( String name, int iterations )
+		{
+			this.m_name = name;
+			this.m_throughputs = new double[ iterations ];
+		}
+
+		void add( long instructions, long elapsedTime, long allocated )
+		{
+			m_throughputs[ m_count++ ] = instructions * 1e9 / elapsedTime;
+			m_instructions += instructions;
+			m_allocated = ( ( allocated < 0 ) || ( m_allocated < 0 ) ) ? -1 : m_allocated + allocated;
+		}
+
+		public String getName()
+		{
+			return m_name;
+		}
+
+		/********************************************************************************
+		 *  Returns the mean throughput, in instructions per second.
+		 *******************************************************************************/
+		public double getThroughput()
+		{
+			double sum = 0;
+
+			for( int i = 0; i < m_count; i++ )
+				sum += m_throughputs[ i ];
+
+			return sum / Math.max( m_count, 1 );
+		}
+
+		/********************************************************************************
+		 *  Returns the standard deviation of the throughput between the iterations.
+		 *******************************************************************************/
+		public double getThroughputError()
+		{
+			double mean = getThroughput();
+			double sum = 0;
+
+			for( int i = 0; i < m_count; i++ )
+				sum += ( m_throughputs[ i ] - mean ) * ( m_throughputs[ i ] - mean );
+
+			return Math.sqrt( sum / Math.max( m_count - 1, 1 ) );
+		}
+
+		/********************************************************************************
+		 *  Returns the bytes allocated per instruction, or -1 if they are not known.
+		 *******************************************************************************/
+		public double getAllocationRate()
+		{
+			if( m_allocated < 0 )
+				return -1;
+
+			return (double)m_allocated / Math.max( m_instructions, 1 );
+		}
+	}
+}
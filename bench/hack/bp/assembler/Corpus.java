@@ -0,0 +1,98 @@
+package hack.bp.assembler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/****************************************************************************************
+ *  Assembly source used as the input of the benchmarks. A corpus is generated from a
+ *  line count and a seed (see CorpusGenerator), so the same arguments always give the
+ *  same bytes and the results of two runs (or two versions of the code) can be
+ *  compared.
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ *	0.2 -	The program is generated by CorpusGenerator. -bp
+ ***************************************************************************************/
+public class Corpus
+{
+	private String m_name = null;
+	private byte[] m_source = null;
+	private int m_lineCount = 0;
+	private int m_instructionCount = 0;
+	private File m_file = null;
+
+	Corpus( String name, byte[] source, int lineCount, int instructionCount )
+	{
+		this.m_name = name;
+		this.m_source = source;
+		this.m_lineCount = lineCount;
+		this.m_instructionCount = instructionCount;
+	}
+
+	/************************************************************************************
+	 *  Generates a corpus of lineCount lines from the seed with the default mix of
+	 *  CorpusGenerator.
+	 ***********************************************************************************/
+	public static Corpus generate( String name, int lineCount, long seed )
+	{
+		return new CorpusGenerator( seed ).generate( name, lineCount );
+	}
+
+	public String getName()
+	{
+		return m_name;
+	}
+
+	/************************************************************************************
+	 *  Returns the source. The array is shared: do not change it.
+	 ***********************************************************************************/
+	public byte[] getSource()
+	{
+		return m_source;
+	}
+
+	public int getLineCount()
+	{
+		return m_lineCount;
+	}
+
+	/************************************************************************************
+	 *  Returns the number of A_COMMANDs and C_COMMANDs (the words of the program).
+	 ***********************************************************************************/
+	public int getInstructionCount()
+	{
+		return m_instructionCount;
+	}
+
+	/************************************************************************************
+	 *  Returns the corpus as a temporary .asm file, written the first time it is asked
+	 *  for and deleted when the JVM exits.
+	 ***********************************************************************************/
+	public File getFile() throws IOException
+	{
+		if( m_file == null )
+		{
+			File file = File.createTempFile( "corpus-" + m_name + "-", ".asm" );
+			FileOutputStream out = new FileOutputStream( file );
+
+			file.deleteOnExit();
+			new File( file.getPath().replace( ".asm", ".hack" ) ).deleteOnExit();
+
+			try
+			{
+				out.write( m_source );
+			}
+			finally
+			{
+				out.close();
+			}
+
+			m_file = file;
+		}
+
+		return m_file;
+	}
+}
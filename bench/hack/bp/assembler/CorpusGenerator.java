@@ -0,0 +1,337 @@
+package hack.bp.assembler;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/****************************************************************************************
+ *  Generates valid Hack assembly programs of any size. The output only depends on the
+ *  seed and the settings, so a program can be generated again instead of being kept.
+ *
+ *  Every line is drawn from a mix of kinds, each with a weight:
+ *  	labels       (Lnnn)
+ *  	literals     @nnn (0 to 16383)
+ *  	symbols      @Lnnn, @vnnn or a pre-defined symbol
+ *  	C_COMMANDs   dest=comp, comp;jump or dest=comp;jump over all the mnemonics
+ *  	comments     // ... on their own line
+ *  	blanks       empty lines
+ *
+ *  The symbol density is set by the share of symbol references that go to labels (the
+ *  rest go to variables, and a few to pre-defined symbols) and by the number of distinct
+ *  variables. Every label that can be referenced is defined exactly once. The
+ *  whitespace setting is the share of lines that get indented and spaced out.
+ *
+ *  A program can be larger than the ROM (32768 words), but the address of a label in
+ *  an A_COMMAND cannot: only the labels defined before the end of the ROM are
+ *  referenced. They are found by a first run with the same seed that writes nothing.
+ *
+ *  Usage: CorpusGenerator <lines> <fileName>.asm [seed]
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ *	0.2 -	Programs larger than the ROM only reference the labels that fit in an
+ *			A_COMMAND. -bp
+ ***************************************************************************************/
+public class CorpusGenerator
+{
+	private final static String[] DESTS = { "M", "D", "MD", "A", "AM", "AD", "AMD" };
+
+	private final static String[] JUMPS = { "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP" };
+
+	private final static String[] COMPS =
+		{ "0", "1", "-1", "D", "A", "M", "!D", "!A", "!M", "-D", "-A", "-M",
+		  "D+1", "A+1", "M+1", "D-1", "A-1", "M-1", "D+A", "D+M", "D-A", "D-M",
+		  "A-D", "M-D", "D&A", "D&M", "D|A", "D|M" };
+
+	private final static String[] PREDEFINED =
+		{ "SP", "LCL", "ARG", "THIS", "THAT", "R13", "R14", "R15", "SCREEN", "KBD" };
+
+	private final static String[] INDENTS = { "\t", "    ", "  " };
+
+	// Line kinds
+	private final static int LABEL = 0;
+	private final static int LITERAL = 1;
+	private final static int SYMBOL = 2;
+	private final static int C_COMMAND = 3;
+	private final static int COMMENT = 4;
+	private final static int BLANK = 5;
+
+	private final static int MAX_ADDRESS = ( 1 << 15 ) - 1;
+
+	private long m_seed = 0;
+	private int[] m_weights = { 6, 10, 30, 50, 2, 2 };
+	private double m_labelReferences = 0.4;
+	private double m_predefinedReferences = 0.2;
+	private int m_variableCount = 200;
+	private double m_whitespace = 0.0;
+
+	public static void main( String[] args ) throws IOException
+	{
+		if( ( args.length < 2 ) || !args[ 1 ].endsWith( ".asm" ) )
+		{
+			System.out.println( "Usage: <program> <lines> <fileName>.asm [seed]" +
+					"\n\t -Writes a generated program of the given number of lines." );
+			return;
+		}
+
+		long seed = ( args.length > 2 ) ? Long.parseLong( args[ 2 ] ) : 0;
+		Corpus corpus = new CorpusGenerator( seed ).generate( args[ 1 ], Integer.parseInt( args[ 0 ] ) );
+		FileOutputStream out = new FileOutputStream( args[ 1 ] );
+
+		try
+		{
+			out.write( corpus.getSource() );
+		}
+		finally
+		{
+			out.close();
+		}
+
+		System.out.println( "Generated " + args[ 1 ] + ": " + corpus.getLineCount() + " lines, " +
+				corpus.getInstructionCount() + " instructions." );
+	}
+
+	public CorpusGenerator( long seed )
+	{
+		this.m_seed = seed;
+	}
+
+	/************************************************************************************
+	 *  Sets the weights of the line kinds. They do not have to add up to anything.
+	 ***********************************************************************************/
+	public CorpusGenerator setMix( int labels, int literals, int symbols, int cCommands,
+			int comments, int blanks )
+	{
+		m_weights = new int[] { labels, literals, symbols, cCommands, comments, blanks };
+
+		if( ( labels + literals + symbols + cCommands + comments + blanks ) <= 0 )
+			throw new IllegalArgumentException( "The mix needs at least one positive weight!" );
+
+		return this;
+	}
+
+	/************************************************************************************
+	 *  Sets the share (0 to 1) of the symbol references that go to labels and to the
+	 *  pre-defined symbols. The rest go to variables.
+	 ***********************************************************************************/
+	public CorpusGenerator setSymbolDensity( double labelReferences, double predefinedReferences,
+			int variableCount )
+	{
+		m_labelReferences = labelReferences;
+		m_predefinedReferences = predefinedReferences;
+		m_variableCount = Math.max( variableCount, 1 );
+
+		return this;
+	}
+
+	/************************************************************************************
+	 *  Sets the share (0 to 1) of the lines that get indented and spaced out.
+	 ***********************************************************************************/
+	public CorpusGenerator setWhitespace( double whitespace )
+	{
+		m_whitespace = whitespace;
+
+		return this;
+	}
+
+	/************************************************************************************
+	 *  Generates a program of lineCount lines (a few more if labels that are
+	 *  referenced still have to be defined at the end).
+	 ***********************************************************************************/
+	public Corpus generate( String name, int lineCount )
+	{
+		int totalWeight = 0;
+
+		for( int weight : m_weights )
+			totalWeight += weight;
+
+		int labelCount = Math.max( (int)( (long)lineCount * m_weights[ LABEL ] / totalWeight ), 1 );
+		int fittingLabels = labelCount;
+		int[] counts = new int[ 2 ];
+
+		// Larger than the ROM: find the labels that can be referenced first
+		if( lineCount > MAX_ADDRESS )
+			fittingLabels = generate( new Output( -1 ), lineCount, totalWeight, labelCount, labelCount, counts );
+
+		Output out = new Output( lineCount * 8 );
+
+		generate( out, lineCount, totalWeight, labelCount, fittingLabels, counts );
+
+		return new Corpus( name, out.toByteArray(), counts[ 0 ], counts[ 1 ] );
+	}
+
+	/************************************************************************************
+	 *  Writes the program to out with the labels from
+	 *  fittingLabels on replaced by the others in the references. Returns the number of
+	 *  labels defined at an address that fits in an A_COMMAND, and sets counts to the
+	 *  number of lines and instructions.
+	 ***********************************************************************************/
+	private int generate( Output out, int lineCount, int totalWeight, int labelCount, 
+			int fittingLabels, int[] counts )
+	{
+		Random random = new Random( m_seed );
+		int nextLabel = 0;
+		int labelsInRom = 0;
+		int instructionCount = 0;
+		int lines = 0;
+
+		for( ; lines < lineCount; lines++ )
+		{
+			int kind = pick( random, totalWeight );
+			boolean spaced = ( m_whitespace > 0 ) && ( random.nextDouble() < m_whitespace );
+
+			if( ( kind == LABEL ) && ( nextLabel == labelCount ) )
+				kind = C_COMMAND;
+
+			if( spaced )
+				out.append( INDENTS[ random.nextInt( INDENTS.length ) ] );
+
+			switch( kind )
+			{
+				case LABEL:
+					out.append( "(L" ).append( nextLabel++ ).append( ")" );
+
+					if( instructionCount <= MAX_ADDRESS )
+						labelsInRom++;
+					break;
+
+				case LITERAL:
+					out.append( "@" ).append( random.nextInt( 16384 ) );
+					instructionCount++;
+					break;
+
+				case SYMBOL:
+					double reference = random.nextDouble();
+
+					out.append( "@" );
+
+					if( reference < m_labelReferences )
+					{
+						int label = random.nextInt( labelCount );
+
+						if( label < fittingLabels )
+							out.append( "L" ).append( label );
+						else if( fittingLabels > 0 )
+							out.append( "L" ).append( label % fittingLabels );
+						else
+							out.append( "v" ).append( label % m_variableCount );
+					}
+					else if( reference < m_labelReferences + m_predefinedReferences )
+						out.append( PREDEFINED[ random.nextInt( PREDEFINED.length ) ] );
+					else
+						out.append( "v" ).append( random.nextInt( m_variableCount ) );
+
+					instructionCount++;
+					break;
+
+				case C_COMMAND:
+					appendCCommand( random, out, spaced ? " " : "" );
+					instructionCount++;
+					break;
+
+				case COMMENT:
+					out.append( "// line " ).append( lines + 1 );
+					break;
+
+				default:
+					break;
+			}
+
+			out.append( "\n" );
+		}
+
+		// Every label that can be referenced has to be defined once
+		for( ; nextLabel < labelCount; lines++ )
+		{
+			out.append( "(L" ).append( nextLabel++ ).append( ")\n" );
+
+			if( instructionCount <= MAX_ADDRESS )
+				labelsInRom++;
+		}
+
+		counts[ 0 ] = lines;
+		counts[ 1 ] = instructionCount;
+
+		return labelsInRom;
+	}
+
+	/************************************************************************************
+	 *  Picks a line kind according to the weights.
+	 ***********************************************************************************/
+	private int pick( Random random, int totalWeight )
+	{
+		int value = random.nextInt( totalWeight );
+		int kind = 0;
+
+		while( value >= m_weights[ kind ] )
+			value -= m_weights[ kind++ ];
+
+		return kind;
+	}
+
+	/************************************************************************************
+	 *  Appends dest=comp (70%), comp;jump (20%) or dest=comp;jump (10%).
+	 ***********************************************************************************/
+	private static void appendCCommand( Random random, Output out, String space )
+	{
+		int form = random.nextInt( 10 );
+		String comp = COMPS[ random.nextInt( COMPS.length ) ];
+
+		if( form < 9 )
+		{
+			if( form < 7 )
+				out.append( DESTS[ random.nextInt( DESTS.length ) ] ).append( space + "=" + space )
+						.append( comp );
+			else
+				out.append( comp ).append( space + ";" + space )
+						.append( JUMPS[ random.nextInt( JUMPS.length ) ] );
+		}
+		else
+			out.append( DESTS[ random.nextInt( DESTS.length ) ] ).append( "=" ).append( comp )
+					.append( ";" ).append( JUMPS[ random.nextInt( JUMPS.length ) ] );
+	}
+
+	/************************************************************************************
+	 *  Growable ASCII byte buffer (a StringBuilder would take twice the memory for the
+	 *  programs of millions of lines).
+	 ***********************************************************************************/
+	private static class Output
+	{
+		private byte[] m_bytes = null;
+		private int m_size = 0;
+
+		// An output of negative capacity drops what is appended (see generate())
+		Output( int capacity )
+		{
+			if( capacity >= 0 )
+				this.m_bytes = new byte[ Math.max( capacity, 16 ) ];
+		}
+
+		Output append( String text )
+		{
+			if( m_bytes == null )
+				return this;
+
+			if( m_size + text.length() > m_bytes.length )
+				m_bytes = Arrays.copyOf( m_bytes, Math.max( m_bytes.length * 2, m_size + text.length() ) );
+
+			for( int i = 0; i < text.length(); i++ )
+				m_bytes[ m_size++ ] = (byte)text.charAt( i );
+
+			return this;
+		}
+
+		Output append( int value )
+		{
+			return append( Integer.toString( value ) );
+		}
+
+		byte[] toByteArray()
+		{
+			return Arrays.copyOf( m_bytes, m_size );
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package hack.bp.assembler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+/****************************************************************************************
+ *  Assembles generated programs from 1k lines up to millions of lines and checks that
+ *  the time and the memory grow linearly with the size. For every size the time of the
+ *  fastest of a few runs, the bytes allocated and the peak heap are reported. The
+ *  growth exponent is then fitted (least squares on log(cost) against log(lines)) over
+ *  the sizes large enough to be above the noise; an exponent above the limit means
+ *  that something is super-linear (a String built by concatenation, a list searched
+ *  for every line...) and the suite fails with exit code 1.
+ *
+ *  Two programs are generated for each size: the default mix, and a symbol-heavy one
+ *  with thousands of labels and variables.
+ *
+ *  Usage: ScalingSuite [-max lines] [-limit exponent]
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ ***************************************************************************************/
+public class ScalingSuite
+{
+	private final static long SEED = 0x4841434BL;
+	private final static int MIN_LINES = 1000;
+	private final static int DEF_MAX_LINES = 4096000;
+	private final static double DEF_LIMIT = 1.5;
+
+	// Sizes below this are dominated by noise and are left out of the fit
+	private final static int MIN_FITTED_LINES = 16 * 1024;
+	private final static int RUN_LINES = 1024 * 1024;
+
+	public static void main( String[] args ) throws Exception
+	{
+		int maxLines = DEF_MAX_LINES;
+		double limit = DEF_LIMIT;
+
+		for( int i = 0; i + 1 < args.length; i += 2 )
+		{
+			if( args[ i ].equals( "-max" ) )
+				maxLines = Integer.parseInt( args[ i + 1 ] );
+			else if( args[ i ].equals( "-limit" ) )
+				limit = Double.parseDouble( args[ i + 1 ] );
+		}
+
+		boolean passed = true;
+
+		passed &= run( "default", new CorpusGenerator( SEED ), maxLines, limit );
+		passed &= run( "symbols", new CorpusGenerator( SEED )
+				.setMix( 15, 5, 45, 30, 3, 2 )
+				.setSymbolDensity( 0.5, 0.05, 5000 ), maxLines, limit );
+
+		System.out.println( passed ? "Scaling: PASSED" : "Scaling: FAILED" );
+		System.exit( passed ? 0 : 1 );
+	}
+
+	/************************************************************************************
+	 *  Measures one program at every size and checks the growth. Returns true if it
+	 *  is linear enough.
+	 ***********************************************************************************/
+	private static boolean run( String profile, CorpusGenerator generator, int maxLines,
+			double limit ) throws Exception
+	{
+		int sizeCount = 0;
+
+		for( long lines = MIN_LINES; lines <= maxLines; lines *= 4 )
+			sizeCount++;
+
+		double[] sizes = new double[ sizeCount ];
+		double[] times = new double[ sizeCount ];
+		double[] allocations = new double[ sizeCount ];
+
+		System.out.println( String.format( "%-8s %10s %10s %12s %10s %12s %10s %10s", "Program",
+				"Lines", "Instr", "ms", "ns/line", "alloc MB", "B/line", "peak MB" ) );
+
+		int lines = MIN_LINES;
+
+		for( int i = 0; i < sizeCount; i++, lines *= 4 )
+		{
+			Corpus corpus = generator.generate( profile + "-" + lines, lines );
+			String fileName = corpus.getFile().getPath();
+			int runs = Math.max( RUN_LINES / lines, 3 );
+
+			// Warm up, then keep the fastest run
+			assemble( fileName );
+
+			long bestTime = Long.MAX_VALUE;
+
+			for( int run = 0; run < runs; run++ )
+			{
+				long timerStart = System.nanoTime();
+				assemble( fileName );
+				bestTime = Math.min( bestTime, System.nanoTime() - timerStart );
+			}
+
+			// One more run for the memory
+			resetPeakHeap();
+			long allocatedStart = Benchmark.allocatedBytes();
+			assemble( fileName );
+			long allocated = Benchmark.allocatedBytes() - allocatedStart;
+			long peakHeap = peakHeap();
+
+			sizes[ i ] = corpus.getLineCount();
+			times[ i ] = bestTime;
+			allocations[ i ] = allocated;
+
+			System.out.println( String.format( "%-8s %10d %10d %12.3f %10.1f %12.2f %10.1f %10.1f",
+					profile, corpus.getLineCount(), corpus.getInstructionCount(), bestTime / 1e6,
+					(double)bestTime / corpus.getLineCount(), allocated / 1e6,
+					(double)allocated / corpus.getLineCount(), peakHeap / 1e6 ) );
+		}
+
+		boolean passed = check( profile + " time", sizes, times, limit );
+
+		if( Benchmark.allocatedBytes() >= 0 )
+			passed &= check( profile + " allocation", sizes, allocations, limit );
+
+		return passed;
+	}
+
+	/************************************************************************************
+	 *  Assembles the file with a quiet assembler.
+	 ***********************************************************************************/
+	private static void assemble( String fileName )
+	{
+		Assembler assembler = new Assembler();
+
+		assembler.setVerbose( false );
+		assembler.assemble( fileName );
+	}
+
+	/************************************************************************************
+	 *  Fits the growth exponent of the costs over the sizes that are large enough and
+	 *  prints it. Returns false if it is above the limit.
+	 ***********************************************************************************/
+	private static boolean check( String name, double[] sizes, double[] costs, double limit )
+	{
+		double sumX = 0;
+		double sumY = 0;
+		double sumXX = 0;
+		double sumXY = 0;
+		int count = 0;
+
+		for( int i = 0; i < sizes.length; i++ )
+		{
+			if( ( sizes[ i ] < MIN_FITTED_LINES ) || ( costs[ i ] <= 0 ) )
+				continue;
+
+			double x = Math.log( sizes[ i ] );
+			double y = Math.log( costs[ i ] );
+
+			sumX += x;
+			sumY += y;
+			sumXX += x * x;
+			sumXY += x * y;
+			count++;
+		}
+
+		if( count < 2 )
+		{
+			System.out.println( String.format( "Scaling: %s: not enough sizes to fit the growth.", name ) );
+			return true;
+		}
+
+		double exponent = ( count * sumXY - sumX * sumY ) / ( count * sumXX - sumX * sumX );
+		boolean passed = exponent <= limit;
+
+		System.out.println( String.format( "Scaling: %s grows as lines^%.2f (limit %.2f) %s",
+				name, exponent, limit, passed ? "OK" : "SUPER-LINEAR" ) );
+
+		return passed;
+	}
+
+	/************************************************************************************
+	 *  Collects the garbage and restarts the peak usage of the heap pools.
+	 ***********************************************************************************/
+	private static void resetPeakHeap()
+	{
+		System.gc();
+
+		for( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() )
+		{
+			if( pool.getType() == MemoryType.HEAP )
+				pool.resetPeakUsage();
+		}
+	}
+
+	/************************************************************************************
+	 *  Returns the sum of the peak usage of the heap pools since resetPeakHeap().
+	 ***********************************************************************************/
+	private static long peakHeap()
+	{
+		long peak = 0;
+
+		for( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() )
+		{
+			if( pool.getType() == MemoryType.HEAP )
+				peak += pool.getPeakUsage().getUsed();
+		}
+
+		return peak;
+	}
+}
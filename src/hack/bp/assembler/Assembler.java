@@ -1,7 +1,8 @@
 package hack.bp.assembler;
 
 import java.io.*;
-import java.util.Hashtable;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 /****************************************************************************************
  * 	This is the implementation of the Hack assembler.
@@ -16,13 +17,72 @@ import java.util.Hashtable;
  * 			comments. However, if the comments are situated in it's own line, you can
  * 			write a full program that uses variables. The RAM address is not checked
  * 			for overflow. -bp
+ * 	0.4 -	The file is only read once. The first pass keeps every parsed command in an
+ * 			InstructionList and the second pass encodes from it. -bp
+ * 	0.5 -	The second pass streams the words to the file through a HackWriter instead
+ * 			of building the whole output in a String. -bp
+ * 	0.6 -	C_COMMANDs are encoded to their word by the first pass with the int API of
+ * 			Code. An unknown mnemonic is now reported instead of writing a short line. -bp
+ * 	0.7 -	Added the -rom option to also write a packed binary ROM image (.rom). -bp
+ * 	0.8 -	The symbol table and the next variable address are kept per thread and
+ * 			reset by every run(), so files can be assembled in parallel (see
+ * 			BatchAssembler). Errors are thrown as AssemblerException instead of
+ * 			exiting, and the progress messages can be turned off. -bp
+ * 	0.9 -	The assembler is now an object. Each instance has its own SymbolTable
+ * 			(copied from the shared SymbolTable.PREDEFINED), next variable address and
+ * 			options, so independent jobs can run on separate threads. run() is kept as
+ * 			a shortcut for new Assembler().assemble(). -bp
+ * 	0.10 -	Symbols are looked up in the SymbolTable straight from the parser's buffer
+ * 			and the InstructionList keeps their ids, so the second pass reads and
+ * 			assigns addresses by id without hashing any String. -bp
+ * 	0.11 -	Split the passes into parseCommand(), defineLabels() and resolveWord() so
+ * 			they can be reused by IncrementalAssembler. -bp
+ * 	0.12 -	Added assemble( ByteBuffer, WritableByteChannel ) to assemble a source held
+ * 			in memory without touching the disk (see AssemblerServer). -bp
+ * 	0.13 -	Every job fills in an AssemblerMetrics (lines, commands of each type, symbols,
+ * 			bytes read and written, time per phase), see getMetrics(). Added the -quiet
+ * 			and -metrics options. -bp
+ * 	0.14 -	The second pass resolves every word first (one sequential sweep, so the
+ * 			variables get their addresses in order of appearance as before) and then
+ * 			hands the whole array to HackWriter.writeWords(), which formats large
+ * 			programs on all the cores. -bp
+ * 	0.15 -	Added the -optimize option: the PeepholeOptimizer shrinks the parsed program
+ * 			between the passes and the labels are defined again for the smaller ROM. -bp
+ * 	0.16 -	Added the -object option: the second pass writes a relocatable object file
+ * 			(.hobj) for the Linker instead of the .hack file. -bp
+ * 	0.17 -	The file name - assembles the standard input to the standard output (see
+ * 			StreamingAssembler). -bp
+ * 	0.18 -	Added the -pipeline option: the streaming mode reads and writes on threads of
+ * 			their own. -bp
+ * 	0.19 -	Added the -onepass option: the file is assembled by a StreamingAssembler,
+ * 			which writes every word when its line is read and patches the forward
+ * 			references in the .hack file. -bp
+ * 	0.20 -	Fixed the A_COMMANDs from 16384 on (SCREEN, KBD, large literals and labels),
+ * 			which were left out of the output. An address that does not fit in 15
+ * 			bits is now reported instead of dropped. -bp
+ * 	0.21 -	The second pass closes its files when it fails, and deletes them. -bp
+ * 	0.22 -	A value that is not a number (@, @1.5) is reported with its line instead of
+ * 			a NumberFormatException. -bp
+ * 	0.23 -	Added a constructor that copies the settings of another assembler, which
+ * 			the BatchAssembler uses for its jobs. -bp
+ * 	0.24 -	The object files check the A values like the .hack files (0 to 32767). -bp
+ * 	0.25 -	The single pass deletes its files when it fails, like the second pass. -bp
  *
  ***************************************************************************************/
 public class Assembler 
 {
-	private final static int DEF_SYM_TABLE_CNT = 8;
-	private static int varStartAddress = 16;
-	private static Hashtable<String, Integer> m_symbolTable = null;
+	private final static int VAR_START_ADDRESS = 16;
+	private final static int MAX_ADDRESS = ( 1 << 15 ) - 1;
+
+	private SymbolTable m_symbolTable = null;
+	private int varStartAddress = VAR_START_ADDRESS;
+	private boolean m_writeRomImage = false;
+	private boolean m_verbose = true;
+	private boolean m_optimize = false;
+	private boolean m_writeObject = false;
+	private boolean m_onePass = false;
+	private boolean m_pipelined = false;
+	private AssemblerMetrics m_metrics = new AssemblerMetrics();
 
 	/************************************************************************************
 	 *  Fires off the assembler with run(). This function makes sure that an argument 
@@ -30,62 +90,178 @@ public class Assembler
 	 ***********************************************************************************/
 	public static void main( String[] args ) 
 	{
+		int argIndex = 0;
+		boolean writeRomImage = false;
+		boolean quiet = false;
+		boolean printMetrics = false;
+		boolean optimize = false;
+		boolean writeObject = false;
+		boolean pipeline = false;
+		boolean onePass = false;
+
+		// Check for the options
+		for( ; ( args.length > argIndex ) && args[ argIndex ].startsWith( "-" ); argIndex++ )
+		{
+			if( args[ argIndex ].equals( "-rom" ) )
+				writeRomImage = true;
+			else if( args[ argIndex ].equals( "-quiet" ) )
+				quiet = true;
+			else if( args[ argIndex ].equals( "-metrics" ) )
+				printMetrics = true;
+			else if( args[ argIndex ].equals( "-optimize" ) )
+				optimize = true;
+			else if( args[ argIndex ].equals( "-object" ) )
+				writeObject = true;
+			else if( args[ argIndex ].equals( "-pipeline" ) )
+				pipeline = true;
+			else if( args[ argIndex ].equals( "-onepass" ) )
+				onePass = true;
+			else
+				break;
+		}
+
+		// A pipeline: from stdin to stdout, the metrics go to stderr
+		if( ( args.length == argIndex + 1 ) && args[ argIndex ].equals( "-" ) )
+		{
+			try
+			{
+				StreamingAssembler assembler = new StreamingAssembler();
+
+				assembler.setPipelined( pipeline );
+				assembler.assemble( new FileInputStream( FileDescriptor.in ).getChannel(),
+						new FileOutputStream( FileDescriptor.out ).getChannel() );
+
+				if( printMetrics )
+					System.err.println( assembler.getMetrics().toJson() );
+			}
+			catch (AssemblerException e)
+			{
+				System.err.println( e.getMessage() );
+				System.exit( 1 );
+			}
+
+			return;
+		}
+
+		Assembler assembler = new Assembler();
+
+		assembler.setWriteRomImage( writeRomImage );
+		assembler.setVerbose( !quiet && !printMetrics );
+		assembler.setOptimize( optimize );
+		assembler.setWriteObject( writeObject );
+		assembler.setOnePass( onePass );
+		assembler.setPipelined( pipeline );
+
+		// Many files, directories or globs are assembled in parallel
+		if( ( args.length > argIndex + 1 ) || 
+				( ( args.length > argIndex ) && BatchAssembler.isBatchArgument( args[ argIndex ] ) ) )
+		{
+			String[] arguments = new String[ args.length - argIndex ];
+
+			System.arraycopy( args, argIndex, arguments, 0, arguments.length );
+			System.exit( BatchAssembler.run( arguments, assembler, printMetrics ) ? 0 : 1 );
+		}
+
 		// Check if the file is passed in
-		if( args.length > 0 )
+		if( args.length > argIndex )
 		{
-			if( args[ 0 ].endsWith( ".asm" ) )
-				run( args[ 0 ] );
+			if( args[ argIndex ].endsWith( ".asm" ) )
+			{
+				try
+				{
+					assembler.assemble( args[ argIndex ] );
+
+					if( printMetrics )
+						System.out.println( assembler.getMetrics().toJson() );
+				}
+				catch (AssemblerException e)
+				{
+					System.out.println( e.getMessage() );
+
+					if( e.getCause() != null )
+						e.printStackTrace();
+
+					System.exit( 1 );
+				}
+			}
 			else
-				System.out.println( "Usage: <program> <fileName> " +
+				System.out.println( "Usage: <program> [-rom] [-quiet] [-metrics] [-optimize] [-object] [-onepass] [-pipeline] <fileName> " +
 						"\n\t -Can only use file with .asm extension.");
 		}
 		else
-			System.out.println( "Usage: <program> <fileName> " +
-					"\n\t -Enter an .asm file.");
+			System.out.println( "Usage: <program> [-rom] [-quiet] [-metrics] [-optimize] [-object] [-onepass] [-pipeline] <fileName> | <files, dirs, globs>..." +
+					"\n\t -Enter an .asm file." +
+					"\n\t -Several files, directories or globs are assembled in parallel." +
+					"\n\t -The file name - assembles the standard input to the standard output." +
+					"\n\t -rom: also write a packed binary ROM image (.rom)." +
+					"\n\t -quiet: do not print the progress messages." +
+					"\n\t -metrics: print the metrics of the assembly as JSON (implies -quiet)." +
+					"\n\t -optimize: remove redundant and unreachable instructions (not for" +
+					"\n\t  programs that jump to numeric addresses instead of labels)." +
+					"\n\t -object: write a relocatable object file (.hobj) for the Linker." +
+					"\n\t -onepass: assemble in a single pass, patching the forward references." +
+					"\n\t -pipeline: with - or -onepass, read and write on threads of their own.");
 	}	
 
 	/************************************************************************************
-	 *  Pre-defined symbols for assembler. 
+	 *  Creates an assembler with the default settings.
+	 ***********************************************************************************/
+	public Assembler()
+	{
+	}
+
+	/************************************************************************************
+	 *  Creates an assembler with the settings of another one (the set...() options),
+	 *  for a job of its own.
 	 ***********************************************************************************/
-	private static void init()
-	{
-		// Create the symbol table;
-		if( m_symbolTable == null )
-			m_symbolTable = new Hashtable<String, Integer>( DEF_SYM_TABLE_CNT );
-
-		// Add all the pre-defined symbols before run() is launched!
-		m_symbolTable.put( "SP", 	 	0 );
-		m_symbolTable.put( "LCL",  	1 );
-		m_symbolTable.put( "ARG",  	2 );
-		m_symbolTable.put( "THIS", 	3 );
-		m_symbolTable.put( "THAT", 	4 );
-		m_symbolTable.put( "R0",	 	0 );
-		m_symbolTable.put( "R1",	 	1 );
-		m_symbolTable.put( "R2",	 	2 );
-		m_symbolTable.put( "R3",	 	3 );
-		m_symbolTable.put( "R4",	 	4 );
-		m_symbolTable.put( "R5",	 	5 );
-		m_symbolTable.put( "R6",	 	6 );
-		m_symbolTable.put( "R7",	 	7 );
-		m_symbolTable.put( "R8",	 	8 );
-		m_symbolTable.put( "R9",	 	9 );
-		m_symbolTable.put( "R10",	 	10 );
-		m_symbolTable.put( "R11",	 	11 );
-		m_symbolTable.put( "R12",	 	12 );
-		m_symbolTable.put( "R13",	 	13 );
-		m_symbolTable.put( "R14",	 	14 );
-		m_symbolTable.put( "R15",	   	15 );
-		m_symbolTable.put( "SCREEN", 	16384 );
-		m_symbolTable.put( "KBD", 		24576 );
+	public Assembler( Assembler settings )
+	{
+		this.m_writeRomImage = settings.m_writeRomImage;
+		this.m_verbose = settings.m_verbose;
+		this.m_optimize = settings.m_optimize;
+		this.m_writeObject = settings.m_writeObject;
+		this.m_onePass = settings.m_onePass;
+		this.m_pipelined = settings.m_pipelined;
+	}
+
+	/************************************************************************************
+	 *  Starts the symbol table of a new job from the pre-defined symbols. 
+	 ***********************************************************************************/
+	void init()
+	{
+		// Copy the shared pre-defined symbols before the passes are launched!
+		m_symbolTable = new SymbolTable( SymbolTable.PREDEFINED );
+		varStartAddress = VAR_START_ADDRESS;
+		m_metrics = new AssemblerMetrics();
+		m_metrics.m_jobs = 1;
 		
-		System.out.println( "Init: Completed pre-populating symbols table.." );
+		report( "Init: Completed pre-populating symbols table.." );
+	}
+
+	/************************************************************************************
+	 *  Removes the addresses of the labels and variables (the symbols stay in the table
+	 *  with their ids) so they can be assigned again.
+	 ***********************************************************************************/
+	void resetAddresses()
+	{
+		m_symbolTable.clearAddresses( SymbolTable.PREDEFINED.size() );
+		varStartAddress = VAR_START_ADDRESS;
+	}
+
+	/************************************************************************************
+	 *  Prints a progress message unless the assembler has been made quiet.
+	 ***********************************************************************************/
+	private void report( String message )
+	{
+		if( m_verbose )
+			System.out.println( message );
 	}
 
 	/************************************************************************************
 	 *  Will return the next available slot in the RAM that a variable can occupy.
 	 *  This does not check for overflow.
 	 ***********************************************************************************/
-	public static int getNextAvailableAddress()
+	public int getNextAvailableAddress()
 	{
 		return varStartAddress;
 	}
@@ -93,237 +269,756 @@ public class Assembler
 	/************************************************************************************
 	 *  Sets the next available address.
 	 ***********************************************************************************/
-	public static void setNextAvailableAddress( int nextAddress )
+	public void setNextAvailableAddress( int nextAddress )
 	{
 		varStartAddress = nextAddress;
 	}
 	
+	/************************************************************************************
+	 *  Sets whether the second pass also writes a packed binary ROM image (see
+	 *  RomImage) next to the .hack file.
+	 ***********************************************************************************/
+	public void setWriteRomImage( boolean writeRomImage )
+	{
+		m_writeRomImage = writeRomImage;
+	}
+	
+	/************************************************************************************
+	 *  Sets whether the progress and timing messages are printed (on by default).
+	 ***********************************************************************************/
+	public void setVerbose( boolean verbose )
+	{
+		m_verbose = verbose;
+	}
+	
+	/************************************************************************************
+	 *  Sets whether the parsed program goes through the PeepholeOptimizer before the
+	 *  second pass (off by default).
+	 ***********************************************************************************/
+	public void setOptimize( boolean optimize )
+	{
+		m_optimize = optimize;
+	}
+	
+	/************************************************************************************
+	 *  Sets whether the second pass writes a relocatable object file (.hobj, see
+	 *  ObjectFile) instead of the .hack file (off by default).
+	 ***********************************************************************************/
+	public void setWriteObject( boolean writeObject )
+	{
+		m_writeObject = writeObject;
+	}
+	
+	/************************************************************************************
+	 *  Sets whether the file is assembled in a single pass (see onePass(), off by
+	 *  default). It cannot be combined with setOptimize() or setWriteObject().
+	 ***********************************************************************************/
+	public void setOnePass( boolean onePass )
+	{
+		m_onePass = onePass;
+	}
+	
+	/************************************************************************************
+	 *  Sets whether the single pass reads and writes on threads of its own (see
+	 *  StreamingAssembler.setPipelined(), off by default).
+	 ***********************************************************************************/
+	public void setPipelined( boolean pipelined )
+	{
+		m_pipelined = pipelined;
+	}
+	
 	/************************************************************************************
 	 *  Returns the address associated with the symbol.
 	 ***********************************************************************************/
-	public static int getAddress( String symbol )
+	public int getAddress( String symbol )
+	{
+		return m_symbolTable.getAddress( symbol );
+	}
+
+	/************************************************************************************
+	 *  Returns the metrics of the last job.
+	 ***********************************************************************************/
+	public AssemblerMetrics getMetrics()
+	{
+		return m_metrics;
+	}
+
+	/************************************************************************************
+	 *  Returns the symbol table of the last job.
+	 ***********************************************************************************/
+	public SymbolTable getSymbolTable()
+	{
+		return m_symbolTable;
+	}
+
+	/************************************************************************************
+	 *  Assembles the file with a new Assembler and the default options. Returns the
+	 *  number of words written.
+	 ***********************************************************************************/
+	public static int run( String fileName )
 	{
-		return m_symbolTable.get( symbol );
+		return new Assembler().assemble( fileName );
 	}
 
 	/************************************************************************************
 	 *  This is the implementation of the assembler. It contains a timer accurate to
-	 *  the nano-second to measure the assembler's performance.
+	 *  the nano-second to measure the assembler's performance. Returns the number of
+	 *  words written. Throws an AssemblerException if the file cannot be assembled.
+	 *  An instance can assemble one file after another, but not two at the same time:
+	 *  use one instance per thread.
 	 ***********************************************************************************/
-	public static void run( String fileName )
+	public int assemble( String fileName )
 	{
-		System.out.println( "Starting assembler..." );
+		report( "Starting assembler..." );
 		
 		// Initialize the symbol table
+		long initStart = System.nanoTime();
 		init();
+		m_metrics.m_source = fileName;
+		m_metrics.m_initTime = System.nanoTime() - initStart;
 		
 		// Start the timer for run()
 		long timerStart = System.nanoTime();
 
-		// Run the assembler passes
-		firstPass( fileName );
-		secondPass( fileName );
+		// Run the assembler passes (the file is only read by the first one)
+		int wordCount = 0;
+
+		if( m_onePass )
+			wordCount = onePass( fileName );
+		else
+		{
+			InstructionList instructions = firstPass( fileName );
+
+			if( m_optimize )
+				instructions = optimize( instructions );
+
+			wordCount = m_writeObject ? writeObject( fileName, instructions ) :
+					secondPass( fileName, instructions );
+		}
 
 		// Print the compilation statistics on screen (timer and success msg)
 		long timerEnd = System.nanoTime();
-		System.out.println( "Assembly completed! (elapsed time: " +
+		finishMetrics( wordCount, timerEnd - timerStart + m_metrics.m_initTime );
+		report( "Assembly completed! (elapsed time: " +
 				( timerEnd - timerStart ) + "ns)\n");
+
+		return wordCount;
 	}
 
 	/************************************************************************************
-	 *  This builds the symbol table. It is the first pass in the assembly process.
+	 *  This builds the symbol table. It is the first pass in the assembly process. It
+	 *  is also the only pass that reads the file: every command is parsed once and
+	 *  kept in the returned list for the second pass.
 	 ************************************************************************************/
-	private static void firstPass( String fileName )
+	private InstructionList firstPass( String fileName )
 	{
 		// Start timer
 		long timerStart = System.nanoTime();
 		
 		// Report status
-		System.out.println( "Starting first pass: Populating symbol table..." );
-		
-		// Open a new parser
-		Parser parser = new Parser( fileName );
+		report( "Starting first pass: Populating symbol table..." );
 		
-		// Initialize the current line
-		parser.setCurrentLineNumber( 0 );
+		// Open a new parser and the list that will hold the parsed commands
+		Parser parser = new Parser( fileName, Parser.InputMode.MAPPED );
+		InstructionList instructions = new InstructionList();
+		int sourceLineNumber = 0;
 
 		// Run through each line
 		while( parser.hasMoreCommands() )
 		{
-			// Get the command
+			// Get the command (it is tokenized once by advance())
 			parser.advance();
+			sourceLineNumber++;
 
-			// A_COMMAND/C_COMMAND - Update next address
-			if( ( parser.commandType() == Parser.Commands.A_COMMAND ) ||
-					( parser.commandType() == Parser.Commands.C_COMMAND ) )
-				parser.setCurrentLineNumber( parser.getCurrentLineNumber() + 1 );
-				
-			// L_COMMAND - Populate the symbol table with the labels. Do not update address.
-			if( parser.commandType() == Parser.Commands.L_COMMAND )
-			{
-				// Check if the symbol table has the symbol, if not, store in table
-				if( !m_symbolTable.containsKey( parser.symbol() ) )
-					m_symbolTable.put( parser.symbol(), parser.getCurrentLineNumber() );
-				else
-				{
-					System.out.println( "Assembly file contains multiple symbols of the same label!" );
-					System.exit( 1 );
-				}
-			}
-			
-			// BAD_COMMAND - Do nothing for comments. Do not update the address.
-			if( parser.commandType() == Parser.Commands.BAD_COMMAND )
-			{}
+			parseCommand( parser.getInstruction(), instructions, sourceLineNumber );
 		}
+
+		// Populate the symbol table with the labels
+		defineLabels( instructions );
 		
 		// Report results of first pass
 		long timerEnd = System.nanoTime();
-		System.out.println( "First pass completed! (elapsed time: " +
+		m_metrics.m_linesRead = sourceLineNumber;
+		m_metrics.m_bytesRead = parser.getInputFile().length();
+		m_metrics.m_firstPassTime = timerEnd - timerStart;
+		report( "First pass completed! (elapsed time: " +
 				( timerEnd - timerStart ) + "ns)");
+
+		return instructions;
+	}
+
+	/************************************************************************************
+	 *  Runs the parsed commands through the PeepholeOptimizer and defines the labels
+	 *  again for the commands that are left.
+	 ************************************************************************************/
+	private InstructionList optimize( InstructionList instructions )
+	{
+		long timerStart = System.nanoTime();
+		report( "Starting optimization..." );
+
+		PeepholeOptimizer optimizer = new PeepholeOptimizer();
+		InstructionList optimized = optimizer.optimize( instructions );
+
+		resetAddresses();
+		defineLabels( optimized );
+
+		long timerEnd = System.nanoTime();
+		m_metrics.m_instructionsSaved = optimizer.getRemoved();
+		m_metrics.m_optimizationTime = timerEnd - timerStart;
+		report( "Optimization completed! Saved " + optimizer.getRemoved() + " instructions (" +
+				optimizer.getReloads() + " reloads, " + optimizer.getDeadLoads() + " dead loads, " +
+				optimizer.getRoundTrips() + " round trips, " + optimizer.getUnreachable() + 
+				" unreachable) (elapsed time: " + ( timerEnd - timerStart ) + "ns)" );
+
+		return optimized;
 	}
 
 	/************************************************************************************
-	 *  This builds the entire output using information from the symbol table.
+	 *  Returns the value of an A_COMMAND without letters. An AssemblerException names
+	 *  the line if it is not a decimal number (@, @1.5, @12-3) or does not fit an int.
 	 ************************************************************************************/
-	private static void secondPass( String fileName )
+	static int literalValue( Instruction instruction, int sourceLineNumber )
+	{
+		try
+		{
+			return instruction.symbolValue();
+		}
+		catch (NumberFormatException e)
+		{
+			throw new AssemblerException( "Line " + sourceLineNumber + 
+					": Bad value in '" + instruction.command() + "'!" );
+		}
+	}
+
+	/************************************************************************************
+	 *  Adds a tokenized command to the list. Symbols are added to the symbol table
+	 *  (without an address) and C_COMMANDs are encoded. Comments are skipped.
+	 ************************************************************************************/
+	void parseCommand( Instruction instruction, InstructionList instructions, 
+			int sourceLineNumber )
+	{
+		Parser.Commands commandType = instruction.getType();
+
+		// A_COMMAND - Store the decimal value or the symbol
+		if( commandType == Parser.Commands.A_COMMAND )
+		{
+			if( !instruction.symbolHasLetter() )
+			{
+				instructions.add( InstructionList.A_LITERAL, 
+						literalValue( instruction, sourceLineNumber ), sourceLineNumber );
+				m_metrics.m_aLiterals++;
+			}
+			else
+			{
+				instructions.add( InstructionList.A_SYMBOL, 
+						m_symbolTable.intern( instruction.getChars(), 
+								instruction.getSymbolStart(), instruction.getSymbolEnd() ),
+						sourceLineNumber );
+				m_metrics.m_aSymbols++;
+			}
+		}
+
+		// C_COMMAND - Store the encoded word
+		if( commandType == Parser.Commands.C_COMMAND )
+		{
+			int word = Code.cCommand( instruction );
+
+			if( word == Code.UNKNOWN )
+				throw new AssemblerException( "Line " + sourceLineNumber + 
+						": Unknown mnemonic in '" + instruction.command() + "'!" );
+
+			instructions.add( InstructionList.C_COMMAND, word, sourceLineNumber );
+			m_metrics.m_cCommands++;
+		}
+			
+		// L_COMMAND - Store the label, its address is set by defineLabels()
+		if( commandType == Parser.Commands.L_COMMAND )
+		{
+			instructions.add( InstructionList.L_COMMAND, 
+					m_symbolTable.intern( instruction.getChars(), 
+							instruction.getSymbolStart(), instruction.getSymbolEnd() ),
+					sourceLineNumber );
+			m_metrics.m_labels++;
+		}
+		
+		// BAD_COMMAND - Do nothing for comments.
+		if( commandType == Parser.Commands.BAD_COMMAND )
+			m_metrics.m_otherLines++;
+	}
+
+	/************************************************************************************
+	 *  Populates the symbol table with the labels: each one gets the address of the
+	 *  command that follows it.
+	 ************************************************************************************/
+	void defineLabels( InstructionList instructions )
+	{
+		int address = 0;
+
+		for( int i = 0; i < instructions.size(); i++ )
+		{
+			// Labels do not update the address
+			if( instructions.getType( i ) != InstructionList.L_COMMAND )
+			{
+				address++;
+				continue;
+			}
+
+			int id = instructions.getOperand( i );
+
+			// Check if the symbol table has the symbol, if not, store in table
+			if( !m_symbolTable.isDefined( id ) )
+				m_symbolTable.setAddress( id, address );
+			else
+				throw new AssemblerException( 
+						"Assembly file contains multiple symbols of the same label!" );
+		}
+	}
+
+	/************************************************************************************
+	 *  Returns the machine code of a parsed command, or -1 if it has none (labels). A
+	 *  symbol that is not a label becomes a variable. Throws an AssemblerException if
+	 *  an address does not fit in the 15 bits of an A_COMMAND.
+	 ************************************************************************************/
+	int resolveWord( byte type, int operand )
+	{
+		int word = -1;
+
+		// Handle A_COMMAND - Address instructions
+		if( ( type == InstructionList.A_LITERAL ) || ( type == InstructionList.A_SYMBOL ) )
+		{
+			int decAddress = operand;
+
+			// Look up the address of a symbol (the operand is its id)
+			if( type == InstructionList.A_SYMBOL )
+			{
+				decAddress = m_symbolTable.getAddress( operand );
+
+				// Not a label: it's a variable, store it under RAM address (16 and on)
+				if( decAddress == SymbolTable.UNDEFINED )
+				{
+					decAddress = getNextAvailableAddress();
+					m_symbolTable.setAddress( operand, decAddress );
+					
+					// Update the available address
+					setNextAvailableAddress( decAddress + 1 );
+					m_metrics.m_variables++;
+				}
+			}
+
+			// The A_COMMAND prefix is 0, the address takes the other 15 bits
+			if( ( decAddress < 0 ) || ( decAddress > MAX_ADDRESS ) )
+				throw new AssemblerException( "The address " + decAddress + 
+						( ( type == InstructionList.A_SYMBOL ) ? 
+								" of '" + m_symbolTable.getSymbol( operand ) + "'" : "" ) +
+						" does not fit in an A_COMMAND!" );
+
+			word = decAddress;
+		}	
+
+		// Handle C_COMMAND - Encoded by the first pass
+		if( type == InstructionList.C_COMMAND )
+			word = operand;
+
+		// L_COMMAND - Labels were resolved by the first pass
+		return word;
+	}
+
+	/************************************************************************************
+	 *  This builds the entire output using information from the symbol table and the
+	 *  instructions collected by the first pass. Returns the number of words written.
+	 *  If it fails, the files are closed and deleted (no truncated output is left).
+	 ************************************************************************************/
+	private int secondPass( String fileName, InstructionList instructions )
 	{
 		// Start timer
 		long timerStart = System.nanoTime();
 		
 		// Report status
-		System.out.println( "Starting second pass: Creating binaries..." );
+		report( "Starting second pass: Creating binaries..." );
 		
-		// Initialize the parser and default output to write to file
-		Parser parser = new Parser( fileName );
-		String output = "";
+		// Write to file (<filename-minus-extension>.hack) as the words are encoded
+		File hackFile = new File( fileName.replace( ".asm", ".hack" ) );
+		File romFile = new File( fileName.replace( ".asm", ".rom" ) );
+		HackWriter out = null;
+		RomImage.Writer rom = null;
+		int wordCount = 0;
+		boolean written = false;
+
+		try
+		{
+			out = new HackWriter( new FileOutputStream( hackFile ).getChannel() );
+
+			// Packed image (<filename-minus-extension>.rom)
+			if( m_writeRomImage )
+				rom = new RomImage.Writer( romFile );
+
+			// Run through the parsed commands
+			wordCount = writeWords( instructions, out, rom );
+
+			// Flush the last words and close the files
+			out.close();
+			m_metrics.m_bytesWritten = out.getBytesWritten();
+
+			if( rom != null )
+			{
+				rom.close();
+				m_metrics.m_bytesWritten += RomImage.HEADER_SIZE + 2L * rom.getLength();
+			}
 
-		// Initialize the address size (defined in Hack machine code spec)
-		final int ADDRESS_LENGTH = 15;
+			written = true;
+		}
+		catch (IOException e)
+		{
+			throw new AssemblerException( "Error: " + e.getMessage(), e );
+		}
+		finally
+		{
+			if( !written )
+			{
+				closeQuietly( out, rom );
+				hackFile.delete();
 
-		// Initialize the line number
-		parser.setCurrentLineNumber( 0 );
+				if( m_writeRomImage )
+					romFile.delete();
+			}
+		}
 		
-		// Start reading the file
-		while( parser.hasMoreCommands() )
+		// Report results of second pass
+		long timerEnd = System.nanoTime();
+		m_metrics.m_secondPassTime = timerEnd - timerStart;
+		report( "Second pass completed! (elapsed time: " +
+				( timerEnd - timerStart ) + "ns)");
+
+		return wordCount;
+	}
+
+	/************************************************************************************
+	 *  Closes the files of a failed second pass (either may be null or closed).
+	 ************************************************************************************/
+	private static void closeQuietly( HackWriter out, RomImage.Writer rom )
+	{
+		try
 		{
-			// Grab the next command and store it as the current command
-			parser.advance();
+			if( out != null )
+				out.close();
+		}
+		catch (IOException e)
+		{
+			// The file is deleted anyway
+		}
 
-			// Handle BAD_COMMAND - Comments
-			if( parser.commandType() == Parser.Commands.BAD_COMMAND )
-				parser.setCurrentLineNumber( parser.getCurrentLineNumber() + 1 );
-			
-			// Handle L_COMMAND - Labels
-			if( parser.commandType() == Parser.Commands.L_COMMAND )
-				parser.setCurrentLineNumber( parser.getCurrentLineNumber() + 1 );
+		try
+		{
+			if( rom != null )
+				rom.close();
+		}
+		catch (IOException e)
+		{
+			// The file is deleted anyway
+		}
+	}
+
+	/************************************************************************************
+	 *  Replaces both passes: the file is read once by a StreamingAssembler, which 
+	 *  writes every word as soon as its line is parsed and patches the words that use
+	 *  a label further down (or a variable) in the .hack file once the address is
+	 *  known. The ROM image is written from the .hack file at the end. Returns the 
+	 *  number of words written. If it fails, the files are closed and deleted.
+	 ************************************************************************************/
+	private int onePass( String fileName )
+	{
+		if( m_optimize || m_writeObject )
+			throw new AssemblerException( "The one-pass mode cannot optimize or write object files!" );
+
+		// Start timer
+		long timerStart = System.nanoTime();
 		
-			// Handle A_COMMAND - Address instructions
-			if( parser.commandType() == Parser.Commands.A_COMMAND )
+		// Report status
+		report( "Starting single pass: Creating binaries..." );
+
+		StreamingAssembler assembler = new StreamingAssembler();
+		String hackName = fileName.replace( ".asm", ".hack" );
+		File romFile = new File( fileName.replace( ".asm", ".rom" ) );
+		RomImage.Writer rom = null;
+		int wordCount = 0;
+		boolean written = false;
+
+		assembler.setPipelined( m_pipelined );
+		assembler.setPatchInPlace( true );
+
+		try
+		{
+			FileInputStream in = new FileInputStream( fileName );
+
+			try
 			{
-				char symbolArray[] = parser.symbol().toCharArray();
-				boolean symbolHasLetter = false;
+				FileOutputStream out = new FileOutputStream( hackName );
 
-				// Check if the symbol has a letter
-				for( int i = 0; i < symbolArray.length; i++ )
+				try
 				{
-					symbolHasLetter = Character.isLetter( symbolArray[ i ] );
-					
-					// Break from loop if letter found
-					if( symbolHasLetter )
-						break;
+					wordCount = assembler.assemble( in.getChannel(), out.getChannel() );
 				}
-
-				// Update the address to load next
-				parser.setCurrentLineNumber( parser.getCurrentLineNumber() + 1 );
-				
-				// Initialize the variable to hold the calculated binary string
-				String tempCode = "";
-				int decAddress = -1;
-
-				// Calculate and store the binary string (if label, look up table)
-				if( !symbolHasLetter )
-					decAddress = Integer.parseInt( parser.symbol() );
-				else
+				finally
 				{
-					// Look up if the variable is in the table
-					if( m_symbolTable.containsKey( parser.symbol() ) )
-						decAddress = getAddress( parser.symbol() );
-					else
-					{
-						// Add the variable to symbol table under RAM address (16 and on)
-						m_symbolTable.put( parser.symbol(), getNextAvailableAddress() );
-						
-						// Update the available address
-						setNextAvailableAddress( getNextAvailableAddress() + 1 );
-						
-						// Set the new variable's address
-						decAddress = getAddress( parser.symbol() );
-					}
+					out.close();
 				}
-				
-				// Generate the initial binary string
-				tempCode = Integer.toBinaryString( decAddress );
+			}
+			finally
+			{
+				in.close();
+			}
 
-				// Format the binary string to meet machine code specs
-				if( ( tempCode.length() < ADDRESS_LENGTH ) && ( tempCode.length() > 0 ) )
-				{
-					int paddingCount = ADDRESS_LENGTH - tempCode.length();
+			// The metrics and the symbols of the job are the streaming assembler's
+			long initTime = m_metrics.m_initTime;
 
-					// Append the A_COMMAND prefix
-					output += "0";
+			m_metrics = assembler.getMetrics();
+			m_metrics.m_source = fileName;
+			m_metrics.m_initTime = initTime;
+			m_symbolTable = assembler.getSymbolTable();
+			varStartAddress = VAR_START_ADDRESS + (int)m_metrics.m_variables;
 
-					// Pad the output to conform to the machine code specs
-					for( int i = 0; i < paddingCount; i++ )
-						output += "0";
+			// Packed image (<filename-minus-extension>.rom)
+			if( m_writeRomImage )
+			{
+				rom = new RomImage.Writer( romFile );
 
-					// Create the machine code and start new line for next code
-					output += tempCode;
-					output += "\n";
-				}
-				
-			}	
+				for( short word : Disassembler.readProgram( new File( hackName ) ) )
+					rom.writeWord( word & 0xFFFF );
 
-			// Handle C_COMMAND
-			if( parser.commandType() == Parser.Commands.C_COMMAND )
+				rom.close();
+				m_metrics.m_bytesWritten += RomImage.HEADER_SIZE + 2L * rom.getLength();
+			}
+
+			written = true;
+		}
+		catch (IOException e)
+		{
+			throw new AssemblerException( "Error: " + e.getMessage(), e );
+		}
+		finally
+		{
+			if( !written )
 			{
-				// Initialize the mnemonic translator
-				Code code = new Code();
+				closeQuietly( null, rom );
+				new File( hackName ).delete();
 
-				// Update the address of next command to load
-				parser.setCurrentLineNumber( parser.getCurrentLineNumber() + 1 );
-			
-				// Append the C_COMMAND prefix
-				output += "111";
-
-				// Construct the machine code
-				output += code.comp( parser.comp() ) + 
-						code.dest( parser.dest() ) + 
-						code.jump( parser.jump() );
-				output += "\n";	
+				if( m_writeRomImage )
+					romFile.delete();
 			}
 		}
-		
-		// Write to file (<filename-minus-extension>.hack)
+
+		// Report results of the pass
+		long timerEnd = System.nanoTime();
+		m_metrics.m_firstPassTime = timerEnd - timerStart;
+		report( "Single pass completed! " + assembler.getMaxWaiting() + 
+				" forward references waiting at most (elapsed time: " +
+				( timerEnd - timerStart ) + "ns)");
+
+		return wordCount;
+	}
+
+	/************************************************************************************
+	 *  The second pass of a module: writes the parsed commands to a relocatable object
+	 *  file (<filename-minus-extension>.hobj). Returns the number of words written.
+	 ************************************************************************************/
+	private int writeObject( String fileName, InstructionList instructions )
+	{
+		long timerStart = System.nanoTime();
+		report( "Starting second pass: Creating object file..." );
+
+		ObjectFile object = toObject( fileName, instructions );
+
 		try
 		{
-			// Create buffered writer
-			FileWriter fileStream = new FileWriter( fileName.replace( ".asm", ".hack" ) );
-			BufferedWriter out = new BufferedWriter( fileStream );
-
-			// Write to file and then close the writer
-			out.write( output, 0, output.length() );
-			out.close();  
+			m_metrics.m_bytesWritten = object.write( new File( fileName.replace( ".asm", ".hobj" ) ) );
 		}
-		catch (Exception e)
+		catch (IOException e)
 		{
-			System.err.println( "Error: " + e.getMessage() );
-			e.printStackTrace();
-			System.exit( 1 );
+			throw new AssemblerException( "Error: " + e.getMessage(), e );
 		}
-		
-		// Report results of second pass
+
 		long timerEnd = System.nanoTime();
-		System.out.println( "Second pass completed! (elapsed time: " +
+		m_metrics.m_secondPassTime = timerEnd - timerStart;
+		report( "Second pass completed! (elapsed time: " +
 				( timerEnd - timerStart ) + "ns)");
+
+		return object.getWords().length;
+	}
+
+	/************************************************************************************
+	 *  Builds the object of the parsed commands. The labels have their offsets in the
+	 *  module; every other symbol that is not pre-defined is left to the Linker.
+	 ************************************************************************************/
+	ObjectFile toObject( String name, InstructionList instructions )
+	{
+		final int firstId = SymbolTable.PREDEFINED.size();
+
+		// The symbols of the module, in the order of their ids
+		int symbolCount = m_symbolTable.size() - firstId;
+		String[] symbols = new String[ symbolCount ];
+		byte[] kinds = new byte[ symbolCount ];
+		int[] values = new int[ symbolCount ];
+
+		for( int i = 0; i < symbolCount; i++ )
+		{
+			boolean label = m_symbolTable.isDefined( firstId + i );
+
+			symbols[ i ] = m_symbolTable.getSymbol( firstId + i );
+			kinds[ i ] = label ? ObjectFile.LABEL : ObjectFile.EXTERNAL;
+			values[ i ] = label ? m_symbolTable.getAddress( firstId + i ) : -1;
+		}
+
+		// The words, with a relocation for every @symbol
+		short[] words = new short[ instructions.size() ];
+		int[] relocationWords = new int[ instructions.size() ];
+		int[] relocationSymbols = new int[ instructions.size() ];
+		int wordCount = 0;
+		int relocationCount = 0;
+
+		for( int i = 0; i < instructions.size(); i++ )
+		{
+			byte type = instructions.getType( i );
+			int operand = instructions.getOperand( i );
+
+			if( type == InstructionList.L_COMMAND )
+				continue;
+
+			if( ( type == InstructionList.A_SYMBOL ) && ( operand >= firstId ) )
+			{
+				relocationWords[ relocationCount ] = wordCount;
+				relocationSymbols[ relocationCount++ ] = operand - firstId;
+				operand = 0;
+			}
+			else
+			{
+				// Literals, pre-defined symbols and C_COMMANDs are final (and checked)
+				try
+				{
+					operand = resolveWord( type, operand );
+				}
+				catch (AssemblerException e)
+				{
+					throw new AssemblerException( "Line " + instructions.getLineNumber( i ) + ": " +
+							e.getMessage() );
+				}
+			}
+
+			words[ wordCount++ ] = (short)operand;
+		}
+
+		return new ObjectFile( name, java.util.Arrays.copyOf( words, wordCount ), symbols, kinds, 
+				values, java.util.Arrays.copyOf( relocationWords, relocationCount ), 
+				java.util.Arrays.copyOf( relocationSymbols, relocationCount ) );
+	}
+
+	/************************************************************************************
+	 *  Fills in the metrics that are only known once the job is done.
+	 ************************************************************************************/
+	private void finishMetrics( int wordCount, long totalTime )
+	{
+		m_metrics.m_words = wordCount;
+		m_metrics.m_symbols = m_symbolTable.size() - SymbolTable.PREDEFINED.size();
+		m_metrics.m_totalTime = totalTime;
+	}
+
+	/************************************************************************************
+	 *  Resolves the parsed commands and writes their words to out (and to rom unless
+	 *  it is null). Returns the number of words written.
+	 ************************************************************************************/
+	private int writeWords( InstructionList instructions, HackWriter out, 
+			RomImage.Writer rom ) throws IOException
+	{
+		// Resolve the symbols in order (this assigns the variables their addresses)
+		int[] words = new int[ instructions.size() ];
+		int wordCount = 0;
+
+		for( int i = 0; i < instructions.size(); i++ )
+		{
+			int word = -1;
+
+			try
+			{
+				word = resolveWord( instructions.getType( i ), instructions.getOperand( i ) );
+			}
+			catch (AssemblerException e)
+			{
+				throw new AssemblerException( "Line " + instructions.getLineNumber( i ) + ": " +
+						e.getMessage() );
+			}
+
+			// Labels have no machine code
+			if( word >= 0 )
+				words[ wordCount++ ] = word;
+		}
+
+		// Then format them (in parallel for large programs)
+		out.writeWords( words, 0, wordCount );
+
+		if( rom != null )
+		{
+			for( int i = 0; i < wordCount; i++ )
+				rom.writeWord( words[ i ] );
+		}
+
+		return wordCount;
+	}
+
+	/************************************************************************************
+	 *  Assembles the source between the position and the limit of the buffer and 
+	 *  writes the .hack text to the channel (which is left open). Nothing is read from
+	 *  or written to the disk. Returns the number of words written.
+	 ************************************************************************************/
+	public int assemble( ByteBuffer source, WritableByteChannel out )
+	{
+		long initStart = System.nanoTime();
+		init();
+		m_metrics.m_source = "<memory>";
+		m_metrics.m_bytesRead = source.remaining();
+
+		// First pass: parse every line and define the labels
+		long firstPassStart = System.nanoTime();
+		MappedSource lines = new MappedSource( source );
+		Instruction instruction = new Instruction();
+		InstructionList instructions = new InstructionList();
+		int sourceLineNumber = 0;
+
+		while( lines.hasNextLine() )
+		{
+			lines.nextLine();
+			sourceLineNumber++;
+
+			instruction.tokenize( lines );
+			parseCommand( instruction, instructions, sourceLineNumber );
+		}
+
+		defineLabels( instructions );
+		m_metrics.m_linesRead = sourceLineNumber;
+
+		if( m_optimize )
+			instructions = optimize( instructions );
+
+		// Second pass: resolve and write the words
+		long secondPassStart = System.nanoTime();
+		HackWriter writer = new HackWriter( out );
+
+		try
+		{
+			int wordCount = writeWords( instructions, writer, null );
+
+			writer.flush();
+
+			long timerEnd = System.nanoTime();
+			m_metrics.m_initTime = firstPassStart - initStart;
+			m_metrics.m_firstPassTime = secondPassStart - firstPassStart - m_metrics.m_optimizationTime;
+			m_metrics.m_secondPassTime = timerEnd - secondPassStart;
+			m_metrics.m_bytesWritten = writer.getBytesWritten();
+			finishMetrics( wordCount, timerEnd - initStart );
+
+			return wordCount;
+		}
+		catch (IOException e)
+		{
+			throw new AssemblerException( "Error: " + e.getMessage(), e );
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,25 @@
+package hack.bp.assembler;
+
+/****************************************************************************************
+ *  Thrown when a file cannot be assembled (bad input or an I/O error). The message is
+ *  meant to be shown to the user as-is.
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ ***************************************************************************************/
+public class AssemblerException extends RuntimeException
+{
+	private static final long serialVersionUID = 1L;
+
+	public AssemblerException( String message )
+	{
+		super( message );
+	}
+
+	public AssemblerException( String message, Throwable cause )
+	{
+		super( message, cause );
+	}
+}
@@ -0,0 +1,255 @@
+package hack.bp.assembler;
+
+/****************************************************************************************
+ *  Counters and timers of one assembly job (or the sum of several, see add()). The
+ *  Assembler fills them in as it goes, whether or not it prints anything, and they can
+ *  be read afterwards with the getters or as a JSON object with toJson().
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ *	0.2 -	Added the instructions saved by the PeepholeOptimizer and its time. -bp
+ ***************************************************************************************/
+public class AssemblerMetrics
+{
+	// Input
+	String m_source = null;
+	long m_linesRead = 0;
+	long m_bytesRead = 0;
+
+	// Commands found by the first pass
+	long m_aLiterals = 0;
+	long m_aSymbols = 0;
+	long m_cCommands = 0;
+	long m_labels = 0;
+	long m_otherLines = 0;
+
+	// Instructions removed by the PeepholeOptimizer
+	long m_instructionsSaved = 0;
+
+	// Symbols
+	long m_symbols = 0;
+	long m_variables = 0;
+
+	// Output
+	long m_words = 0;
+	long m_bytesWritten = 0;
+
+	// Time per phase (ns)
+	long m_initTime = 0;
+	long m_firstPassTime = 0;
+	long m_optimizationTime = 0;
+	long m_secondPassTime = 0;
+	long m_totalTime = 0;
+
+	// Number of jobs added up in this object
+	int m_jobs = 0;
+
+	/************************************************************************************
+	 *  Adds the counters and the times of another job to these ones.
+	 ***********************************************************************************/
+	public void add( AssemblerMetrics other )
+	{
+		m_linesRead += other.m_linesRead;
+		m_bytesRead += other.m_bytesRead;
+		m_aLiterals += other.m_aLiterals;
+		m_aSymbols += other.m_aSymbols;
+		m_cCommands += other.m_cCommands;
+		m_labels += other.m_labels;
+		m_otherLines += other.m_otherLines;
+		m_instructionsSaved += other.m_instructionsSaved;
+		m_symbols += other.m_symbols;
+		m_variables += other.m_variables;
+		m_words += other.m_words;
+		m_bytesWritten += other.m_bytesWritten;
+		m_initTime += other.m_initTime;
+		m_firstPassTime += other.m_firstPassTime;
+		m_optimizationTime += other.m_optimizationTime;
+		m_secondPassTime += other.m_secondPassTime;
+		m_totalTime += other.m_totalTime;
+		m_jobs += other.m_jobs;
+	}
+
+	/************************************************************************************
+	 *  Returns the file (or "<memory>") that was assembled, null for a sum of jobs.
+	 ***********************************************************************************/
+	public String getSource()
+	{
+		return m_source;
+	}
+
+	public long getLinesRead()
+	{
+		return m_linesRead;
+	}
+
+	public long getBytesRead()
+	{
+		return m_bytesRead;
+	}
+
+	public long getALiterals()
+	{
+		return m_aLiterals;
+	}
+
+	public long getASymbols()
+	{
+		return m_aSymbols;
+	}
+
+	public long getCCommands()
+	{
+		return m_cCommands;
+	}
+
+	public long getLabels()
+	{
+		return m_labels;
+	}
+
+	/************************************************************************************
+	 *  Returns the number of lines that are not commands (comments, blank lines).
+	 ***********************************************************************************/
+	public long getOtherLines()
+	{
+		return m_otherLines;
+	}
+
+	/************************************************************************************
+	 *  Returns the number of instructions removed by the PeepholeOptimizer (0 if the
+	 *  job was not optimized).
+	 ***********************************************************************************/
+	public long getInstructionsSaved()
+	{
+		return m_instructionsSaved;
+	}
+
+	/************************************************************************************
+	 *  Returns the number of labels and variables added to the symbol table.
+	 ***********************************************************************************/
+	public long getSymbols()
+	{
+		return m_symbols;
+	}
+
+	/************************************************************************************
+	 *  Returns the number of variables that were given a RAM address.
+	 ***********************************************************************************/
+	public long getVariables()
+	{
+		return m_variables;
+	}
+
+	public long getWords()
+	{
+		return m_words;
+	}
+
+	/************************************************************************************
+	 *  Returns the number of bytes written to the .hack file (and the .rom image).
+	 ***********************************************************************************/
+	public long getBytesWritten()
+	{
+		return m_bytesWritten;
+	}
+
+	public long getInitTime()
+	{
+		return m_initTime;
+	}
+
+	public long getFirstPassTime()
+	{
+		return m_firstPassTime;
+	}
+
+	public long getOptimizationTime()
+	{
+		return m_optimizationTime;
+	}
+
+	public long getSecondPassTime()
+	{
+		return m_secondPassTime;
+	}
+
+	public long getTotalTime()
+	{
+		return m_totalTime;
+	}
+
+	public int getJobs()
+	{
+		return m_jobs;
+	}
+
+	/************************************************************************************
+	 *  Returns the number of words assembled per second of total time.
+	 ***********************************************************************************/
+	public double getWordsPerSecond()
+	{
+		return ( m_totalTime > 0 ) ? m_words * 1e9 / m_totalTime : 0;
+	}
+
+	/************************************************************************************
+	 *  Returns the metrics as a JSON object on one line (times are in nanoseconds).
+	 ***********************************************************************************/
+	public String toJson()
+	{
+		StringBuilder json = new StringBuilder( 512 );
+
+		json.append( '{' );
+
+		if( m_source != null )
+			json.append( "\"source\":" ).append( quote( m_source ) ).append( ',' );
+
+		json.append( "\"jobs\":" ).append( m_jobs )
+			.append( ",\"linesRead\":" ).append( m_linesRead )
+			.append( ",\"bytesRead\":" ).append( m_bytesRead )
+			.append( ",\"aLiterals\":" ).append( m_aLiterals )
+			.append( ",\"aSymbols\":" ).append( m_aSymbols )
+			.append( ",\"cCommands\":" ).append( m_cCommands )
+			.append( ",\"labels\":" ).append( m_labels )
+			.append( ",\"otherLines\":" ).append( m_otherLines )
+			.append( ",\"instructionsSaved\":" ).append( m_instructionsSaved )
+			.append( ",\"symbols\":" ).append( m_symbols )
+			.append( ",\"variables\":" ).append( m_variables )
+			.append( ",\"words\":" ).append( m_words )
+			.append( ",\"bytesWritten\":" ).append( m_bytesWritten )
+			.append( ",\"initTime\":" ).append( m_initTime )
+			.append( ",\"firstPassTime\":" ).append( m_firstPassTime )
+			.append( ",\"optimizationTime\":" ).append( m_optimizationTime )
+			.append( ",\"secondPassTime\":" ).append( m_secondPassTime )
+			.append( ",\"totalTime\":" ).append( m_totalTime )
+			.append( ",\"wordsPerSecond\":" ).append( Math.round( getWordsPerSecond() ) )
+			.append( '}' );
+
+		return json.toString();
+	}
+
+	/************************************************************************************
+	 *  Returns the text as a JSON string literal.
+	 ***********************************************************************************/
+	static String quote( String text )
+	{
+		StringBuilder quoted = new StringBuilder( text.length() + 2 );
+
+		quoted.append( '"' );
+
+		for( int i = 0; i < text.length(); i++ )
+		{
+			char c = text.charAt( i );
+
+			if( ( c == '"' ) || ( c == '\\' ) )
+				quoted.append( '\\' ).append( c );
+			else if( c < 0x20 )
+				quoted.append( String.format( "\\u%04x", (int)c ) );
+			else
+				quoted.append( c );
+		}
+
+		return quoted.append( '"' ).toString();
+	}
+}
@@ -0,0 +1,347 @@
+package hack.bp.assembler;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/****************************************************************************************
+ *  Assembler that stays resident and takes its jobs from a socket, so the clients (an
+ *  editor, a build) do not pay for starting a JVM and warming up the JIT on every file.
+ *  The server only listens on the loopback address. Every connection is served by a
+ *  thread of a fixed pool with its own Assembler, so up to MAX_CONNECTIONS clients are
+ *  served at once (the others wait for a thread).
+ *
+ *  A connection carries any number of requests, one after the other. A request is a
+ *  line of ASCII text; the reply is a line starting with OK or ERROR:
+ *
+ *  	ASSEMBLE [-rom] <fileName>.asm
+ *  		Assembles the file on the server's disk, like the command line would.
+ *  		Reply: "OK <words> <elapsed ns>"
+ *  	SOURCE <byteCount>
+ *  		Followed by byteCount bytes of assembly source (at most MAX_SOURCE).
+ *  		Nothing is read from or written to the disk. Reply: "OK <words> <elapsed
+ *  		ns>" followed by the .hack text (17 bytes per word).
+ *  	PING
+ *  		Reply: "OK"
+ *  	QUIT
+ *  		Closes the connection.
+ *
+ *  Errors in the source are returned as "ERROR <message>" and the connection stays
+ *  open.
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ *	0.2 -	The SOURCE length is limited to MAX_SOURCE and the connections are served
+ *			by a fixed number of threads. -bp
+ ***************************************************************************************/
+public class AssemblerServer
+{
+	public final static int DEF_PORT = 4747;
+	public final static int MAX_SOURCE = 64 * 1024 * 1024;
+	public final static int MAX_CONNECTIONS = 32;
+
+	private final static int LINE_LENGTH = 17;
+	private final static int MAX_REQUEST_LINE = 4096;
+
+	private ServerSocket m_serverSocket = null;
+	private ExecutorService m_executor = null;
+
+	/************************************************************************************
+	 *  Starts the server on the given port (or DEF_PORT) and serves until killed.
+	 ***********************************************************************************/
+	public static void main( String[] args )
+	{
+		int port = DEF_PORT;
+
+		if( ( args.length > 1 ) && args[ 0 ].equals( "-port" ) )
+			port = Integer.parseInt( args[ 1 ] );
+		else if( args.length > 0 )
+		{
+			System.out.println( "Usage: <program> [-port <port>]" +
+					"\n\t -Serves assembly requests on 127.0.0.1 (port " + DEF_PORT +
+					" by default)." );
+			return;
+		}
+
+		try
+		{
+			AssemblerServer server = new AssemblerServer( port );
+
+			System.out.println( "Server: Listening on " +
+					server.m_serverSocket.getLocalSocketAddress() + "..." );
+			server.serve();
+		}
+		catch (IOException e)
+		{
+			System.out.println( "Server: " + e.getMessage() );
+			System.exit( 1 );
+		}
+	}
+
+	/************************************************************************************
+	 *  Binds the server socket to the loopback address. A port of 0 picks a free one
+	 *  (see getPort()).
+	 ***********************************************************************************/
+	public AssemblerServer( int port ) throws IOException
+	{
+		this.m_serverSocket = new ServerSocket( port, 50, InetAddress.getByName( null ) );
+		this.m_executor = Executors.newFixedThreadPool( MAX_CONNECTIONS );
+	}
+
+	/************************************************************************************
+	 *  Returns the port the server is listening on.
+	 ***********************************************************************************/
+	public int getPort()
+	{
+		return m_serverSocket.getLocalPort();
+	}
+
+	/************************************************************************************
+	 *  Accepts connections until the server is closed. Each one is handed to a thread
+	 *  of the pool.
+	 ***********************************************************************************/
+	public void serve() throws IOException
+	{
+		try
+		{
+			while( !m_serverSocket.isClosed() )
+			{
+				final Socket socket;
+
+				try
+				{
+					socket = m_serverSocket.accept();
+				}
+				catch (IOException e)
+				{
+					// close() was called
+					if( m_serverSocket.isClosed() )
+						break;
+
+					throw e;
+				}
+
+				m_executor.execute( new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						handle( socket );
+					}
+				} );
+			}
+		}
+		finally
+		{
+			m_executor.shutdown();
+		}
+	}
+
+	/************************************************************************************
+	 *  Stops accepting connections. The requests in progress are finished.
+	 ***********************************************************************************/
+	public void close() throws IOException
+	{
+		m_serverSocket.close();
+	}
+
+	/************************************************************************************
+	 *  Serves the requests of one connection until the client quits or disconnects.
+	 ***********************************************************************************/
+	private void handle( Socket socket )
+	{
+		// One assembler per connection (an Assembler runs one job at a time)
+		Assembler assembler = new Assembler();
+		assembler.setVerbose( false );
+
+		try
+		{
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream( socket.getInputStream() ) );
+			OutputStream out = socket.getOutputStream();
+			String request = null;
+
+			while( ( request = readLine( in ) ) != null )
+			{
+				if( request.equals( "QUIT" ) )
+					break;
+
+				byte[] reply = null;
+
+				try
+				{
+					reply = serveRequest( assembler, request, in );
+				}
+				catch (RuntimeException e)
+				{
+					String message = ( e.getMessage() != null ) ? e.getMessage() : e.toString();
+
+					reply = ( "ERROR " + oneLine( message ) + "\n" ).getBytes( "US-ASCII" );
+				}
+
+				out.write( reply );
+				out.flush();
+			}
+		}
+		catch (IOException e)
+		{
+			// The client went away, nothing to reply to
+		}
+		finally
+		{
+			try
+			{
+				socket.close();
+			}
+			catch (IOException e)
+			{
+				// Already closed
+			}
+		}
+	}
+
+	/************************************************************************************
+	 *  Runs one request and returns the whole reply. Throws an AssemblerException (or
+	 *  another RuntimeException) for a request that fails.
+	 ***********************************************************************************/
+	private static byte[] serveRequest( Assembler assembler, String request,
+			DataInputStream in ) throws IOException
+	{
+		String[] tokens = request.trim().split( "\\s+", 2 );
+		String command = tokens[ 0 ];
+		String argument = ( tokens.length > 1 ) ? tokens[ 1 ] : "";
+
+		if( command.equals( "PING" ) )
+			return "OK\n".getBytes( "US-ASCII" );
+
+		if( command.equals( "ASSEMBLE" ) )
+		{
+			boolean writeRomImage = false;
+
+			if( argument.startsWith( "-rom " ) )
+			{
+				writeRomImage = true;
+				argument = argument.substring( 5 ).trim();
+			}
+
+			if( !argument.endsWith( ".asm" ) )
+				throw new AssemblerException( "Can only use file with .asm extension." );
+
+			long timerStart = System.nanoTime();
+
+			assembler.setWriteRomImage( writeRomImage );
+			int wordCount = assembler.assemble( argument );
+
+			return ( "OK " + wordCount + " " + ( System.nanoTime() - timerStart ) + "\n" )
+					.getBytes( "US-ASCII" );
+		}
+
+		if( command.equals( "SOURCE" ) )
+		{
+			int byteCount = -1;
+
+			try
+			{
+				byteCount = Integer.parseInt( argument );
+			}
+			catch (NumberFormatException e)
+			{
+				// Reported below
+			}
+
+			if( byteCount < 0 )
+				throw new AssemblerException( "Bad SOURCE length: " + argument );
+
+			// Too long: skipped, so the next request is read from the right place
+			if( byteCount > MAX_SOURCE )
+			{
+				skipFully( in, byteCount );
+				throw new AssemblerException( "SOURCE too long: " + byteCount +
+						" bytes (at most " + MAX_SOURCE + ")" );
+			}
+
+			// The source has to be read even if it does not assemble
+			byte[] source = new byte[ byteCount ];
+			in.readFully( source );
+
+			long timerStart = System.nanoTime();
+			ByteArrayOutputStream hack = new ByteArrayOutputStream( 
+					(int)Math.min( 2L * byteCount + LINE_LENGTH, Integer.MAX_VALUE ) );
+			int wordCount = assembler.assemble( ByteBuffer.wrap( source ),
+					Channels.newChannel( hack ) );
+			byte[] header = ( "OK " + wordCount + " " + ( System.nanoTime() - timerStart ) +
+					"\n" ).getBytes( "US-ASCII" );
+
+			// Header and words in one reply
+			byte[] reply = new byte[ header.length + hack.size() ];
+			System.arraycopy( header, 0, reply, 0, header.length );
+			System.arraycopy( hack.toByteArray(), 0, reply, header.length, hack.size() );
+
+			return reply;
+		}
+
+		throw new AssemblerException( "Unknown request: " + request );
+	}
+
+	/************************************************************************************
+	 *  Reads and drops count bytes.
+	 ***********************************************************************************/
+	private static void skipFully( DataInputStream in, int count ) throws IOException
+	{
+		byte[] bytes = new byte[ 64 * 1024 ];
+
+		while( count > 0 )
+		{
+			int skipped = in.read( bytes, 0, Math.min( count, bytes.length ) );
+
+			if( skipped < 0 )
+				throw new IOException( "The source ended early" );
+
+			count -= skipped;
+		}
+	}
+
+	/************************************************************************************
+	 *  Reads a request line (without its terminator), or returns null at the end of
+	 *  the stream.
+	 ***********************************************************************************/
+	private static String readLine( InputStream in ) throws IOException
+	{
+		StringBuilder line = new StringBuilder();
+		int c = 0;
+
+		while( ( c = in.read() ) != '\n' )
+		{
+			if( c < 0 )
+				return ( line.length() > 0 ) ? line.toString() : null;
+
+			if( line.length() == MAX_REQUEST_LINE )
+				throw new IOException( "Request line too long" );
+
+			if( c != '\r' )
+				line.append( (char)c );
+		}
+
+		return line.toString();
+	}
+
+	/************************************************************************************
+	 *  Keeps a message on one line so it cannot be taken for the next reply.
+	 ***********************************************************************************/
+	private static String oneLine( String message )
+	{
+		return ( message == null ) ? "" : message.replace( '\r', ' ' ).replace( '\n', ' ' );
+	}
+}
@@ -0,0 +1,355 @@
+package hack.bp.assembler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/****************************************************************************************
+ *  Assembles many files in one JVM. The arguments can be .asm files, directories (all
+ *  the .asm files under them) or globs such as "progs/**.asm". The files are split
+ *  over a fork-join pool that uses all the cores, and a summary with the time of every
+ *  file and the total throughput is printed once they are all done. A file found by
+ *  more than one argument is assembled once.
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ *	0.2 -	The metrics of every file and their sum can be printed as JSON instead of
+ *			the summary. -bp
+ *	0.3 -	The files can be run through the PeepholeOptimizer. -bp
+ *	0.4 -	The files can be assembled to object files for the Linker. -bp
+ *	0.5 -	The files can be assembled in a single pass. -bp
+ *	0.6 -	One run() that takes an assembler whose settings every job copies, instead
+ *			of an overload per option. -bp
+ *	0.7 -	The files are kept by canonical path, without duplicates, and the pool is
+ *			shut down after the batch. -bp
+ ***************************************************************************************/
+public class BatchAssembler
+{
+	private final static String GLOB_CHARACTERS = "*?[{";
+
+	/************************************************************************************
+	 *  Checks if the argument can only be handled by the batch mode (a directory or a
+	 *  glob).
+	 ***********************************************************************************/
+	public static boolean isBatchArgument( String argument )
+	{
+		return isGlob( argument ) || new File( argument ).isDirectory();
+	}
+
+	/************************************************************************************
+	 *  Assembles all the files found from the arguments and prints the summary, or the
+	 *  metrics as JSON if printMetrics is set. Every file is assembled by a copy of
+	 *  settings (see Assembler( Assembler )), without the progress messages. Returns
+	 *  true if every file was assembled.
+	 ***********************************************************************************/
+	public static boolean run( String[] arguments, Assembler settings, boolean printMetrics )
+	{
+		Set<File> found = new LinkedHashSet<File>();
+
+		// Keep the JSON alone on the standard output
+		PrintStream log = printMetrics ? System.err : System.out;
+
+		// Find the files
+		for( String argument : arguments )
+		{
+			try
+			{
+				if( !collect( argument, found ) )
+					log.println( "Batch: Nothing to assemble for '" + argument + "'" );
+			}
+			catch (IOException e)
+			{
+				log.println( "Batch: Couldn't read '" + argument + "': " + e.getMessage() );
+			}
+		}
+
+		if( found.isEmpty() )
+		{
+			log.println( "Batch: No .asm files found!" );
+			return false;
+		}
+
+		// Assemble them on all the cores
+		List<File> files = new ArrayList<File>( found );
+		Result[] results = new Result[ files.size() ];
+		ForkJoinPool pool = new ForkJoinPool();
+
+		long timerStart = System.nanoTime();
+
+		try
+		{
+			pool.invoke( new Job( files, results, 0, files.size(), settings ) );
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+
+		long timerEnd = System.nanoTime();
+
+		if( printMetrics )
+			return printMetrics( results, timerEnd - timerStart );
+
+		return printSummary( results, timerEnd - timerStart );
+	}
+
+	/************************************************************************************
+	 *  Adds the .asm files matching the argument, by canonical path (a file that is
+	 *  already in the set stays where it is). Returns false if there are none.
+	 ***********************************************************************************/
+	private static boolean collect( String argument, Set<File> found ) throws IOException
+	{
+		final List<File> files = new ArrayList<File>();
+
+		if( isGlob( argument ) )
+		{
+			// Walk from the deepest directory that has no glob characters in it
+			int firstGlob = argument.length();
+
+			for( int i = 0; i < GLOB_CHARACTERS.length(); i++ )
+			{
+				int index = argument.indexOf( GLOB_CHARACTERS.charAt( i ) );
+
+				if( index >= 0 )
+					firstGlob = Math.min( firstGlob, index );
+			}
+
+			int lastSeparator = Math.max( argument.lastIndexOf( '/', firstGlob ),
+					argument.lastIndexOf( File.separatorChar, firstGlob ) );
+			Path base = Paths.get( ( lastSeparator < 0 ) ? "." : argument.substring( 0, lastSeparator + 1 ) );
+			final PathMatcher matcher = FileSystems.getDefault().getPathMatcher( "glob:" + argument );
+			final boolean relative = ( lastSeparator < 0 );
+
+			if( Files.isDirectory( base ) )
+			{
+				Files.walkFileTree( base, new SimpleFileVisitor<Path>()
+				{
+					@Override
+					public FileVisitResult visitFile( Path file, BasicFileAttributes attributes )
+					{
+						Path path = relative ? file.subpath( 1, file.getNameCount() ) : file;
+
+						if( attributes.isRegularFile() && matcher.matches( path ) )
+							files.add( file.toFile() );
+
+						return FileVisitResult.CONTINUE;
+					}
+				} );
+			}
+		}
+		else if( new File( argument ).isDirectory() )
+		{
+			// Every .asm file under the directory
+			Files.walkFileTree( Paths.get( argument ), new SimpleFileVisitor<Path>()
+			{
+				@Override
+				public FileVisitResult visitFile( Path file, BasicFileAttributes attributes )
+				{
+					if( attributes.isRegularFile() && file.toString().endsWith( ".asm" ) )
+						files.add( file.toFile() );
+
+					return FileVisitResult.CONTINUE;
+				}
+			} );
+		}
+		else if( argument.endsWith( ".asm" ) && new File( argument ).isFile() )
+			files.add( new File( argument ) );
+
+		// Keep the order of the files stable from one build to the next
+		Collections.sort( files );
+
+		for( File file : files )
+			found.add( file.getCanonicalFile() );
+
+		return !files.isEmpty();
+	}
+
+	/************************************************************************************
+	 *  Checks if the argument has glob characters.
+	 ***********************************************************************************/
+	private static boolean isGlob( String argument )
+	{
+		for( int i = 0; i < GLOB_CHARACTERS.length(); i++ )
+		{
+			if( argument.indexOf( GLOB_CHARACTERS.charAt( i ) ) >= 0 )
+				return true;
+		}
+
+		return false;
+	}
+
+	/************************************************************************************
+	 *  Prints the time of every file and the totals. Returns true if no file failed.
+	 ***********************************************************************************/
+	private static boolean printSummary( Result[] results, long elapsedTime )
+	{
+		long totalWords = 0;
+		long totalTime = 0;
+		int failures = 0;
+
+		System.out.println( "Batch: Assembled files (time, words, file):" );
+
+		for( Result result : results )
+		{
+			if( result.m_error == null )
+			{
+				System.out.println( String.format( "  %10.3f ms %8d  %s",
+						result.m_elapsedTime / 1e6, result.m_wordCount, result.m_file ) );
+
+				totalWords += result.m_wordCount;
+			}
+			else
+			{
+				System.out.println( String.format( "  %10s    %8s  %s: %s",
+						"FAILED", "-", result.m_file, result.m_error ) );
+
+				failures++;
+			}
+
+			totalTime += result.m_elapsedTime;
+		}
+
+		double seconds = elapsedTime / 1e9;
+
+		System.out.println( String.format( "Batch: %d files (%d failed), %d words in %.3f ms " +
+				"(%.0f files/s, %.0f words/s, %.1fx parallel speed-up)",
+				results.length, failures, totalWords, elapsedTime / 1e6,
+				results.length / seconds, totalWords / seconds,
+				(double)totalTime / Math.max( elapsedTime, 1 ) ) );
+
+		return failures == 0;
+	}
+
+	/************************************************************************************
+	 *  Prints the metrics of every file, their sum and the throughput of the batch as
+	 *  one JSON object. Returns true if no file failed.
+	 ***********************************************************************************/
+	private static boolean printMetrics( Result[] results, long elapsedTime )
+	{
+		AssemblerMetrics total = new AssemblerMetrics();
+		StringBuilder json = new StringBuilder( "{\"files\":[" );
+		int failures = 0;
+
+		for( int i = 0; i < results.length; i++ )
+		{
+			Result result = results[ i ];
+
+			if( i > 0 )
+				json.append( ',' );
+
+			if( result.m_error == null )
+			{
+				json.append( result.m_metrics.toJson() );
+				total.add( result.m_metrics );
+			}
+			else
+			{
+				json.append( "{\"source\":" ).append( AssemblerMetrics.quote( result.m_file.getPath() ) )
+					.append( ",\"error\":" ).append( AssemblerMetrics.quote( result.m_error ) ).append( '}' );
+
+				failures++;
+			}
+		}
+
+		double seconds = elapsedTime / 1e9;
+
+		json.append( "],\"total\":" ).append( total.toJson() )
+			.append( ",\"failures\":" ).append( failures )
+			.append( ",\"elapsedTime\":" ).append( elapsedTime )
+			.append( ",\"filesPerSecond\":" ).append( Math.round( results.length / seconds ) )
+			.append( ",\"wordsPerSecond\":" ).append( Math.round( total.getWords() / seconds ) )
+			.append( '}' );
+
+		System.out.println( json );
+
+		return failures == 0;
+	}
+
+	/************************************************************************************
+	 *  Outcome of one file.
+	 ***********************************************************************************/
+	private static class Result
+	{
+		private File m_file = null;
+		private int m_wordCount = 0;
+		private long m_elapsedTime = 0;
+		private String m_error = null;
+		private AssemblerMetrics m_metrics = null;
+	}
+
+	/************************************************************************************
+	 *  Assembles the files in [start, end) by splitting the range in halves until a
+	 *  single file is left.
+	 ***********************************************************************************/
+	private static class Job extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private List<File> m_files = null;
+		private Result[] m_results = null;
+		private int m_start = 0;
+		private int m_end = 0;
+		private Assembler m_settings = null;
+
+		Job( List<File> files, Result[] results, int start, int end, Assembler settings )
+		{
+			this.m_files = files;
+			this.m_results = results;
+			this.m_start = start;
+			this.m_end = end;
+			this.m_settings = settings;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if( m_end - m_start > 1 )
+			{
+				int middle = ( m_start + m_end ) >>> 1;
+
+				invokeAll( new Job( m_files, m_results, m_start, middle, m_settings ),
+						new Job( m_files, m_results, middle, m_end, m_settings ) );
+				return;
+			}
+
+			Result result = new Result();
+			long timerStart = System.nanoTime();
+
+			result.m_file = m_files.get( m_start );
+
+			try
+			{
+				// Every job has its own assembler (the messages would interleave)
+				Assembler assembler = new Assembler( m_settings );
+
+				assembler.setVerbose( false );
+				result.m_wordCount = assembler.assemble( result.m_file.getPath() );
+				result.m_metrics = assembler.getMetrics();
+			}
+			catch (RuntimeException e)
+			{
+				result.m_error = ( e.getMessage() != null ) ? e.getMessage() : e.toString();
+			}
+
+			result.m_elapsedTime = System.nanoTime() - timerStart;
+			m_results[ m_start ] = result;
+		}
+	}
+}
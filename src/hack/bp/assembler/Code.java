@@ -1,5 +1,7 @@
 package hack.bp.assembler;
 
+import java.util.Arrays;
+
 /****************************************************************************************
  * 	This file is used to translate Hack Architecture mnemonics to its equivalent binary 
  *  form.	
@@ -20,259 +22,311 @@ package hack.bp.assembler;
  *			no side-effect. It actually allows flexibility
  *			by not requiring all characters to be in caps. -bp
  *
+ *	0.3 -	Replaced the if/else chains with tables. Every
+ *			mnemonic is at most 3 characters long, so its
+ *			upper-case characters are packed into an int key
+ *			that is looked up with a perfect hash (one probe,
+ *			one compare). The static int methods return the
+ *			bits (or a whole C_COMMAND word) without any
+ *			String work; the String methods are kept on top
+ *			of them. Fixed the bits of !A and JGE. -bp
+ *
  ***************************************************************************************/
 
-public class Code 
+public class Code
 {
+	public final static int UNKNOWN = -1;
+
+	private final static int C_COMMAND_PREFIX = 0xE000;
+	private final static int MAX_MNEMONIC_LENGTH = 3;
+	private final static int TABLE_BITS = 7;
+
+	private final static String[] DEST_MNEMONICS =
+		{ "", "M", "D", "MD", "A", "AM", "AD", "AMD" };
+
+	private final static String[] JUMP_MNEMONICS =
+		{ "", "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP" };
+
+	// Comp mnemonics and their bits (the 'a' bit is the highest of the 7 bits)
+	private final static String[] COMP_MNEMONICS =
+		{ "0", "1", "-1", "D", "A", "M", "!D", "!A", "!M", "-D", "-A", "-M",
+		  "D+1", "A+1", "M+1", "D-1", "A-1", "M-1", "D+A", "D+M", "D-A", "D-M",
+		  "A-D", "M-D", "D&A", "D&M", "D|A", "D|M" };
+
+	private final static int[] COMP_BITS =
+		{ 0x2A, 0x3F, 0x3A, 0x0C, 0x30, 0x70, 0x0D, 0x31, 0x71, 0x0F, 0x33, 0x73,
+		  0x1F, 0x37, 0x77, 0x0E, 0x32, 0x72, 0x02, 0x42, 0x13, 0x53,
+		  0x07, 0x47, 0x00, 0x40, 0x15, 0x55 };
+
+	private final static Table DEST_TABLE = new Table( DEST_MNEMONICS, null );
+	private final static Table COMP_TABLE = new Table( COMP_MNEMONICS, COMP_BITS );
+	private final static Table JUMP_TABLE = new Table( JUMP_MNEMONICS, null );
+
+	private final static String[] COMP_BY_BITS = new String[ 1 << 7 ];
+
+	static
+	{
+		for( int i = 0; i < COMP_MNEMONICS.length; i++ )
+			COMP_BY_BITS[ COMP_BITS[ i ] ] = COMP_MNEMONICS[ i ];
+	}
+
 	/************************************************************************************
 	 *  Returns the machine code that corresponds to the dest mnemonics. (8 types)
 	 ***********************************************************************************/
 	public String dest( String mnemonic )
 	{
-		String stringBits = "";
-		
-		if( mnemonic.equalsIgnoreCase( "" ) )
-		{
-			stringBits = "000";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "M" ) )
-		{
-			stringBits = "001";
-		}
-		
-		else if( mnemonic .equalsIgnoreCase( "D" ) )
-		{
-			stringBits = "010";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "MD" ) )
-		{
-			stringBits = "011";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "A" ) )
-		{
-			stringBits = "100";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "AM" ) )
-		{
-			stringBits = "101";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "AD" ) )
-		{
-			stringBits = "110";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "AMD" ) )
-		{
-			stringBits = "111";
-		}
-	
-		return stringBits;	
+		return toBits( destBits( mnemonic ), 3 );
 	}
-	
+
 	/************************************************************************************
 	 *  Returns the machine code that corresponds to the comp mnemonics. Note
-	 *  that the 'a' bit in a C_COMMAND is appended as a prefix in the 
+	 *  that the 'a' bit in a C_COMMAND is appended as a prefix in the
 	 *  stringBits. (28 types)
 	 ***********************************************************************************/
 	public String comp( String mnemonic )
 	{
-		String stringBits = "";
-		
-		if( mnemonic.equalsIgnoreCase( "0" ) )
-		{
-			stringBits = "0101010";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "1" ) )
-		{
-			stringBits = "0111111";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "-1" ) )
-		{
-			stringBits = "0111010";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "D" ) )
-		{
-			stringBits = "0001100";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "A" ) )
-		{
-			stringBits = "0110000";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "M" ) )
-		{
-			stringBits = "1110000";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "!D" ) )
-		{
-			stringBits = "0001101";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "!A" ) )
-		{
-			stringBits = "0110011";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "!M" ) )
-		{
-			stringBits = "1110001";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "-D" ) )
-		{
-			stringBits = "0001111";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "-A" ) )
-		{
-			stringBits = "0110011";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "-M" ) )
-		{
-			stringBits = "1110011";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "D+1" ) )
-		{
-			stringBits = "0011111";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "A+1" ) )
-		{
-			stringBits = "0110111";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "M+1" ) )
-		{
-			stringBits = "1110111";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "D-1" ) )
-		{
-			stringBits = "0001110";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "A-1" ) )
-		{
-			stringBits = "0110010";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "M-1" ) )
-		{
-			stringBits = "1110010";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "D+A" ) )
-		{
-			stringBits = "0000010";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "D+M" ) )
-		{
-			stringBits = "1000010";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "D-A" ) )
-		{
-			stringBits = "0010011";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "D-M" ) )
-		{
-			stringBits = "1010011";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "A-D" ) )
-		{
-			stringBits = "0000111";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "M-D" ) )
-		{
-			stringBits = "1000111";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "D&A" ) )
-		{
-			stringBits = "0000000";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "D&M" ) )
-		{
-			stringBits = "1000000";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "D|A" ) )
-		{
-			stringBits = "0010101";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "D|M" ) )
-		{
-			stringBits = "1010101";
-		}
-		
-		return stringBits;
+		return toBits( compBits( mnemonic ), 7 );
 	}
-	
+
 	/************************************************************************************
 	 *  Returns the machine code that corresponds to the jump mnemonics.
 	 ***********************************************************************************/
 	public String jump( String mnemonic )
 	{
-		String stringBits = "";
-		
-		if( mnemonic.isEmpty() )
-		{
-			stringBits = "000";
-		}
-		
-		else if( mnemonic.equalsIgnoreCase( "JGT" )  )
+		return toBits( jumpBits( mnemonic ), 3 );
+	}
+
+	/************************************************************************************
+	 *  Returns the 3 dest bits of the mnemonic, or UNKNOWN.
+	 ***********************************************************************************/
+	public static int destBits( CharSequence mnemonic )
+	{
+		return DEST_TABLE.lookup( mnemonic, 0, mnemonic.length() );
+	}
+
+	/************************************************************************************
+	 *  Returns the 7 comp bits (a-bit first) of the mnemonic, or UNKNOWN.
+	 ***********************************************************************************/
+	public static int compBits( CharSequence mnemonic )
+	{
+		return COMP_TABLE.lookup( mnemonic, 0, mnemonic.length() );
+	}
+
+	/************************************************************************************
+	 *  Returns the 3 jump bits of the mnemonic, or UNKNOWN.
+	 ***********************************************************************************/
+	public static int jumpBits( CharSequence mnemonic )
+	{
+		return JUMP_TABLE.lookup( mnemonic, 0, mnemonic.length() );
+	}
+
+	/************************************************************************************
+	 *  Returns the 3 dest bits of the mnemonic in chars[start, end), or UNKNOWN.
+	 ***********************************************************************************/
+	public static int destBits( char[] chars, int start, int end )
+	{
+		return DEST_TABLE.lookup( chars, start, end );
+	}
+
+	/************************************************************************************
+	 *  Returns the 7 comp bits of the mnemonic in chars[start, end), or UNKNOWN.
+	 ***********************************************************************************/
+	public static int compBits( char[] chars, int start, int end )
+	{
+		return COMP_TABLE.lookup( chars, start, end );
+	}
+
+	/************************************************************************************
+	 *  Returns the 3 jump bits of the mnemonic in chars[start, end), or UNKNOWN.
+	 ***********************************************************************************/
+	public static int jumpBits( char[] chars, int start, int end )
+	{
+		return JUMP_TABLE.lookup( chars, start, end );
+	}
+
+	/************************************************************************************
+	 *  Returns the 16-bit C_COMMAND word for the given bits, or UNKNOWN if any of
+	 *  them is UNKNOWN.
+	 ***********************************************************************************/
+	public static int cCommand( int destBits, int compBits, int jumpBits )
+	{
+		if( ( destBits < 0 ) || ( compBits < 0 ) || ( jumpBits < 0 ) )
+			return UNKNOWN;
+
+		return C_COMMAND_PREFIX | ( compBits << 6 ) | ( destBits << 3 ) | jumpBits;
+	}
+
+	/************************************************************************************
+	 *  Returns the 16-bit word of a tokenized C_COMMAND, or UNKNOWN if one of its
+	 *  mnemonics is not recognized.
+	 ***********************************************************************************/
+	public static int cCommand( Instruction instruction )
+	{
+		char[] chars = instruction.getChars();
+
+		return cCommand(
+				DEST_TABLE.lookup( chars, instruction.getDestStart(), instruction.getDestEnd() ),
+				COMP_TABLE.lookup( chars, instruction.getCompStart(), instruction.getCompEnd() ),
+				JUMP_TABLE.lookup( chars, instruction.getJumpStart(), instruction.getJumpEnd() ) );
+	}
+
+	/************************************************************************************
+	 *  Returns the dest mnemonic of the 3 dest bits.
+	 ***********************************************************************************/
+	public static String destMnemonic( int bits )
+	{
+		return DEST_MNEMONICS[ bits & 0x7 ];
+	}
+
+	/************************************************************************************
+	 *  Returns the comp mnemonic of the 7 comp bits, or null if the bits are not one
+	 *  of the 28 comp instructions.
+	 ***********************************************************************************/
+	public static String compMnemonic( int bits )
+	{
+		return COMP_BY_BITS[ bits & 0x7F ];
+	}
+
+	/************************************************************************************
+	 *  Returns the jump mnemonic of the 3 jump bits.
+	 ***********************************************************************************/
+	public static String jumpMnemonic( int bits )
+	{
+		return JUMP_MNEMONICS[ bits & 0x7 ];
+	}
+
+	/************************************************************************************
+	 *  Formats the bits as a binary string of the given width ("" for UNKNOWN).
+	 ***********************************************************************************/
+	private static String toBits( int bits, int width )
+	{
+		if( bits < 0 )
+			return "";
+
+		char[] digits = new char[ width ];
+
+		for( int i = 0; i < width; i++ )
+			digits[ i ] = (char)( '0' + ( ( bits >>> ( width - 1 - i ) ) & 1 ) );
+
+		return new String( digits );
+	}
+
+	/************************************************************************************
+	 *  Perfect hash table from a mnemonic to its bits. The upper-cased characters of a
+	 *  mnemonic (at most 3) are packed 7 bits each into an int key, and the key is
+	 *  multiplied by a constant picked when the table is built so that no two of the
+	 *  mnemonics land in the same slot. A lookup is one multiply, one shift and one
+	 *  compare.
+	 ***********************************************************************************/
+	private static class Table
+	{
+		private final int[] m_keys = new int[ 1 << TABLE_BITS ];
+		private final int[] m_values = new int[ 1 << TABLE_BITS ];
+		private int m_multiplier = 0;
+
+		/********************************************************************************
+		 *  Builds the table. The value of a mnemonic is values[ i ], or its index when
+		 *  values is null.
+		 *******************************************************************************/
+		Table( String[] mnemonics, int[] values )
 		{
-			stringBits = "001";
+			int[] keys = new int[ mnemonics.length ];
+
+			for( int i = 0; i < mnemonics.length; i++ )
+				keys[ i ] = key( mnemonics[ i ], 0, mnemonics[ i ].length() );
+
+			// Search for a multiplier without collisions (odd constants, deterministic)
+			for( int multiplier = 0x9E3779B1; ; multiplier += 0x6A09E668 )
+			{
+				if( fill( keys, values, multiplier ) )
+				{
+					m_multiplier = multiplier;
+					break;
+				}
+			}
 		}
-		
-		else if( mnemonic.equalsIgnoreCase( "JEQ" ) )
+
+		/********************************************************************************
+		 *  Tries to place every key with the multiplier. Returns false on a collision.
+		 *******************************************************************************/
+		private boolean fill( int[] keys, int[] values, int multiplier )
 		{
-			stringBits = "010";
+			Arrays.fill( m_keys, UNKNOWN );
+
+			for( int i = 0; i < keys.length; i++ )
+			{
+				int slot = ( keys[ i ] * multiplier ) >>> ( 32 - TABLE_BITS );
+
+				if( m_keys[ slot ] != UNKNOWN )
+					return false;
+
+				m_keys[ slot ] = keys[ i ];
+				m_values[ slot ] = ( values == null ) ? i : values[ i ];
+			}
+
+			return true;
 		}
-		
-		else if( mnemonic.equalsIgnoreCase( "JGE" ) )
+
+		/********************************************************************************
+		 *  Returns the value of the mnemonic in chars[start, end), or UNKNOWN.
+		 *******************************************************************************/
+		int lookup( char[] chars, int start, int end )
 		{
-			stringBits = "001";
+			if( end - start > MAX_MNEMONIC_LENGTH )
+				return UNKNOWN;
+
+			int key = 0;
+
+			for( int i = start; i < end; i++ )
+				key = ( key << 7 ) | upperCase( chars[ i ] );
+
+			return find( key | ( ( end - start ) << 21 ) );
 		}
-		
-		else if( mnemonic.equalsIgnoreCase( "JLT" ) )
+
+		/********************************************************************************
+		 *  Returns the value of the mnemonic in text[start, end), or UNKNOWN.
+		 *******************************************************************************/
+		int lookup( CharSequence text, int start, int end )
 		{
-			stringBits = "100";
+			if( end - start > MAX_MNEMONIC_LENGTH )
+				return UNKNOWN;
+
+			return find( key( text, start, end ) );
 		}
-		
-		else if( mnemonic.equalsIgnoreCase( "JNE" ) )
+
+		/********************************************************************************
+		 *  Returns the value stored under the key, or UNKNOWN.
+		 *******************************************************************************/
+		private int find( int key )
 		{
-			stringBits = "101";
+			int slot = ( key * m_multiplier ) >>> ( 32 - TABLE_BITS );
+
+			return ( m_keys[ slot ] == key ) ? m_values[ slot ] : UNKNOWN;
 		}
-		
-		else if( mnemonic.equalsIgnoreCase( "JLE" ) )
+
+		/********************************************************************************
+		 *  Packs the upper-cased characters and the length of a mnemonic into a key.
+		 *******************************************************************************/
+		private static int key( CharSequence text, int start, int end )
 		{
-			stringBits = "110";
+			int key = 0;
+
+			for( int i = start; i < end; i++ )
+				key = ( key << 7 ) | upperCase( text.charAt( i ) );
+
+			return key | ( ( end - start ) << 21 );
 		}
-		
-		else if( mnemonic.equalsIgnoreCase( "JMP" ) )
-		{
-			stringBits = "111";
+
+		/********************************************************************************
+		 *  Upper-cases an ASCII letter. Anything outside 7-bit ASCII is mapped to 0x7F,
+		 *  which no mnemonic uses.
+		 *******************************************************************************/
+		private static int upperCase( char c )
+		{
+			if( ( c >= 'a' ) && ( c <= 'z' ) )
+				return c - ( 'a' - 'A' );
+
+			return ( c < 0x7F ) ? c : 0x7F;
 		}
-		
-		return stringBits;
 	}
 }
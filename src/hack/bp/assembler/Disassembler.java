@@ -0,0 +1,406 @@
+package hack.bp.assembler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/****************************************************************************************
+ *  Turns machine code (.hack text or a .rom image) back into Hack assembly.
+ *
+ *  The text of every possible 16-bit word is computed once, from the same mnemonics as
+ *  Code (its reverse lookups), into one byte array with an offset per word. After that
+ *  a word is disassembled with one table lookup and one copy into the output buffer.
+ *  Words that no assembly line can produce (a C_COMMAND without the 111 prefix, or
+ *  with comp bits that are not one of the 28 functions) have no text: they are written
+ *  as a comment with their bits and counted, see getUnknownWords(). A command with
+ *  neither dest nor jump is written as "comp;" (the Parser needs a = or a ;).
+ *
+ *  With setLabels( true ) the targets of the jumps (an @ followed by a jump) get a
+ *  label, (L<address>), and the @ before the jump refers to it. Assembling the output
+ *  gives the same words back, see verify().
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ *	0.2 -	The digits of an unknown word come from the table of HackWriter. -bp
+ *	0.3 -	-verify with an output file writes the file first (it was ignored). -bp
+ ***************************************************************************************/
+public class Disassembler
+{
+	private final static int WORD_COUNT = 1 << 16;
+	private final static int C_COMMAND_PREFIX = 0xE000;
+	private final static int DEF_BUFFER_SIZE = 64 * 1024;
+	private final static String LABEL_PREFIX = "L";
+
+	// Text of every word, back to back ("@123", "AM=M-1;JGT"...), empty if unknown
+	private final static byte[] TEXT;
+	private final static int[] OFFSETS = new int[ WORD_COUNT + 1 ];
+
+	static
+	{
+		StringBuilder text = new StringBuilder( WORD_COUNT * 8 );
+
+		for( int word = 0; word < WORD_COUNT; word++ )
+		{
+			OFFSETS[ word ] = text.length();
+
+			// A_COMMAND
+			if( word < 0x8000 )
+			{
+				text.append( '@' ).append( word );
+				continue;
+			}
+
+			// C_COMMAND
+			String comp = Code.compMnemonic( word >>> 6 );
+
+			if( ( ( word & C_COMMAND_PREFIX ) != C_COMMAND_PREFIX ) || ( comp == null ) )
+				continue;
+
+			String dest = Code.destMnemonic( word >>> 3 );
+			String jump = Code.jumpMnemonic( word );
+
+			if( dest.length() > 0 )
+				text.append( dest ).append( '=' );
+
+			text.append( comp );
+
+			// Without dest and jump the ; is still written, the Parser needs a = or a ;
+			if( ( jump.length() > 0 ) || ( dest.length() == 0 ) )
+				text.append( ';' ).append( jump );
+		}
+
+		OFFSETS[ WORD_COUNT ] = text.length();
+
+		// Only ASCII characters
+		TEXT = new byte[ text.length() ];
+
+		for( int i = 0; i < TEXT.length; i++ )
+			TEXT[ i ] = (byte)text.charAt( i );
+	}
+
+	private boolean m_labels = false;
+	private int m_unknownWords = 0;
+
+	/************************************************************************************
+	 *  Disassembles a program to a file (or to the standard output).
+	 ***********************************************************************************/
+	public static void main( String[] args )
+	{
+		int argIndex = 0;
+		boolean labels = false;
+		boolean verify = false;
+
+		// Check for the options
+		for( ; ( args.length > argIndex ) && args[ argIndex ].startsWith( "-" ); argIndex++ )
+		{
+			if( args[ argIndex ].equals( "-labels" ) )
+				labels = true;
+			else if( args[ argIndex ].equals( "-verify" ) )
+				verify = true;
+			else
+				break;
+		}
+
+		if( ( args.length <= argIndex ) ||
+				!( args[ argIndex ].endsWith( ".hack" ) || args[ argIndex ].endsWith( ".rom" ) ) )
+		{
+			System.out.println( "Usage: <program> [-labels] [-verify] <fileName>.hack|.rom [<output>.asm]" +
+					"\n\t -Writes the assembly to the output file (or the standard output)." +
+					"\n\t -labels: add labels for the jump targets." +
+					"\n\t -verify: assemble the output again and check that it gives the same words" +
+					"\n\t  (only the check is printed if there is no output file)." );
+			return;
+		}
+
+		try
+		{
+			short[] words = readProgram( new File( args[ argIndex ] ) );
+			Disassembler disassembler = new Disassembler();
+
+			disassembler.setLabels( labels );
+
+			boolean toFile = ( args.length > argIndex + 1 );
+
+			if( toFile || !verify )
+			{
+				WritableByteChannel out = toFile ?
+						new FileOutputStream( args[ argIndex + 1 ] ).getChannel() :
+						Channels.newChannel( System.out );
+
+				try
+				{
+					disassembler.disassemble( words, out );
+				}
+				finally
+				{
+					if( toFile )
+						out.close();
+					else
+						System.out.flush();
+				}
+
+				if( disassembler.getUnknownWords() > 0 )
+					System.err.println( "Disassembler: " + disassembler.getUnknownWords() +
+							" words have no assembly and were written as comments!" );
+			}
+
+			if( verify )
+			{
+				long timerStart = System.nanoTime();
+				int mismatch = disassembler.verify( words );
+				long timerEnd = System.nanoTime();
+
+				if( mismatch >= 0 )
+				{
+					System.out.println( "Disassembler: Round trip differs at word " + mismatch + "!" );
+					System.exit( 1 );
+				}
+
+				System.out.println( "Disassembler: Round trip of " + words.length +
+						" words verified (elapsed time: " + ( timerEnd - timerStart ) + "ns)" );
+			}
+		}
+		catch (IOException e)
+		{
+			System.out.println( "Disassembler: " + e.getMessage() );
+			System.exit( 1 );
+		}
+	}
+
+	/************************************************************************************
+	 *  Sets whether labels are added for the jump targets (off by default).
+	 ***********************************************************************************/
+	public void setLabels( boolean labels )
+	{
+		m_labels = labels;
+	}
+
+	/************************************************************************************
+	 *  Returns the number of words of the last disassemble() that had no text.
+	 ***********************************************************************************/
+	public int getUnknownWords()
+	{
+		return m_unknownWords;
+	}
+
+	/************************************************************************************
+	 *  Returns the assembly of one word, or null if it has none.
+	 ***********************************************************************************/
+	public static String decode( int word )
+	{
+		word &= 0xFFFF;
+
+		int start = OFFSETS[ word ];
+		int end = OFFSETS[ word + 1 ];
+
+		return ( start == end ) ? null : new String( TEXT, start, end - start, StandardCharsets.US_ASCII );
+	}
+
+	/************************************************************************************
+	 *  Writes the assembly of the words to the channel (which is left open), one line
+	 *  per word (plus the labels). Returns the number of bytes written.
+	 ***********************************************************************************/
+	public long disassemble( short[] words, WritableByteChannel out ) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate( DEF_BUFFER_SIZE );
+		boolean[] targets = m_labels ? findTargets( words ) : null;
+		long bytesWritten = 0;
+
+		m_unknownWords = 0;
+
+		for( int i = 0; i < words.length; i++ )
+		{
+			int word = words[ i ] & 0xFFFF;
+
+			// Room for the longest line: a label, and an @ or a comment
+			if( buffer.remaining() < 64 )
+				bytesWritten += flush( buffer, out );
+
+			if( ( targets != null ) && targets[ i ] )
+				putAscii( buffer, "(" + LABEL_PREFIX + i + ")\n" );
+
+			int start = OFFSETS[ word ];
+			int end = OFFSETS[ word + 1 ];
+
+			if( start == end )
+			{
+				byte[] digits = new byte[ 16 ];
+
+				HackWriter.encode( word, digits, 0 );
+				putAscii( buffer, "// Unknown word " );
+				buffer.put( digits );
+				m_unknownWords++;
+			}
+			else if( ( targets != null ) && isJumpTarget( words, i, word ) )
+				putAscii( buffer, "@" + LABEL_PREFIX + word );
+			else
+				buffer.put( TEXT, start, end - start );
+
+			buffer.put( (byte)'\n' );
+		}
+
+		return bytesWritten + flush( buffer, out );
+	}
+
+	/************************************************************************************
+	 *  Disassembles the words, assembles the text again (in memory) and compares.
+	 *  Returns the index of the first word that differs, or -1 if they are all the same.
+	 ***********************************************************************************/
+	public int verify( short[] words ) throws IOException
+	{
+		ByteArrayOutputStream text = new ByteArrayOutputStream( words.length * 8 );
+
+		disassemble( words, Channels.newChannel( text ) );
+
+		// The words as .hack text, before and after the round trip
+		ByteArrayOutputStream original = new ByteArrayOutputStream( words.length * 17 );
+		ByteArrayOutputStream assembled = new ByteArrayOutputStream( words.length * 17 );
+		HackWriter writer = new HackWriter( Channels.newChannel( original ) );
+		int[] values = new int[ words.length ];
+
+		for( int i = 0; i < words.length; i++ )
+			values[ i ] = words[ i ] & 0xFFFF;
+
+		writer.writeWords( values, 0, values.length );
+		writer.flush();
+
+		Assembler assembler = new Assembler();
+
+		assembler.setVerbose( false );
+		assembler.assemble( ByteBuffer.wrap( text.toByteArray() ), Channels.newChannel( assembled ) );
+
+		byte[] before = original.toByteArray();
+		byte[] after = assembled.toByteArray();
+
+		if( Arrays.equals( before, after ) )
+			return -1;
+
+		// Find the first line that differs (every line is 17 bytes)
+		int length = Math.min( before.length, after.length );
+
+		for( int i = 0; i < length; i++ )
+		{
+			if( before[ i ] != after[ i ] )
+				return i / 17;
+		}
+
+		return length / 17;
+	}
+
+	/************************************************************************************
+	 *  Marks the addresses that are loaded by an @ right before a jump.
+	 ***********************************************************************************/
+	private static boolean[] findTargets( short[] words )
+	{
+		boolean[] targets = new boolean[ words.length ];
+
+		for( int i = 0; i + 1 < words.length; i++ )
+		{
+			if( isJumpTarget( words, i, words[ i ] & 0xFFFF ) )
+				targets[ words[ i ] ] = true;
+		}
+
+		return targets;
+	}
+
+	/************************************************************************************
+	 *  Checks if the word at i is an @ of an address in the program that is followed
+	 *  by a jump.
+	 ***********************************************************************************/
+	private static boolean isJumpTarget( short[] words, int i, int word )
+	{
+		if( ( word >= 0x8000 ) || ( word >= words.length ) || ( i + 1 >= words.length ) )
+			return false;
+
+		int next = words[ i + 1 ] & 0xFFFF;
+
+		return ( ( next & C_COMMAND_PREFIX ) == C_COMMAND_PREFIX ) && ( ( next & 0x7 ) != 0 ) &&
+				( OFFSETS[ next ] != OFFSETS[ next + 1 ] );
+	}
+
+	/************************************************************************************
+	 *  Reads a program: a packed ROM image if the name ends with .rom, otherwise .hack
+	 *  text (one 16 digit binary word per line).
+	 ***********************************************************************************/
+	public static short[] readProgram( File file ) throws IOException
+	{
+		if( file.getName().endsWith( ".rom" ) )
+		{
+			ShortBuffer words = RomImage.read( file );
+			short[] program = new short[ words.remaining() ];
+
+			words.get( program );
+
+			return program;
+		}
+
+		byte[] text = Files.readAllBytes( file.toPath() );
+		short[] words = new short[ text.length / 17 + 1 ];
+		int count = 0;
+		int lineNumber = 1;
+		int word = 0;
+		int digits = 0;
+
+		for( int i = 0; i <= text.length; i++ )
+		{
+			int c = ( i < text.length ) ? text[ i ] : '\n';
+
+			if( ( c == '0' ) || ( c == '1' ) )
+			{
+				word = ( word << 1 ) | ( c - '0' );
+				digits++;
+			}
+			else if( c == '\n' )
+			{
+				if( ( digits != 0 ) && ( digits != 16 ) )
+					throw new IOException( file.getPath() + ": Line " + lineNumber + " is not a 16 bit word!" );
+
+				if( digits == 16 )
+				{
+					if( count == words.length )
+						words = Arrays.copyOf( words, count * 2 );
+
+					words[ count++ ] = (short)word;
+				}
+
+				word = 0;
+				digits = 0;
+				lineNumber++;
+			}
+			else if( c != '\r' )
+				throw new IOException( file.getPath() + ": Line " + lineNumber + " is not a 16 bit word!" );
+		}
+
+		return Arrays.copyOf( words, count );
+	}
+
+	private static void putAscii( ByteBuffer buffer, String text )
+	{
+		for( int i = 0; i < text.length(); i++ )
+			buffer.put( (byte)text.charAt( i ) );
+	}
+
+	private static long flush( ByteBuffer buffer, WritableByteChannel out ) throws IOException
+	{
+		long count = buffer.position();
+
+		buffer.flip();
+
+		while( buffer.hasRemaining() )
+			out.write( buffer );
+
+		buffer.clear();
+
+		return count;
+	}
+}
@@ -0,0 +1,312 @@
+package hack.bp.assembler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/****************************************************************************************
+ *  Writes the machine code in the .hack text format (one 16 digit binary word per line)
+ *  to a channel. The words are formatted straight into a reusable byte buffer which is
+ *  flushed to the channel whenever it fills up, so the memory used does not depend on
+ *  the size of the program.
+ *
+ *  writeWords() takes a whole array of words. Every line of the output is 17 bytes
+ *  long, so the place of each word is known in advance and a large array is formatted
+ *  by several threads at once (a block at a time, each block split in chunks over a
+ *  fork-join pool) before being written in one go.
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ *	0.2 -	Added writeWords() to format large arrays of words in parallel. -bp
+ *	0.3 -	Added patchWord() to rewrite a word written before (in the buffer, or in the
+ *			file when the channel is a FileChannel). -bp
+ *	0.4 -	The buffer is written by writeBuffer(), so that a subclass can override
+ *			flush() and close(). -bp
+ *	0.5 -	writeWord() stores the 8 digits of each byte from a table of longs (instead
+ *			of one digit per bit). patchWord() and the Disassembler use the table too. -bp
+ *	0.6 -	patchWord() fails if the file grew (it is appended to) instead of leaving the
+ *			word behind. -bp
+ ***************************************************************************************/
+public class HackWriter
+{
+	private final static int DEF_BUFFER_SIZE = 64 * 1024;
+	private final static int WORD_LENGTH = 16;
+	private final static int LINE_LENGTH = WORD_LENGTH + 1;
+
+	// Arrays smaller than this are formatted by the calling thread
+	private final static int PARALLEL_THRESHOLD = 16 * 1024;
+	private final static int BLOCK_WORDS = 256 * 1024;
+	private final static int CHUNK_WORDS = 8 * 1024;
+
+	// The 8 binary digits of every byte value, as bytes and packed in a long (the
+	// first digit in the highest byte, the buffer is big-endian)
+	private final static byte[] DIGITS = new byte[ 256 * 8 ];
+	private final static long[] PACKED_DIGITS = new long[ 256 ];
+
+	static
+	{
+		for( int value = 0; value < 256; value++ )
+		{
+			for( int bit = 0; bit < 8; bit++ )
+			{
+				DIGITS[ value * 8 + bit ] = (byte)( '0' + ( ( value >>> ( 7 - bit ) ) & 1 ) );
+				PACKED_DIGITS[ value ] = ( PACKED_DIGITS[ value ] << 8 ) | DIGITS[ value * 8 + bit ];
+			}
+		}
+	}
+
+	private WritableByteChannel m_channel = null;
+	private ByteBuffer m_buffer = null;
+	private long m_bytesWritten = 0;
+
+	// Position of the first byte in the file (-1 if the channel cannot seek)
+	private long m_startPosition = -1;
+
+	public HackWriter( WritableByteChannel channel )
+	{
+		this( channel, DEF_BUFFER_SIZE );
+	}
+
+	public HackWriter( WritableByteChannel channel, int bufferSize )
+	{
+		this.m_channel = channel;
+		this.m_buffer = ByteBuffer.allocateDirect( Math.max( bufferSize, WORD_LENGTH + 1 ) );
+
+		if( channel instanceof FileChannel )
+		{
+			try
+			{
+				this.m_startPosition = ( (FileChannel)channel ).position();
+			}
+			catch (IOException e)
+			{
+				// A pipe: the words that left the buffer cannot be patched
+			}
+		}
+	}
+
+	/************************************************************************************
+	 *  Writes the lowest 16 bits of the word as binary digits followed by a new line.
+	 ***********************************************************************************/
+	public void writeWord( int word ) throws IOException
+	{
+		ensureRemaining( LINE_LENGTH );
+
+		m_buffer.putLong( PACKED_DIGITS[ ( word >>> 8 ) & 0xFF ] );
+		m_buffer.putLong( PACKED_DIGITS[ word & 0xFF ] );
+		m_buffer.put( (byte)'\n' );
+	}
+
+	/************************************************************************************
+	 *  Writes the lowest 16 bits of words[start, end), one per line, like writeWord()
+	 *  does. Large arrays are formatted in parallel.
+	 ***********************************************************************************/
+	public void writeWords( int[] words, int start, int end ) throws IOException
+	{
+		if( end - start < PARALLEL_THRESHOLD )
+		{
+			for( int i = start; i < end; i++ )
+				writeWord( words[ i ] );
+
+			return;
+		}
+
+		writeBuffer();
+
+		byte[] block = new byte[ Math.min( end - start, BLOCK_WORDS ) * LINE_LENGTH ];
+
+		for( int blockStart = start; blockStart < end; blockStart += BLOCK_WORDS )
+		{
+			int blockEnd = Math.min( blockStart + BLOCK_WORDS, end );
+			EncodeTask task = new EncodeTask( words, blockStart, blockEnd, block, blockStart );
+
+			// Inside a pool (BatchAssembler) the chunks join the pool's own work
+			if( ForkJoinTask.inForkJoinPool() )
+				task.invoke();
+			else
+				Pool.INSTANCE.invoke( task );
+
+			ByteBuffer bytes = ByteBuffer.wrap( block, 0, ( blockEnd - blockStart ) * LINE_LENGTH );
+
+			while( bytes.hasRemaining() )
+				m_bytesWritten += m_channel.write( bytes );
+		}
+	}
+
+	/************************************************************************************
+	 *  Formats words[start, end) into bytes, the first one at offset.
+	 ***********************************************************************************/
+	static void encode( int[] words, int start, int end, byte[] bytes, int offset )
+	{
+		for( int i = start; i < end; i++, offset += LINE_LENGTH )
+		{
+			encode( words[ i ], bytes, offset );
+			bytes[ offset + WORD_LENGTH ] = (byte)'\n';
+		}
+	}
+
+	/************************************************************************************
+	 *  Formats the lowest 16 bits of the word into 16 binary digits, the first one at
+	 *  offset (two copies of 8 digits from the table).
+	 ***********************************************************************************/
+	static void encode( int word, byte[] bytes, int offset )
+	{
+		System.arraycopy( DIGITS, ( ( word >>> 8 ) & 0xFF ) * 8, bytes, offset, 8 );
+		System.arraycopy( DIGITS, ( word & 0xFF ) * 8, bytes, offset + 8, 8 );
+	}
+
+	/************************************************************************************
+	 *  Replaces the word on the given line (0 for the first word written). The line is
+	 *  patched in the buffer if it is still there, otherwise in the file; an
+	 *  IOException is thrown if it has left the buffer and the channel cannot seek
+	 *  (see canPatch()), or if the file is appended to (the write grew it).
+	 ***********************************************************************************/
+	public void patchWord( long line, int word ) throws IOException
+	{
+		long offset = line * LINE_LENGTH;
+		byte[] digits = new byte[ WORD_LENGTH ];
+
+		encode( word, digits, 0 );
+
+		if( offset >= m_bytesWritten )
+		{
+			int position = (int)( offset - m_bytesWritten );
+
+			for( int i = 0; i < WORD_LENGTH; i++ )
+				m_buffer.put( position + i, digits[ i ] );
+
+			return;
+		}
+
+		if( !canPatch() )
+			throw new IOException( "Cannot patch a word that has been written to a pipe!" );
+
+		FileChannel file = (FileChannel)m_channel;
+		ByteBuffer bytes = ByteBuffer.wrap( digits );
+		long position = m_startPosition + offset;
+		long size = file.size();
+
+		while( bytes.hasRemaining() )
+			position += file.write( bytes, position );
+
+		// Opened to append to: the write went to the end
+		if( file.size() != size )
+			throw new IOException( "Cannot patch a word in a file that is appended to!" );
+	}
+
+	/************************************************************************************
+	 *  Checks if any word written so far can be patched (the channel is a file).
+	 ***********************************************************************************/
+	public boolean canPatch()
+	{
+		return m_startPosition >= 0;
+	}
+
+	/************************************************************************************
+	 *  Returns the number of bytes handed to the channel so far.
+	 ***********************************************************************************/
+	public long getBytesWritten()
+	{
+		return m_bytesWritten;
+	}
+
+	/************************************************************************************
+	 *  Writes whatever is left in the buffer to the channel.
+	 ***********************************************************************************/
+	public void flush() throws IOException
+	{
+		writeBuffer();
+	}
+
+	/************************************************************************************
+	 *  Flushes the buffer and closes the channel.
+	 ***********************************************************************************/
+	public void close() throws IOException
+	{
+		try
+		{
+			writeBuffer();
+		}
+		finally
+		{
+			m_channel.close();
+		}
+	}
+
+	/************************************************************************************
+	 *  Writes the buffer to the channel (the methods above never call the overridable
+	 *  flush() themselves, see PipelinedWriter).
+	 ***********************************************************************************/
+	private void writeBuffer() throws IOException
+	{
+		m_buffer.flip();
+
+		while( m_buffer.hasRemaining() )
+			m_bytesWritten += m_channel.write( m_buffer );
+
+		m_buffer.clear();
+	}
+
+	/************************************************************************************
+	 *  Flushes the buffer if it cannot hold the given number of bytes.
+	 ***********************************************************************************/
+	private void ensureRemaining( int length ) throws IOException
+	{
+		if( m_buffer.remaining() < length )
+			writeBuffer();
+	}
+
+	/************************************************************************************
+	 *  Pool used when writeWords() is not called from a fork-join pool. It is created
+	 *  the first time it is needed; its threads are daemons.
+	 ***********************************************************************************/
+	private static class Pool
+	{
+		private final static ForkJoinPool INSTANCE = new ForkJoinPool();
+	}
+
+	/************************************************************************************
+	 *  Formats words[start, end) into the block by splitting the range in halves down
+	 *  to CHUNK_WORDS words. The block holds the words from blockStart on.
+	 ***********************************************************************************/
+	private static class EncodeTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private int[] m_words = null;
+		private int m_start = 0;
+		private int m_end = 0;
+		private byte[] m_block = null;
+		private int m_blockStart = 0;
+
+		EncodeTask( int[] words, int start, int end, byte[] block, int blockStart )
+		{
+			this.m_words = words;
+			this.m_start = start;
+			this.m_end = end;
+			this.m_block = block;
+			this.m_blockStart = blockStart;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if( m_end - m_start > CHUNK_WORDS )
+			{
+				int middle = ( m_start + m_end ) >>> 1;
+
+				invokeAll( new EncodeTask( m_words, m_start, middle, m_block, m_blockStart ),
+						new EncodeTask( m_words, middle, m_end, m_block, m_blockStart ) );
+				return;
+			}
+
+			encode( m_words, m_start, m_end, m_block, ( m_start - m_blockStart ) * LINE_LENGTH );
+		}
+	}
+}
@@ -0,0 +1,355 @@
+package hack.bp.assembler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/****************************************************************************************
+ *  Re-assembles a source file after an edit without redoing all the work. The parsed
+ *  instructions, the symbol table and the words of the last build are kept between
+ *  calls to reassemble():
+ *
+ *  	1. The new source is compared to the previous one line by line. Only the lines
+ *  	   between the first and the last changed ones are tokenized and parsed again,
+ *  	   the instructions of the other lines are reused.
+ *  	2. Labels and variables are resolved again from the instruction list (an array
+ *  	   sweep, no parsing), so references to labels that moved pick up their new
+ *  	   address.
+ *  	3. The new words are compared to the previous ones and only the words that
+ *  	   differ are written into the existing .hack file. Every line of a .hack file is
+ *  	   17 bytes long, so a word is patched in place at its offset. If the number of
+ *  	   words changed, the file is rewritten from the first word that moved.
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ ***************************************************************************************/
+public class IncrementalAssembler
+{
+	private final static int LINE_LENGTH = 17;
+	private final static long POLL_INTERVAL = 250;
+
+	private File m_sourceFile = null;
+	private File m_outputFile = null;
+	private Assembler m_assembler = new Assembler();
+
+	// State of the last build
+	private byte[] m_source = new byte[ 0 ];
+	private int[] m_lineStarts = new int[] { 0 };
+	private int m_lineCount = 0;
+	private InstructionList m_instructions = new InstructionList();
+	private int[] m_words = new int[ 0 ];
+	private int m_wordCount = 0;
+
+	// Statistics of the last build
+	private int m_parsedLines = 0;
+	private int m_patchedWords = 0;
+
+	/************************************************************************************
+	 *  Watches the file and re-assembles it every time it changes.
+	 ***********************************************************************************/
+	public static void main( String[] args ) throws InterruptedException
+	{
+		if( ( args.length == 0 ) || !args[ 0 ].endsWith( ".asm" ) )
+		{
+			System.out.println( "Usage: <program> <fileName> " +
+					"\n\t -Enter an .asm file to watch and re-assemble on every change." );
+			return;
+		}
+
+		IncrementalAssembler assembler = new IncrementalAssembler( args[ 0 ] );
+		File file = new File( args[ 0 ] );
+		long lastModified = -1;
+
+		while( true )
+		{
+			if( file.lastModified() != lastModified )
+			{
+				lastModified = file.lastModified();
+
+				try
+				{
+					long timerStart = System.nanoTime();
+					int wordCount = assembler.reassemble();
+					long timerEnd = System.nanoTime();
+
+					System.out.println( "Reassembled " + args[ 0 ] + ": " + wordCount + " words, " +
+							assembler.getParsedLines() + " lines parsed, " +
+							assembler.getPatchedWords() + " words written (elapsed time: " +
+							( timerEnd - timerStart ) + "ns)" );
+				}
+				catch (AssemblerException e)
+				{
+					System.out.println( e.getMessage() );
+				}
+			}
+
+			Thread.sleep( POLL_INTERVAL );
+		}
+	}
+
+	public IncrementalAssembler( String fileName )
+	{
+		this.m_sourceFile = new File( fileName );
+		this.m_outputFile = new File( fileName.replace( ".asm", ".hack" ) );
+		this.m_assembler.setVerbose( false );
+		this.m_assembler.init();
+	}
+
+	/************************************************************************************
+	 *  Assembles the whole file, forgetting the previous build.
+	 ***********************************************************************************/
+	public int assemble()
+	{
+		m_assembler.init();
+		m_source = new byte[ 0 ];
+		m_lineStarts = new int[] { 0 };
+		m_lineCount = 0;
+		m_instructions = new InstructionList();
+		m_words = new int[ 0 ];
+		m_wordCount = 0;
+
+		return reassemble();
+	}
+
+	/************************************************************************************
+	 *  Brings the .hack file up to date with the source, re-doing only the work that
+	 *  the changes since the last build require. Returns the number of words.
+	 ***********************************************************************************/
+	public int reassemble()
+	{
+		byte[] source = null;
+
+		try
+		{
+			source = Files.readAllBytes( m_sourceFile.toPath() );
+		}
+		catch (IOException e)
+		{
+			throw new AssemblerException( "Error: " + e.getMessage(), e );
+		}
+
+		// Find the lines
+		int[] lineStarts = splitLines( source );
+		int lineCount = lineStarts.length - 1;
+
+		// Lines that did not change at the start and at the end of the file
+		int prefix = 0;
+		int suffix = 0;
+
+		while( ( prefix < m_lineCount ) && ( prefix < lineCount ) &&
+				sameLine( m_source, m_lineStarts, prefix, source, lineStarts, prefix ) )
+			prefix++;
+
+		while( ( suffix < m_lineCount - prefix ) && ( suffix < lineCount - prefix ) &&
+				sameLine( m_source, m_lineStarts, m_lineCount - 1 - suffix,
+						source, lineStarts, lineCount - 1 - suffix ) )
+			suffix++;
+
+		// Reuse the instructions of the unchanged lines, parse the others
+		InstructionList instructions = new InstructionList();
+		int firstChanged = m_instructions.indexOfLine( prefix + 1 );
+		int firstSuffix = m_instructions.indexOfLine( m_lineCount - suffix + 1 );
+
+		instructions.append( m_instructions, 0, firstChanged, 0 );
+		parseLines( source, lineStarts, prefix, lineCount - suffix, instructions );
+		instructions.append( m_instructions, firstSuffix, m_instructions.size(),
+				lineCount - m_lineCount );
+
+		// Resolve the labels and variables again
+		m_assembler.resetAddresses();
+		m_assembler.defineLabels( instructions );
+
+		int[] words = new int[ instructions.size() ];
+		int wordCount = 0;
+
+		for( int i = 0; i < instructions.size(); i++ )
+		{
+			int word = m_assembler.resolveWord( instructions.getType( i ),
+					instructions.getOperand( i ) );
+
+			if( word >= 0 )
+				words[ wordCount++ ] = word;
+		}
+
+		// Write the words that changed
+		m_patchedWords = patchOutput( words, wordCount );
+		m_parsedLines = lineCount - suffix - prefix;
+
+		// Keep this build for the next one
+		m_source = source;
+		m_lineStarts = lineStarts;
+		m_lineCount = lineCount;
+		m_instructions = instructions;
+		m_words = words;
+		m_wordCount = wordCount;
+
+		return wordCount;
+	}
+
+	/************************************************************************************
+	 *  Returns the number of source lines parsed by the last build.
+	 ***********************************************************************************/
+	public int getParsedLines()
+	{
+		return m_parsedLines;
+	}
+
+	/************************************************************************************
+	 *  Returns the number of words written to the .hack file by the last build.
+	 ***********************************************************************************/
+	public int getPatchedWords()
+	{
+		return m_patchedWords;
+	}
+
+	/************************************************************************************
+	 *  Returns the start offset of every line, followed by the size of the source (so
+	 *  line i is [starts[ i ], starts[ i + 1 ]) with its terminator).
+	 ***********************************************************************************/
+	private static int[] splitLines( byte[] source )
+	{
+		MappedSource lines = new MappedSource( ByteBuffer.wrap( source ) );
+		int[] starts = new int[ 64 ];
+		int count = 0;
+
+		while( lines.hasNextLine() )
+		{
+			lines.nextLine();
+
+			if( count + 1 == starts.length )
+				starts = Arrays.copyOf( starts, starts.length * 2 );
+
+			starts[ count++ ] = lines.getLineStart();
+		}
+
+		starts[ count++ ] = source.length;
+
+		return Arrays.copyOf( starts, count );
+	}
+
+	/************************************************************************************
+	 *  Compares a line of the old source to a line of the new one.
+	 ***********************************************************************************/
+	private static boolean sameLine( byte[] oldSource, int[] oldStarts, int oldLine,
+			byte[] newSource, int[] newStarts, int newLine )
+	{
+		int oldStart = oldStarts[ oldLine ];
+		int newStart = newStarts[ newLine ];
+		int length = oldStarts[ oldLine + 1 ] - oldStart;
+
+		if( length != newStarts[ newLine + 1 ] - newStart )
+			return false;
+
+		for( int i = 0; i < length; i++ )
+		{
+			if( oldSource[ oldStart + i ] != newSource[ newStart + i ] )
+				return false;
+		}
+
+		return true;
+	}
+
+	/************************************************************************************
+	 *  Parses the lines [firstLine, endLine) of the source into the list.
+	 ***********************************************************************************/
+	private void parseLines( byte[] source, int[] lineStarts, int firstLine, int endLine,
+			InstructionList instructions )
+	{
+		if( firstLine >= endLine )
+			return;
+
+		int start = lineStarts[ firstLine ];
+		MappedSource lines = new MappedSource(
+				ByteBuffer.wrap( source, start, lineStarts[ endLine ] - start ) );
+		Instruction instruction = new Instruction();
+		int sourceLineNumber = firstLine;
+
+		while( lines.hasNextLine() )
+		{
+			lines.nextLine();
+			sourceLineNumber++;
+
+			instruction.tokenize( lines );
+			m_assembler.parseCommand( instruction, instructions, sourceLineNumber );
+		}
+	}
+
+	/************************************************************************************
+	 *  Writes the words that differ from the last build into the .hack file. Returns
+	 *  the number of words written.
+	 ***********************************************************************************/
+	private int patchOutput( int[] words, int wordCount )
+	{
+		int written = 0;
+
+		try
+		{
+			FileChannel channel = new RandomAccessFile( m_outputFile, "rw" ).getChannel();
+			HackWriter out = new HackWriter( channel );
+
+			try
+			{
+				// Start over if the file is not the one of the last build
+				int oldCount = m_wordCount;
+
+				if( channel.size() != (long)oldCount * LINE_LENGTH )
+					oldCount = 0;
+
+				// Patch the words that changed in place
+				int common = Math.min( oldCount, wordCount );
+				int i = 0;
+
+				while( i < common )
+				{
+					if( words[ i ] == m_words[ i ] )
+					{
+						i++;
+						continue;
+					}
+
+					out.flush();
+					channel.position( (long)i * LINE_LENGTH );
+
+					// Write the whole run of changed words
+					for( ; ( i < common ) && ( words[ i ] != m_words[ i ] ); i++ )
+					{
+						out.writeWord( words[ i ] );
+						written++;
+					}
+				}
+
+				// The number of words changed: rewrite from the first word that moved
+				if( oldCount != wordCount )
+				{
+					out.flush();
+					channel.position( (long)common * LINE_LENGTH );
+
+					for( i = common; i < wordCount; i++ )
+					{
+						out.writeWord( words[ i ] );
+						written++;
+					}
+
+					out.flush();
+					channel.truncate( (long)wordCount * LINE_LENGTH );
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		catch (IOException e)
+		{
+			throw new AssemblerException( "Error: " + e.getMessage(), e );
+		}
+
+		return written;
+	}
+}
@@ -0,0 +1,400 @@
+package hack.bp.assembler;
+
+import java.util.Arrays;
+
+/****************************************************************************************
+ *  Reusable record of one tokenized assembly command. tokenize() scans the line a single
+ *  time: it copies the characters that are not white space into an internal buffer and
+ *  remembers where the symbol, dest, comp and jump fields start and end in it. The
+ *  accessors hand out those offsets (and the buffer) so the fields can be read without
+ *  creating any String. The same instance is meant to be refilled for every line.
+ *
+ *  The rules are the same as the ones the Parser has always used:
+ *  	- A line containing // is a BAD_COMMAND (comments must be on their own line).
+ *  	- A line containing @ is an A_COMMAND, the symbol is everything after the @.
+ *  	- A line containing ( and ) is an L_COMMAND, the symbol is between them.
+ *  	- A line containing = or ; is a C_COMMAND in the form dest=comp;jump.
+ *  	- Anything else is a BAD_COMMAND.
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ ***************************************************************************************/
+public class Instruction
+{
+	private final static int DEF_BUFFER_SIZE = 128;
+
+	private char[] m_chars = new char[ DEF_BUFFER_SIZE ];
+	private int m_length = 0;
+	private Parser.Commands m_type = Parser.Commands.BAD_COMMAND;
+
+	private int m_symbolStart = 0;
+	private int m_symbolEnd = 0;
+	private int m_destStart = 0;
+	private int m_destEnd = 0;
+	private int m_compStart = 0;
+	private int m_compEnd = 0;
+	private int m_jumpStart = 0;
+	private int m_jumpEnd = 0;
+
+	// Scan state (first positions of the special characters in m_chars)
+	private int m_at = -1;
+	private int m_leftParen = -1;
+	private int m_rightParen = -1;
+	private int m_equal = -1;
+	private int m_secondEqual = -1;
+	private int m_semicolon = -1;
+	private int m_secondSemicolon = -1;
+	private boolean m_rawComment = false;
+	private boolean m_comment = false;
+	private char m_previousRaw = 0;
+
+	/************************************************************************************
+	 *  Tokenizes a line held in a String (or any other CharSequence).
+	 ***********************************************************************************/
+	public void tokenize( CharSequence line )
+	{
+		reset();
+
+		for( int i = 0; i < line.length(); i++ )
+			scan( line.charAt( i ) );
+
+		classify();
+	}
+
+	/************************************************************************************
+	 *  Tokenizes the current line of a MappedSource, reading it in place.
+	 ***********************************************************************************/
+	public void tokenize( MappedSource source )
+	{
+		reset();
+
+		int end = source.getLineStart() + source.getLineLength();
+
+		for( int i = source.getLineStart(); i < end; i++ )
+			scan( (char)( source.byteAt( i ) & 0xFF ) );
+
+		classify();
+	}
+
+	/************************************************************************************
+	 *  Returns the type of the command.
+	 ***********************************************************************************/
+	public Parser.Commands getType()
+	{
+		return m_type;
+	}
+
+	/************************************************************************************
+	 *  Returns the buffer holding the command without white spaces. Only the first
+	 *  getLength() characters are valid. The buffer is reused by the next tokenize().
+	 ***********************************************************************************/
+	public char[] getChars()
+	{
+		return m_chars;
+	}
+
+	/************************************************************************************
+	 *  Returns the length of the command without white spaces.
+	 ***********************************************************************************/
+	public int getLength()
+	{
+		return m_length;
+	}
+
+	/************************************************************************************
+	 *  Returns the offset where the symbol starts in getChars().
+	 ***********************************************************************************/
+	public int getSymbolStart()
+	{
+		return m_symbolStart;
+	}
+
+	/************************************************************************************
+	 *  Returns the offset where the symbol ends (exclusive) in getChars().
+	 ***********************************************************************************/
+	public int getSymbolEnd()
+	{
+		return m_symbolEnd;
+	}
+
+	/************************************************************************************
+	 *  Returns the offset where the dest mnemonic starts in getChars().
+	 ***********************************************************************************/
+	public int getDestStart()
+	{
+		return m_destStart;
+	}
+
+	/************************************************************************************
+	 *  Returns the offset where the dest mnemonic ends (exclusive) in getChars().
+	 ***********************************************************************************/
+	public int getDestEnd()
+	{
+		return m_destEnd;
+	}
+
+	/************************************************************************************
+	 *  Returns the offset where the comp mnemonic starts in getChars().
+	 ***********************************************************************************/
+	public int getCompStart()
+	{
+		return m_compStart;
+	}
+
+	/************************************************************************************
+	 *  Returns the offset where the comp mnemonic ends (exclusive) in getChars().
+	 ***********************************************************************************/
+	public int getCompEnd()
+	{
+		return m_compEnd;
+	}
+
+	/************************************************************************************
+	 *  Returns the offset where the jump mnemonic starts in getChars().
+	 ***********************************************************************************/
+	public int getJumpStart()
+	{
+		return m_jumpStart;
+	}
+
+	/************************************************************************************
+	 *  Returns the offset where the jump mnemonic ends (exclusive) in getChars().
+	 ***********************************************************************************/
+	public int getJumpEnd()
+	{
+		return m_jumpEnd;
+	}
+
+	/************************************************************************************
+	 *  Checks if the symbol has a letter (if not, it is a decimal value).
+	 ***********************************************************************************/
+	public boolean symbolHasLetter()
+	{
+		for( int i = m_symbolStart; i < m_symbolEnd; i++ )
+		{
+			if( Character.isLetter( m_chars[ i ] ) )
+				return true;
+		}
+
+		return false;
+	}
+
+	/************************************************************************************
+	 *  Returns the decimal value of the symbol. Behaves like Integer.parseInt() on the
+	 *  symbol, without creating the String.
+	 ***********************************************************************************/
+	public int symbolValue()
+	{
+		int i = m_symbolStart;
+		boolean negative = false;
+		long value = 0;
+
+		if( ( i < m_symbolEnd ) && ( ( m_chars[ i ] == '-' ) || ( m_chars[ i ] == '+' ) ) )
+			negative = ( m_chars[ i++ ] == '-' );
+
+		if( i == m_symbolEnd )
+			throw new NumberFormatException( "For input string: \"" + symbol() + "\"" );
+
+		for( ; i < m_symbolEnd; i++ )
+		{
+			int digit = Character.digit( m_chars[ i ], 10 );
+
+			if( digit < 0 )
+				throw new NumberFormatException( "For input string: \"" + symbol() + "\"" );
+
+			value = value * 10 + digit;
+
+			if( value > (long)Integer.MAX_VALUE + 1 )
+				throw new NumberFormatException( "For input string: \"" + symbol() + "\"" );
+		}
+
+		if( negative )
+			value = -value;
+
+		if( value > Integer.MAX_VALUE )
+			throw new NumberFormatException( "For input string: \"" + symbol() + "\"" );
+
+		return (int)value;
+	}
+
+	/************************************************************************************
+	 *  Returns the command without white spaces as a String.
+	 ***********************************************************************************/
+	public String command()
+	{
+		return new String( m_chars, 0, m_length );
+	}
+
+	/************************************************************************************
+	 *  Returns the symbol as a String.
+	 ***********************************************************************************/
+	public String symbol()
+	{
+		return new String( m_chars, m_symbolStart, m_symbolEnd - m_symbolStart );
+	}
+
+	/************************************************************************************
+	 *  Returns the dest mnemonic as a String.
+	 ***********************************************************************************/
+	public String dest()
+	{
+		return new String( m_chars, m_destStart, m_destEnd - m_destStart );
+	}
+
+	/************************************************************************************
+	 *  Returns the comp mnemonic as a String.
+	 ***********************************************************************************/
+	public String comp()
+	{
+		return new String( m_chars, m_compStart, m_compEnd - m_compStart );
+	}
+
+	/************************************************************************************
+	 *  Returns the jump mnemonic as a String.
+	 ***********************************************************************************/
+	public String jump()
+	{
+		return new String( m_chars, m_jumpStart, m_jumpEnd - m_jumpStart );
+	}
+
+	/************************************************************************************
+	 *  Clears the record before a new line is scanned.
+	 ***********************************************************************************/
+	private void reset()
+	{
+		m_length = 0;
+		m_at = -1;
+		m_leftParen = -1;
+		m_rightParen = -1;
+		m_equal = -1;
+		m_secondEqual = -1;
+		m_semicolon = -1;
+		m_secondSemicolon = -1;
+		m_rawComment = false;
+		m_comment = false;
+		m_previousRaw = 0;
+	}
+
+	/************************************************************************************
+	 *  Handles one character of the line.
+	 ***********************************************************************************/
+	private void scan( char c )
+	{
+		// A comment in the original line makes it a BAD_COMMAND
+		if( ( c == '/' ) && ( m_previousRaw == '/' ) )
+			m_rawComment = true;
+
+		m_previousRaw = c;
+
+		// Skip the white spaces (same set as the \s regex)
+		if( ( c == ' ' ) || ( c == '\t' ) || ( c == '\n' ) ||
+				( c == '\u000B' ) || ( c == '\f' ) || ( c == '\r' ) )
+			return;
+
+		// A comment without the white spaces empties the fields
+		if( ( c == '/' ) && ( m_length > 0 ) && ( m_chars[ m_length - 1 ] == '/' ) )
+			m_comment = true;
+
+		// Remember where the special characters are
+		switch( c )
+		{
+			case '@':
+				if( m_at < 0 )
+					m_at = m_length;
+				break;
+
+			case '(':
+				if( m_leftParen < 0 )
+					m_leftParen = m_length;
+				break;
+
+			case ')':
+				if( m_rightParen < 0 )
+					m_rightParen = m_length;
+				break;
+
+			case '=':
+				if( m_equal < 0 )
+					m_equal = m_length;
+				else if( m_secondEqual < 0 )
+					m_secondEqual = m_length;
+				break;
+
+			case ';':
+				if( m_semicolon < 0 )
+					m_semicolon = m_length;
+				else if( m_secondSemicolon < 0 )
+					m_secondSemicolon = m_length;
+				break;
+		}
+
+		if( m_length == m_chars.length )
+			m_chars = Arrays.copyOf( m_chars, m_length * 2 );
+
+		m_chars[ m_length++ ] = c;
+	}
+
+	/************************************************************************************
+	 *  Sets the type and the field offsets once the whole line has been scanned.
+	 ***********************************************************************************/
+	private void classify()
+	{
+		// Command type
+		if( m_rawComment )
+			m_type = Parser.Commands.BAD_COMMAND;
+		else if( m_at >= 0 )
+			m_type = Parser.Commands.A_COMMAND;
+		else if( ( m_leftParen >= 0 ) && ( m_rightParen >= 0 ) )
+			m_type = Parser.Commands.L_COMMAND;
+		else if( ( m_semicolon >= 0 ) || ( m_equal >= 0 ) )
+			m_type = Parser.Commands.C_COMMAND;
+		else
+			m_type = Parser.Commands.BAD_COMMAND;
+
+		// All the fields start out empty
+		m_symbolStart = m_symbolEnd = 0;
+		m_destStart = m_destEnd = 0;
+		m_compStart = m_compEnd = 0;
+		m_jumpStart = m_jumpEnd = 0;
+
+		if( m_comment )
+			return;
+
+		// Symbol: @Xxx or (Xxx)
+		if( m_at >= 0 )
+		{
+			m_symbolStart = m_at + 1;
+			m_symbolEnd = m_length;
+		}
+		else if( ( m_leftParen >= 0 ) && ( m_rightParen > m_leftParen ) )
+		{
+			m_symbolStart = m_leftParen + 1;
+			m_symbolEnd = m_rightParen;
+		}
+
+		// Only C_COMMANDs have fields, in the form dest=comp;jump
+		if( ( m_equal < 0 ) && ( m_semicolon < 0 ) )
+			return;
+
+		if( m_equal >= 0 )
+		{
+			m_destEnd = m_equal;
+			m_compStart = m_equal + 1;
+		}
+
+		if( m_semicolon > m_equal )
+			m_compEnd = m_semicolon;
+		else if( m_secondEqual >= 0 )
+			m_compEnd = m_secondEqual;
+		else
+			m_compEnd = m_length;
+
+		if( m_semicolon >= 0 )
+		{
+			m_jumpStart = m_semicolon + 1;
+			m_jumpEnd = ( m_secondSemicolon >= 0 ) ? m_secondSemicolon : m_length;
+		}
+	}
+}
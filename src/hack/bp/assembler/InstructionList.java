@@ -0,0 +1,123 @@
+package hack.bp.assembler;
+
+import java.util.Arrays;
+
+/****************************************************************************************
+ *  Compact in-memory form of a parsed assembly program. The first pass fills this list
+ *  once while reading the source, and the second pass encodes from it without touching
+ *  the input file again.
+ *
+ *  Every instruction is stored in three parallel primitive arrays: its type, its
+ *  operand and the source line it came from. The operand depends on the type:
+ *  	- A_LITERAL: the decimal value of @Xxx.
+ *  	- A_SYMBOL:  the id of the symbol Xxx in the job's SymbolTable.
+ *  	- L_COMMAND: the id of the label Xxx in the job's SymbolTable.
+ *  	- C_COMMAND: the encoded 16-bit word (see Code.cCommand()).
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ *	0.2 -	C_COMMANDs are stored already encoded, the mnemonic pool is gone. -bp
+ *	0.3 -	Symbols are pooled by the SymbolTable, the list only keeps their ids. -bp
+ *	0.4 -	Added append() and indexOfLine() to splice lists together. -bp
+ ***************************************************************************************/
+public class InstructionList
+{
+	public final static byte A_LITERAL = 0;
+	public final static byte A_SYMBOL  = 1;
+	public final static byte C_COMMAND = 2;
+	public final static byte L_COMMAND = 3;
+
+	private final static int DEF_CAPACITY = 256;
+
+	private byte[] m_types = new byte[ DEF_CAPACITY ];
+	private int[] m_operands = new int[ DEF_CAPACITY ];
+	private int[] m_lineNumbers = new int[ DEF_CAPACITY ];
+	private int m_size = 0;
+
+	/************************************************************************************
+	 *  Appends an instruction to the end of the list.
+	 ***********************************************************************************/
+	public void add( byte type, int operand, int lineNumber )
+	{
+		// Grow the arrays when full
+		if( m_size == m_types.length )
+		{
+			int capacity = m_size * 2;
+
+			m_types = Arrays.copyOf( m_types, capacity );
+			m_operands = Arrays.copyOf( m_operands, capacity );
+			m_lineNumbers = Arrays.copyOf( m_lineNumbers, capacity );
+		}
+
+		m_types[ m_size ] = type;
+		m_operands[ m_size ] = operand;
+		m_lineNumbers[ m_size ] = lineNumber;
+		m_size++;
+	}
+
+	/************************************************************************************
+	 *  Appends the instructions [start, end) of another list, adding lineShift to their
+	 *  line numbers.
+	 ***********************************************************************************/
+	public void append( InstructionList source, int start, int end, int lineShift )
+	{
+		for( int i = start; i < end; i++ )
+			add( source.m_types[ i ], source.m_operands[ i ], source.m_lineNumbers[ i ] + lineShift );
+	}
+
+	/************************************************************************************
+	 *  Returns the index of the first instruction whose line number is at least
+	 *  lineNumber (size() if there is none).
+	 ***********************************************************************************/
+	public int indexOfLine( int lineNumber )
+	{
+		int low = 0;
+		int high = m_size;
+
+		while( low < high )
+		{
+			int middle = ( low + high ) >>> 1;
+
+			if( m_lineNumbers[ middle ] < lineNumber )
+				low = middle + 1;
+			else
+				high = middle;
+		}
+
+		return low;
+	}
+
+	/************************************************************************************
+	 *  Returns the number of instructions (including labels) in the list.
+	 ***********************************************************************************/
+	public int size()
+	{
+		return m_size;
+	}
+
+	/************************************************************************************
+	 *  Returns the type of the instruction at index.
+	 ***********************************************************************************/
+	public byte getType( int index )
+	{
+		return m_types[ index ];
+	}
+
+	/************************************************************************************
+	 *  Returns the operand of the instruction at index.
+	 ***********************************************************************************/
+	public int getOperand( int index )
+	{
+		return m_operands[ index ];
+	}
+
+	/************************************************************************************
+	 *  Returns the source line number (starting at 1) of the instruction at index.
+	 ***********************************************************************************/
+	public int getLineNumber( int index )
+	{
+		return m_lineNumbers[ index ];
+	}
+}
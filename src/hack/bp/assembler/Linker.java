@@ -0,0 +1,205 @@
+package hack.bp.assembler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/****************************************************************************************
+ *  Combines object files (see ObjectFile and the -object option of the Assembler) into
+ *  one program. The modules are placed one after the other in the order given, so the
+ *  first one holds the entry point at address 0.
+ *
+ *  	1. Every module gets its base address and its labels are defined at base +
+ *  	   offset in one symbol table (started from the pre-defined symbols). A label
+ *  	   defined twice is an error, as in the Assembler.
+ *  	2. The relocations are filled in, module after module. An external symbol that
+ *  	   no module defines is a variable and gets the next RAM address (16 and on).
+ *
+ *  Nothing is parsed again, so linking costs a few array passes over the words and the
+ *  relocations. Linking the objects of several sources gives the same words as
+ *  assembling the sources joined together.
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ ***************************************************************************************/
+public class Linker
+{
+	private final static int VAR_START_ADDRESS = 16;
+	private final static int MAX_ADDRESS = ( 1 << 15 ) - 1;
+
+	private SymbolTable m_symbolTable = null;
+	private int m_variables = 0;
+
+	/************************************************************************************
+	 *  Links the object files given and writes the .hack file (and the .rom image with
+	 *  -rom).
+	 ***********************************************************************************/
+	public static void main( String[] args )
+	{
+		int argIndex = 0;
+		boolean writeRomImage = false;
+
+		if( ( args.length > argIndex ) && args[ argIndex ].equals( "-rom" ) )
+		{
+			writeRomImage = true;
+			argIndex++;
+		}
+
+		if( ( args.length < argIndex + 2 ) || !args[ argIndex ].endsWith( ".hack" ) )
+		{
+			System.out.println( "Usage: <program> [-rom] <output>.hack <objects>.hobj..." +
+					"\n\t -Links the objects (in that order) into one program." +
+					"\n\t -rom: also write a packed binary ROM image (.rom)." );
+			return;
+		}
+
+		try
+		{
+			long timerStart = System.nanoTime();
+
+			// Read the modules
+			ObjectFile[] modules = new ObjectFile[ args.length - argIndex - 1 ];
+
+			for( int i = 0; i < modules.length; i++ )
+				modules[ i ] = ObjectFile.read( new File( args[ argIndex + 1 + i ] ) );
+
+			// Link and write them
+			Linker linker = new Linker();
+			int[] words = linker.link( modules );
+
+			write( words, args[ argIndex ], writeRomImage );
+
+			long timerEnd = System.nanoTime();
+			System.out.println( "Link completed! " + words.length + " words, " +
+					modules.length + " modules, " + linker.getVariables() + " variables " +
+					"(elapsed time: " + ( timerEnd - timerStart ) + "ns)" );
+		}
+		catch (IOException e)
+		{
+			System.out.println( "Linker: " + e.getMessage() );
+			System.exit( 1 );
+		}
+		catch (AssemblerException e)
+		{
+			System.out.println( e.getMessage() );
+			System.exit( 1 );
+		}
+	}
+
+	/************************************************************************************
+	 *  Links the modules (in that order) and returns the words of the program. Throws an
+	 *  AssemblerException if a label is defined twice or an address does not fit.
+	 ***********************************************************************************/
+	public int[] link( ObjectFile[] modules )
+	{
+		m_symbolTable = new SymbolTable( SymbolTable.PREDEFINED );
+		m_variables = 0;
+
+		// Base addresses and the labels
+		int[] bases = new int[ modules.length ];
+		int[][] ids = new int[ modules.length ][];
+		int wordCount = 0;
+
+		for( int m = 0; m < modules.length; m++ )
+		{
+			ObjectFile module = modules[ m ];
+
+			bases[ m ] = wordCount;
+			ids[ m ] = new int[ module.getSymbolCount() ];
+			wordCount += module.getWords().length;
+
+			for( int i = 0; i < module.getSymbolCount(); i++ )
+			{
+				int id = m_symbolTable.intern( module.getSymbol( i ) );
+
+				ids[ m ][ i ] = id;
+
+				if( module.getKind( i ) != ObjectFile.LABEL )
+					continue;
+
+				if( m_symbolTable.isDefined( id ) )
+					throw new AssemblerException( module.getName() + ": Label '" +
+							module.getSymbol( i ) + "' is defined by more than one module!" );
+
+				m_symbolTable.setAddress( id, bases[ m ] + module.getValue( i ) );
+			}
+		}
+
+		// Copy the words and fill in the relocations
+		int[] words = new int[ wordCount ];
+		int nextVariable = VAR_START_ADDRESS;
+
+		for( int m = 0; m < modules.length; m++ )
+		{
+			ObjectFile module = modules[ m ];
+			short[] moduleWords = module.getWords();
+			int base = bases[ m ];
+
+			for( int i = 0; i < moduleWords.length; i++ )
+				words[ base + i ] = moduleWords[ i ] & 0xFFFF;
+
+			for( int r = 0; r < module.getRelocationCount(); r++ )
+			{
+				int id = ids[ m ][ module.getRelocationSymbol( r ) ];
+				int address = m_symbolTable.getAddress( id );
+
+				// Not a label of any module: a variable
+				if( address == SymbolTable.UNDEFINED )
+				{
+					address = nextVariable++;
+					m_symbolTable.setAddress( id, address );
+					m_variables++;
+				}
+
+				if( address > MAX_ADDRESS )
+					throw new AssemblerException( module.getName() + ": The address of '" +
+							m_symbolTable.getSymbol( id ) + "' (" + address + ") does not fit in an A_COMMAND!" );
+
+				words[ base + module.getRelocationWord( r ) ] = address;
+			}
+		}
+
+		return words;
+	}
+
+	/************************************************************************************
+	 *  Writes the words as .hack text to the file, and as a ROM image next to it if
+	 *  writeRomImage is set.
+	 ***********************************************************************************/
+	public static void write( int[] words, String fileName, boolean writeRomImage ) throws IOException
+	{
+		HackWriter out = new HackWriter( new FileOutputStream( fileName ).getChannel() );
+
+		out.writeWords( words, 0, words.length );
+		out.close();
+
+		if( writeRomImage )
+		{
+			RomImage.Writer rom = new RomImage.Writer( new File( fileName.replace( ".hack", ".rom" ) ) );
+
+			for( int word : words )
+				rom.writeWord( word );
+
+			rom.close();
+		}
+	}
+
+	/************************************************************************************
+	 *  Returns the symbol table of the last link (labels at their final addresses and
+	 *  the variables).
+	 ***********************************************************************************/
+	public SymbolTable getSymbolTable()
+	{
+		return m_symbolTable;
+	}
+
+	/************************************************************************************
+	 *  Returns the number of variables given an address by the last link.
+	 ***********************************************************************************/
+	public int getVariables()
+	{
+		return m_variables;
+	}
+}
@@ -0,0 +1,149 @@
+package hack.bp.assembler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/****************************************************************************************
+ *  Gives line-by-line access to an assembly file without copying it. The file is mapped
+ *  into memory with FileChannel.map() and each line is handed out as a slice (start and
+ *  length) over the mapped bytes. No regular expressions are used to find the lines and
+ *  no String is created unless getLine() is called.
+ *
+ *  Lines end with \n, \r\n or \r (the same terminators java.util.Scanner recognizes for
+ *  ASCII input). The terminator is not part of the slice.
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ ***************************************************************************************/
+public class MappedSource
+{
+	private ByteBuffer m_buffer = null;
+	private int m_position = 0;
+	private int m_lineStart = 0;
+	private int m_lineLength = 0;
+
+	/************************************************************************************
+	 *  Maps the whole file into memory (read-only).
+	 ***********************************************************************************/
+	public MappedSource( File inputFile ) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile( inputFile, "r" );
+
+		try
+		{
+			FileChannel channel = file.getChannel();
+
+			if( channel.size() > Integer.MAX_VALUE )
+				throw new IOException( "File is too large to be mapped: " + inputFile );
+
+			this.m_buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+		}
+		finally
+		{
+			// The mapping stays valid after the channel is closed
+			file.close();
+		}
+	}
+
+	/************************************************************************************
+	 *  Reads the lines from a buffer that is already in memory (from its position up to
+	 *  its limit).
+	 ***********************************************************************************/
+	public MappedSource( ByteBuffer buffer )
+	{
+		this.m_buffer = buffer.slice();
+	}
+
+	/************************************************************************************
+	 *  Checks if there is another line after the current one.
+	 ***********************************************************************************/
+	public boolean hasNextLine()
+	{
+		return m_position < m_buffer.limit();
+	}
+
+	/************************************************************************************
+	 *  Moves to the next line. Should be called only if hasNextLine() is true.
+	 ***********************************************************************************/
+	public void nextLine()
+	{
+		int limit = m_buffer.limit();
+		int end = m_position;
+
+		// Find the end of the line
+		while( end < limit )
+		{
+			byte b = m_buffer.get( end );
+
+			if( ( b == '\n' ) || ( b == '\r' ) )
+				break;
+
+			end++;
+		}
+
+		m_lineStart = m_position;
+		m_lineLength = end - m_position;
+
+		// Skip the terminator (\r\n counts as one)
+		if( end < limit )
+		{
+			if( ( m_buffer.get( end ) == '\r' ) && ( end + 1 < limit ) &&
+					( m_buffer.get( end + 1 ) == '\n' ) )
+				end++;
+
+			end++;
+		}
+
+		m_position = end;
+	}
+
+	/************************************************************************************
+	 *  Returns the offset of the current line in the buffer.
+	 ***********************************************************************************/
+	public int getLineStart()
+	{
+		return m_lineStart;
+	}
+
+	/************************************************************************************
+	 *  Returns the length of the current line (without its terminator).
+	 ***********************************************************************************/
+	public int getLineLength()
+	{
+		return m_lineLength;
+	}
+
+	/************************************************************************************
+	 *  Returns the byte at the given offset in the buffer.
+	 ***********************************************************************************/
+	public byte byteAt( int offset )
+	{
+		return m_buffer.get( offset );
+	}
+
+	/************************************************************************************
+	 *  Returns the size of the source in bytes.
+	 ***********************************************************************************/
+	public int size()
+	{
+		return m_buffer.limit();
+	}
+
+	/************************************************************************************
+	 *  Creates a String out of the current line.
+	 ***********************************************************************************/
+	public String getLine()
+	{
+		char[] chars = new char[ m_lineLength ];
+
+		for( int i = 0; i < m_lineLength; i++ )
+			chars[ i ] = (char)( m_buffer.get( m_lineStart + i ) & 0xFF );
+
+		return new String( chars );
+	}
+}
@@ -0,0 +1,320 @@
+package hack.bp.assembler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/****************************************************************************************
+ *  Relocatable object file (.hobj): one module of a program assembled on its own, to be
+ *  combined with the others by the Linker. The words are the machine code of the module
+ *  as if it started at address 0. Literals, C_COMMANDs and the pre-defined symbols are
+ *  final; every other @symbol is a relocation to fill in at link time.
+ *
+ *  The symbols of a module are either:
+ *  	- LABEL:    defined by the module (exported), the value is its offset in the
+ *  	            module.
+ *  	- EXTERNAL: used but not defined by the module. It is an import if another module
+ *  	            has a label of that name, otherwise it is a variable request and the
+ *  	            linker gives it a RAM address (16 and on) shared by all the modules.
+ *
+ *  The layout is big-endian:
+ *
+ *  	offset  size  field
+ *  	0       4     magic "HOBJ"
+ *  	4       2     format version (1)
+ *  	6       2     reserved (0)
+ *  	8       4     number of words (n)
+ *  	12      4     number of symbols (s)
+ *  	16      4     number of relocations (r)
+ *  	20      4     CRC-32 of everything after the header
+ *  	24      2*n   the words
+ *  	        s*    symbols: kind (1 byte), value (4 bytes, -1 for an EXTERNAL),
+ *  	              name length (2 bytes) and the name (US-ASCII)
+ *  	        8*r   relocations: word index (4 bytes), symbol index (4 bytes)
+ *
+ *  The relocations are in the order of the words, so the linker meets the variables in
+ *  the same order as the assembler would in the whole source.
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ ***************************************************************************************/
+public class ObjectFile
+{
+	public final static int MAGIC = 0x484F424A;
+	public final static short VERSION = 1;
+	public final static int HEADER_SIZE = 24;
+
+	public final static byte LABEL = 0;
+	public final static byte EXTERNAL = 1;
+
+	private final static Charset ASCII = Charset.forName( "US-ASCII" );
+
+	private String m_name = null;
+	private short[] m_words = null;
+
+	// Symbols, indexed by symbol index
+	private String[] m_symbols = null;
+	private byte[] m_kinds = null;
+	private int[] m_values = null;
+
+	// Relocations
+	private int[] m_relocationWords = null;
+	private int[] m_relocationSymbols = null;
+
+	/************************************************************************************
+	 *  Creates an object from its parts (the arrays are used, not copied).
+	 ***********************************************************************************/
+	public ObjectFile( String name, short[] words, String[] symbols, byte[] kinds, int[] values,
+			int[] relocationWords, int[] relocationSymbols )
+	{
+		this.m_name = name;
+		this.m_words = words;
+		this.m_symbols = symbols;
+		this.m_kinds = kinds;
+		this.m_values = values;
+		this.m_relocationWords = relocationWords;
+		this.m_relocationSymbols = relocationSymbols;
+	}
+
+	/************************************************************************************
+	 *  Maps an object file and reads it. An IOException is thrown if the file is not a
+	 *  valid object (header, checksum or an index out of range).
+	 ***********************************************************************************/
+	public static ObjectFile read( File objectFile ) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile( objectFile, "r" );
+		MappedByteBuffer buffer = null;
+
+		try
+		{
+			FileChannel channel = file.getChannel();
+
+			if( ( channel.size() < HEADER_SIZE ) || ( channel.size() > Integer.MAX_VALUE ) )
+				throw new IOException( "Not an object file: " + objectFile );
+
+			buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+		}
+		finally
+		{
+			file.close();
+		}
+
+		buffer.order( ByteOrder.BIG_ENDIAN );
+
+		// Check the header
+		if( ( buffer.getInt( 0 ) != MAGIC ) || ( buffer.getShort( 4 ) != VERSION ) )
+			throw new IOException( "Not an object file: " + objectFile );
+
+		int wordCount = buffer.getInt( 8 );
+		int symbolCount = buffer.getInt( 12 );
+		int relocationCount = buffer.getInt( 16 );
+		int checksum = buffer.getInt( 20 );
+
+		buffer.position( HEADER_SIZE );
+
+		if( checksum( buffer ) != checksum )
+			throw new IOException( "Object file checksum does not match: " + objectFile );
+
+		try
+		{
+			short[] words = new short[ wordCount ];
+
+			buffer.asShortBuffer().get( words );
+			buffer.position( HEADER_SIZE + 2 * wordCount );
+
+			String[] symbols = new String[ symbolCount ];
+			byte[] kinds = new byte[ symbolCount ];
+			int[] values = new int[ symbolCount ];
+			byte[] name = new byte[ 256 ];
+
+			for( int i = 0; i < symbolCount; i++ )
+			{
+				kinds[ i ] = buffer.get();
+				values[ i ] = buffer.getInt();
+
+				int length = buffer.getShort() & 0xFFFF;
+
+				if( length > name.length )
+					name = new byte[ length ];
+
+				buffer.get( name, 0, length );
+				symbols[ i ] = new String( name, 0, length, ASCII );
+
+				if( ( kinds[ i ] != LABEL ) && ( kinds[ i ] != EXTERNAL ) )
+					throw new IOException( "Unknown symbol kind in object file: " + objectFile );
+			}
+
+			int[] relocationWords = new int[ relocationCount ];
+			int[] relocationSymbols = new int[ relocationCount ];
+
+			for( int i = 0; i < relocationCount; i++ )
+			{
+				relocationWords[ i ] = buffer.getInt();
+				relocationSymbols[ i ] = buffer.getInt();
+
+				if( ( relocationWords[ i ] < 0 ) || ( relocationWords[ i ] >= wordCount ) ||
+						( relocationSymbols[ i ] < 0 ) || ( relocationSymbols[ i ] >= symbolCount ) )
+					throw new IOException( "Relocation out of range in object file: " + objectFile );
+			}
+
+			return new ObjectFile( objectFile.getPath(), words, symbols, kinds, values,
+					relocationWords, relocationSymbols );
+		}
+		catch (RuntimeException e)
+		{
+			// Buffer underflow or a negative count
+			throw new IOException( "Object file is truncated: " + objectFile );
+		}
+	}
+
+	/************************************************************************************
+	 *  Writes the object to a file (created or truncated).
+	 ***********************************************************************************/
+	public long write( File objectFile ) throws IOException
+	{
+		byte[][] names = new byte[ m_symbols.length ][];
+		int size = HEADER_SIZE + 2 * m_words.length + 8 * m_relocationWords.length;
+
+		for( int i = 0; i < m_symbols.length; i++ )
+		{
+			names[ i ] = m_symbols[ i ].getBytes( ASCII );
+			size += 7 + names[ i ].length;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate( size );
+
+		buffer.position( HEADER_SIZE );
+
+		for( short word : m_words )
+			buffer.putShort( word );
+
+		for( int i = 0; i < m_symbols.length; i++ )
+		{
+			buffer.put( m_kinds[ i ] );
+			buffer.putInt( m_values[ i ] );
+			buffer.putShort( (short)names[ i ].length );
+			buffer.put( names[ i ] );
+		}
+
+		for( int i = 0; i < m_relocationWords.length; i++ )
+		{
+			buffer.putInt( m_relocationWords[ i ] );
+			buffer.putInt( m_relocationSymbols[ i ] );
+		}
+
+		// Header
+		buffer.position( HEADER_SIZE );
+		int checksum = checksum( buffer );
+
+		buffer.putInt( 0, MAGIC );
+		buffer.putShort( 4, VERSION );
+		buffer.putShort( 6, (short)0 );
+		buffer.putInt( 8, m_words.length );
+		buffer.putInt( 12, m_symbols.length );
+		buffer.putInt( 16, m_relocationWords.length );
+		buffer.putInt( 20, checksum );
+		buffer.position( 0 );
+
+		FileChannel channel = new RandomAccessFile( objectFile, "rw" ).getChannel();
+
+		try
+		{
+			channel.truncate( 0 );
+
+			while( buffer.hasRemaining() )
+				channel.write( buffer );
+		}
+		finally
+		{
+			channel.close();
+		}
+
+		return size;
+	}
+
+	/************************************************************************************
+	 *  Returns the CRC-32 of the bytes between the position and the limit of the buffer
+	 *  (the position is left untouched).
+	 ***********************************************************************************/
+	private static int checksum( ByteBuffer bytes )
+	{
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[ 64 * 1024 ];
+		ByteBuffer view = bytes.duplicate();
+
+		while( view.hasRemaining() )
+		{
+			int count = Math.min( chunk.length, view.remaining() );
+
+			view.get( chunk, 0, count );
+			crc.update( chunk, 0, count );
+		}
+
+		return (int)crc.getValue();
+	}
+
+	/************************************************************************************
+	 *  Returns the file the object was read from (or the source it was assembled from).
+	 ***********************************************************************************/
+	public String getName()
+	{
+		return m_name;
+	}
+
+	public short[] getWords()
+	{
+		return m_words;
+	}
+
+	public int getSymbolCount()
+	{
+		return m_symbols.length;
+	}
+
+	public String getSymbol( int index )
+	{
+		return m_symbols[ index ];
+	}
+
+	/************************************************************************************
+	 *  Returns LABEL or EXTERNAL.
+	 ***********************************************************************************/
+	public byte getKind( int index )
+	{
+		return m_kinds[ index ];
+	}
+
+	/************************************************************************************
+	 *  Returns the offset of a LABEL in the module (-1 for an EXTERNAL).
+	 ***********************************************************************************/
+	public int getValue( int index )
+	{
+		return m_values[ index ];
+	}
+
+	public int getRelocationCount()
+	{
+		return m_relocationWords.length;
+	}
+
+	/************************************************************************************
+	 *  Returns the index of the word that holds the address of the relocation's symbol.
+	 ***********************************************************************************/
+	public int getRelocationWord( int index )
+	{
+		return m_relocationWords[ index ];
+	}
+
+	public int getRelocationSymbol( int index )
+	{
+		return m_relocationSymbols[ index ];
+	}
+}
@@ -24,14 +24,24 @@ import java.util.Scanner;
  *	0.5	-	Minor fixes. -bp
  *	0.6 - 	Added ability to parse comments. -bp
  *	0.7 -	Minor fixes. - bp
+ *	0.8 -	Added the MAPPED input mode. The file is mapped into memory and read line
+ *			by line through a MappedSource instead of a Scanner. -bp
+ *	0.9 -	Each line is tokenized once by advance() into a reusable Instruction. The
+ *			command type and the fields are read from it instead of being searched
+ *			for (and split) with regular expressions on every call. -bp
+ *	0.10 -	A file that cannot be opened is reported with an AssemblerException instead
+ *			of exiting, so a long-running process (AssemblerServer) survives it. -bp
  ***************************************************************************************/
 public class Parser 
 {
 	private File m_inputFile = null;
 	private Scanner m_scanner = null;
+	private MappedSource m_source = null;
+	private InputMode m_inputMode = InputMode.SCANNER;
 	private String m_currentCommand = "";
 	private int m_commandLength = -1;
 	private int m_currentLineNumber = -1;
+	private Instruction m_instruction = new Instruction();
 
 	public Parser()
 	{
@@ -43,6 +53,12 @@ public class Parser
 		init( filePath );
 	}
 	
+	public Parser( String filePath, InputMode inputMode )
+	{
+		this.m_inputMode = inputMode;
+		init( filePath );
+	}
+	
 	/************************************************************************************
 	 *  Initializes the Parser instance with the current file and then sets up the
 	 *  reader. A scanner is initialized to allow class methods to read the file's
@@ -57,16 +73,20 @@ public class Parser
 		if( this.m_inputFile == null )
 			this.m_inputFile = new File( filePath );
 		
-		// Create a scanner to easily check file contents
+		// Create a scanner (or map the file) to easily check file contents
 		try 
 		{
-			this.m_scanner = new Scanner( m_inputFile );
+			openInput();
 		} 
 		catch (FileNotFoundException e) 
 		{
-			System.out.println( "ParserError-init: Scanner couldn't find file!" );
-			e.printStackTrace();
-			System.exit( 1 );
+			throw new AssemblerException( "ParserError-init: Scanner couldn't find file! (" + 
+					e.getMessage() + ")", e );
+		}
+		catch (IOException e) 
+		{
+			throw new AssemblerException( "ParserError-init: Couldn't map file! (" + 
+					e.getMessage() + ")", e );
 		}
 	}
 	
@@ -77,7 +97,8 @@ public class Parser
 	private void reinit( File inputFile )
 	{
 		// Close the current scanner so everything is fresh
-		this.m_scanner.close();
+		if( this.m_scanner != null )
+			this.m_scanner.close();
 		
 		this.m_inputFile = inputFile;
 		
@@ -86,16 +107,37 @@ public class Parser
 		resetCommandLength();
 		resetCurrentLineNumber();
 		
-		// Create a scanner to easily check file contents
+		// Create a scanner (or map the file) to easily check file contents
 		try 
 		{
-			this.m_scanner = new Scanner( m_inputFile );
+			openInput();
 		} 
 		catch (FileNotFoundException e) 
 		{
-			System.out.println( "ParserError-reinit: Scanner couldn't find file!" );
-			e.printStackTrace();
-			System.exit( 1 );
+			throw new AssemblerException( "ParserError-reinit: Scanner couldn't find file! (" + 
+					e.getMessage() + ")", e );
+		}
+		catch (IOException e) 
+		{
+			throw new AssemblerException( "ParserError-reinit: Couldn't map file! (" + 
+					e.getMessage() + ")", e );
+		}
+	}
+	
+	/************************************************************************************
+	 *  Opens the input file with the reader that matches the input mode.
+	 ***********************************************************************************/
+	private void openInput() throws IOException
+	{
+		if( this.m_inputMode == InputMode.MAPPED )
+		{
+			this.m_scanner = null;
+			this.m_source = new MappedSource( m_inputFile );
+		}
+		else
+		{
+			this.m_source = null;
+			this.m_scanner = new Scanner( m_inputFile );
 		}
 	}
 	
@@ -118,6 +160,14 @@ public class Parser
 	 ***********************************************************************************/
 	public static enum Commands { A_COMMAND, C_COMMAND, L_COMMAND, BAD_COMMAND }
 	
+	/************************************************************************************
+	 *  Ways of reading the input file:
+	 *  	- SCANNER reads each line into a String with java.util.Scanner.
+	 *  	- MAPPED maps the file into memory and reads the lines in place. The String
+	 *  	  for a line is only created if getCurrentCommand() is called.
+	 ***********************************************************************************/
+	public static enum InputMode { SCANNER, MAPPED }
+	
 	/************************************************************************************
 	 *  Returns the current inputFile assigned to the Parser instance.  
 	 ***********************************************************************************/
@@ -135,11 +185,23 @@ public class Parser
 		reinit( inputFile );
 	}
 
+	/************************************************************************************
+	 *  Returns the input mode of the Parser instance.
+	 ***********************************************************************************/
+	public InputMode getInputMode()
+	{
+		return m_inputMode;
+	}
+
 	/************************************************************************************
 	 *  Returns the current command. 
 	 ***********************************************************************************/
 	public String getCurrentCommand() 
 	{
+		// Mapped lines are only turned into a String when needed
+		if( m_currentCommand == null )
+			m_currentCommand = m_source.getLine();
+		
 		return m_currentCommand;
 	}
 	
@@ -148,7 +210,16 @@ public class Parser
 	 ***********************************************************************************/
 	public String getCurrentCommandWithoutWhiteSpaces()
 	{
-		return getCurrentCommand().replaceAll( "\\s", "" );
+		return m_instruction.command();
+	}
+	
+	/************************************************************************************
+	 *  Returns the tokenized current command. The same Instruction is refilled by every
+	 *  call to advance(), so its fields can be read without creating any String.
+	 ***********************************************************************************/
+	public Instruction getInstruction()
+	{
+		return m_instruction;
 	}
 	
 	/************************************************************************************
@@ -165,6 +236,7 @@ public class Parser
 	private void resetCurrentCommand()
 	{
 		this.m_currentCommand = "";
+		this.m_instruction.tokenize( this.m_currentCommand );
 	}
 	
 	/************************************************************************************
@@ -180,7 +252,7 @@ public class Parser
 	 ***********************************************************************************/
 	public int getCommandLengthWithoutWhiteSpaces()
 	{
-		return getCurrentCommandWithoutWhiteSpaces().length();
+		return m_instruction.getLength();
 	}
 	
 	/************************************************************************************
@@ -234,7 +306,9 @@ public class Parser
 		boolean hasMoreCommands = false;
 		
 		// Check if there is input in the next line, set boolean flag true if so
-		if( this.m_scanner.hasNextLine() )
+		if( this.m_source != null )
+			hasMoreCommands = this.m_source.hasNextLine();
+		else if( this.m_scanner.hasNextLine() )
 			hasMoreCommands = true;
 		
 		return hasMoreCommands;
@@ -247,11 +321,24 @@ public class Parser
 	 ***********************************************************************************/
 	public void advance()
 	{
+		// Mapped input: move to the next line slice, the String is created on demand
+		if( this.m_source != null )
+		{
+			this.m_source.nextLine();
+			setCurrentCommand( null );
+			setCommandLength( this.m_source.getLineLength() );
+			m_instruction.tokenize( this.m_source );
+			return;
+		}
+		
 		// Read in a line and set it as the current command
 		setCurrentCommand( this.m_scanner.nextLine() );
 		
 		// Read the current command and set the command length
 		setCommandLength( getCurrentCommand().length() );
+		
+		// Tokenize the command once for commandType(), symbol(), dest(), comp(), jump()
+		m_instruction.tokenize( getCurrentCommand() );
 	}
 	
 	/************************************************************************************
@@ -263,32 +350,7 @@ public class Parser
 	 ***********************************************************************************/
 	public Commands commandType()
 	{
-		// Initialize default command
-		Commands cmd = Commands.BAD_COMMAND;
-		
-		// A-register commands always contain @ as a prefix (@(xxx) is allowed)
-		if( getCurrentCommand().contains( "@" ) )
-			cmd = Commands.A_COMMAND;
-		
-		// Computational command in form of comp;jump
-		if( ( getCurrentCommand().contains( ";" )  ||
-				getCurrentCommand().contains( "=" ) ) &&
-				( !getCurrentCommand().contains( "@" ) ) )
-			cmd = Commands.C_COMMAND;
-		
-		// Handles (Xxx) labels
-		if( getCurrentCommand().contains( "(" ) &&
-			getCurrentCommand().contains( ")" ) &&
-			( !getCurrentCommand().contains( "@" ) ) )
-		{
-			cmd = Commands.L_COMMAND;
-		}		
-		
-		// Handles comments (this does not handle in-line comments)
-		if( getCurrentCommand().contains( "//" ) )
-			cmd = Commands.BAD_COMMAND;
-		
-		return cmd;
+		return m_instruction.getType();
 	}
 	
 	/************************************************************************************
@@ -297,39 +359,7 @@ public class Parser
 	 ***********************************************************************************/
 	public String symbol()
 	{
-		// Initialize symbol and start indices
-		String symbol = "";
-		int startIndexAmp = -1;
-		int startIndexLeftParen = -1;
-		int endIndexRightParen = -1;
-		
-		// Grab the trimmed command starting after the @
-		if( ( getCommandLengthWithoutWhiteSpaces() > 0 ) && 
-			( getCurrentCommandWithoutWhiteSpaces().contains( "@" ) ) )
-		{
-			startIndexAmp = getCurrentCommandWithoutWhiteSpaces().indexOf( "@" );
-			symbol = getCurrentCommandWithoutWhiteSpaces().substring( startIndexAmp + 1 );
-		}
-		
-		// Handle (Xxx) case where Xxx is a label
-		if( ( getCommandLengthWithoutWhiteSpaces() > 0 ) && 
-			( !getCurrentCommandWithoutWhiteSpaces().contains( "@" ) ) &&
-			( getCurrentCommandWithoutWhiteSpaces().contains( "(" ) ) &&
-			( getCurrentCommandWithoutWhiteSpaces().contains( ")" ) ) )
-		{
-			startIndexLeftParen = getCurrentCommandWithoutWhiteSpaces().indexOf( "(" );
-			endIndexRightParen	= getCurrentCommandWithoutWhiteSpaces().indexOf( ")" );
-			
-			symbol = getCurrentCommandWithoutWhiteSpaces()
-					.substring( startIndexLeftParen + 1, endIndexRightParen );
-		}
-		
-		// Do nothing if a comment is encountered
-		if( ( getCommandLengthWithoutWhiteSpaces() > 0 ) &&
-				( getCurrentCommandWithoutWhiteSpaces().contains( "//" ) ) )
-			symbol = "";
-		
-		return symbol;
+		return m_instruction.symbol();
 	}
 	
 	/************************************************************************************
@@ -338,25 +368,7 @@ public class Parser
 	 ***********************************************************************************/
 	public String dest()
 	{
-		// Initialize dest
-		String dest = "";
-		
-		if( ( getCommandLengthWithoutWhiteSpaces() > 0 ) &&
-				getCurrentCommandWithoutWhiteSpaces().contains( "=" ) )
-		{
-			// Split up the dest=comp command with the equal sign
-			String[] commandPieces = getCurrentCommandWithoutWhiteSpaces().split( "=" );
-			
-			// Take the first piece (the dest portion)
-			dest = commandPieces[ 0 ];
-		}
-		
-		// Do nothing if a comment is encountered
-		if( ( getCommandLengthWithoutWhiteSpaces() > 0 ) &&
-				( getCurrentCommandWithoutWhiteSpaces().contains( "//" ) ) )
-			dest = "";
-	
-		return dest;
+		return m_instruction.dest();
 	}
 	
 	/************************************************************************************
@@ -365,40 +377,7 @@ public class Parser
 	 ***********************************************************************************/
 	public String comp()
 	{
-		// Initialize comp
-		String comp = "";
-		
-		// Prepare the string array to hold command pieces after split
-		String[] commandPieces = null;
-		
-		// dest=comp case
-		if( ( getCommandLengthWithoutWhiteSpaces() > 0 ) && 
-				getCurrentCommandWithoutWhiteSpaces().contains( "=" ) )
-		{
-			// Split up the dest=comp command with the equal sign
-			commandPieces = getCurrentCommandWithoutWhiteSpaces().split( "=" );
-			
-			// Take the second piece (comp portion) 
-			comp = commandPieces[ 1 ];
-		}
-		
-		// comp;jump case
-		if( ( getCommandLengthWithoutWhiteSpaces() > 0 ) && 
-				getCurrentCommandWithoutWhiteSpaces().contains( ";" ) )
-		{
-			// Split up the comp;jump command with the semi-colon
-			commandPieces = getCurrentCommandWithoutWhiteSpaces().split( ";" );
-			
-			// Take the first piece (comp portion) 
-			comp = commandPieces[ 0 ];
-		}
-		
-		// Do nothing if a comment is encountered
-		if( ( getCommandLengthWithoutWhiteSpaces() > 0 ) &&
-				( getCurrentCommandWithoutWhiteSpaces().contains( "//" ) ) )
-			comp = "";
-					
-		return comp;
+		return m_instruction.comp();
 	}
 	
 	/************************************************************************************
@@ -407,25 +386,6 @@ public class Parser
 	 ***********************************************************************************/
 	public String jump()
 	{
-		// Initialize jump
-		String jump = "";
-				
-		// comp;jump case
-		if( ( getCommandLengthWithoutWhiteSpaces() > 0 ) && 
-				getCurrentCommandWithoutWhiteSpaces().contains( ";") )
-		{
-			// Split up the comp;jump command with the semi-colon
-			String[] commandPieces = getCurrentCommandWithoutWhiteSpaces().split( ";" );
-					
-			// Take the second piece (jump portion)
-			jump = commandPieces[ 1 ];
-		}
-		
-		// Do nothing if a comment is encountered
-		if( ( getCommandLengthWithoutWhiteSpaces() > 0 ) &&
-				( getCurrentCommandWithoutWhiteSpaces().contains( "//" ) ) )
-			jump = "";
-		
-		return jump;
+		return m_instruction.jump();
 	}
 }
\ No newline at end of file
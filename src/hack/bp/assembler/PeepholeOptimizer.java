@@ -0,0 +1,258 @@
+package hack.bp.assembler;
+
+/****************************************************************************************
+ *  Optional stage between the passes that shrinks the parsed program. It looks at a few
+ *  instructions at a time and removes:
+ *
+ *  	- Reloads: an @X while A is known to hold X already (no label in between and no
+ *  	  command that writes A since the last @X).
+ *  	- Dead loads: an @X that is followed by another @ before A is used.
+ *  	- Round trips: M=D right after D=M, or D=M right after M=D (D and M already hold
+ *  	  the same value).
+ *  	- Unreachable code: the commands after an unconditional jump, up to the next label.
+ *
+ *  The list is rewritten until nothing changes. The labels keep their place in the list,
+ *  so once their addresses are defined again (see Assembler.defineLabels()) they point
+ *  to the same commands in the smaller ROM. A program that jumps to numeric addresses
+ *  instead of labels (@42 or a pre-defined symbol such as @R0 still in A at a jump)
+ *  cannot be optimized: optimize() throws an AssemblerException for it.
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ *	0.2 -	A jump to a numeric address is reported instead of being moved. -bp
+ ***************************************************************************************/
+public class PeepholeOptimizer
+{
+	private final static int DEST_A = 0x20;
+	private final static int DEST_D = 0x10;
+	private final static int DEST_M = 0x08;
+	private final static int JUMP_BITS = 0x7;
+
+	// C_COMMAND words (without the dest and jump bits) of the comps that matter here
+	private final static int COMP_D = 0xE000 | ( 0x0C << 6 );
+	private final static int COMP_M = 0xE000 | ( 0x70 << 6 );
+
+	private final static byte REMOVED = -1;
+
+	private int m_reloads = 0;
+	private int m_deadLoads = 0;
+	private int m_roundTrips = 0;
+	private int m_unreachable = 0;
+
+	/************************************************************************************
+	 *  Returns a new list without the instructions that can be removed (the list given
+	 *  is not changed). Throws an AssemblerException if the program jumps to a numeric
+	 *  address.
+	 ***********************************************************************************/
+	public InstructionList optimize( InstructionList instructions )
+	{
+		checkJumps( instructions );
+
+		int size = instructions.size();
+		byte[] types = new byte[ size ];
+		int[] operands = new int[ size ];
+
+		for( int i = 0; i < size; i++ )
+		{
+			types[ i ] = instructions.getType( i );
+			operands[ i ] = instructions.getOperand( i );
+		}
+
+		// Every rule can make room for another one, go on until nothing changes
+		while( removeUnreachable( types, operands ) | removeLoads( types, operands ) |
+				removeRoundTrips( types, operands ) )
+			;
+
+		InstructionList optimized = new InstructionList();
+
+		for( int i = 0; i < size; i++ )
+		{
+			if( types[ i ] != REMOVED )
+				optimized.add( types[ i ], operands[ i ], instructions.getLineNumber( i ) );
+		}
+
+		return optimized;
+	}
+
+	/************************************************************************************
+	 *  Throws an AssemblerException for a jump whose target is a number (a literal or a
+	 *  pre-defined symbol) rather than a label: it would not follow the instructions
+	 *  when they move.
+	 ***********************************************************************************/
+	private static void checkJumps( InstructionList instructions )
+	{
+		final int firstId = SymbolTable.PREDEFINED.size();
+
+		// The @ of a number that is still in A (-1 if A holds anything else)
+		int numeric = -1;
+
+		for( int i = 0; i < instructions.size(); i++ )
+		{
+			byte type = instructions.getType( i );
+			int operand = instructions.getOperand( i );
+
+			if( type == InstructionList.A_LITERAL )
+				numeric = i;
+			else if( type == InstructionList.A_SYMBOL )
+				numeric = ( operand < firstId ) ? i : -1;
+			else if( type == InstructionList.C_COMMAND )
+			{
+				if( ( ( operand & JUMP_BITS ) != 0 ) && ( numeric >= 0 ) )
+					throw new AssemblerException( "Line " + instructions.getLineNumber( i ) + 
+							": Jump to a numeric address, the program cannot be optimized!" );
+
+				if( ( operand & DEST_A ) != 0 )
+					numeric = -1;
+			}
+		}
+	}
+
+	/************************************************************************************
+	 *  Removes the commands between an unconditional jump and the next label.
+	 ***********************************************************************************/
+	private boolean removeUnreachable( byte[] types, int[] operands )
+	{
+		boolean changed = false;
+		boolean reachable = true;
+
+		for( int i = 0; i < types.length; i++ )
+		{
+			if( types[ i ] == REMOVED )
+				continue;
+
+			if( types[ i ] == InstructionList.L_COMMAND )
+				reachable = true;
+			else if( !reachable )
+			{
+				types[ i ] = REMOVED;
+				m_unreachable++;
+				changed = true;
+			}
+			else if( ( types[ i ] == InstructionList.C_COMMAND ) &&
+					( ( operands[ i ] & JUMP_BITS ) == JUMP_BITS ) )
+				reachable = false;
+		}
+
+		return changed;
+	}
+
+	/************************************************************************************
+	 *  Removes the @s that load what A holds already, and the @s whose value is replaced
+	 *  by the next @ before it is used.
+	 ***********************************************************************************/
+	private boolean removeLoads( byte[] types, int[] operands )
+	{
+		boolean changed = false;
+
+		// The last @ that is still in A (-1 if A is unknown), and the last command kept
+		int load = -1;
+		int previous = -1;
+
+		for( int i = 0; i < types.length; i++ )
+		{
+			byte type = types[ i ];
+
+			if( type == REMOVED )
+				continue;
+
+			if( type == InstructionList.L_COMMAND )
+			{
+				// Control can come from anywhere to a label
+				load = -1;
+			}
+			else if( type == InstructionList.C_COMMAND )
+			{
+				if( ( operands[ i ] & DEST_A ) != 0 )
+					load = -1;
+			}
+			else if( ( load >= 0 ) && ( types[ load ] == type ) && ( operands[ load ] == operands[ i ] ) )
+			{
+				types[ i ] = REMOVED;
+				m_reloads++;
+				changed = true;
+				continue;
+			}
+			else
+			{
+				// The previous command was an @ too: its value was never used
+				if( ( previous >= 0 ) && ( previous == load ) )
+				{
+					types[ previous ] = REMOVED;
+					m_deadLoads++;
+					changed = true;
+				}
+
+				load = i;
+			}
+
+			previous = i;
+		}
+
+		return changed;
+	}
+
+	/************************************************************************************
+	 *  Removes M=D after D=M and D=M after M=D.
+	 ***********************************************************************************/
+	private boolean removeRoundTrips( byte[] types, int[] operands )
+	{
+		boolean changed = false;
+		int previous = -1;
+
+		for( int i = 0; i < types.length; i++ )
+		{
+			if( types[ i ] == REMOVED )
+				continue;
+
+			if( ( previous >= 0 ) && ( types[ previous ] == InstructionList.C_COMMAND ) &&
+					( types[ i ] == InstructionList.C_COMMAND ) )
+			{
+				int first = operands[ previous ];
+				int second = operands[ i ];
+
+				if( ( ( first == ( COMP_M | DEST_D ) ) && ( second == ( COMP_D | DEST_M ) ) ) ||
+						( ( first == ( COMP_D | DEST_M ) ) && ( second == ( COMP_M | DEST_D ) ) ) )
+				{
+					types[ i ] = REMOVED;
+					m_roundTrips++;
+					changed = true;
+					continue;
+				}
+			}
+
+			previous = i;
+		}
+
+		return changed;
+	}
+
+	/************************************************************************************
+	 *  Returns the number of instructions removed (labels are never removed).
+	 ***********************************************************************************/
+	public int getRemoved()
+	{
+		return m_reloads + m_deadLoads + m_roundTrips + m_unreachable;
+	}
+
+	public int getReloads()
+	{
+		return m_reloads;
+	}
+
+	public int getDeadLoads()
+	{
+		return m_deadLoads;
+	}
+
+	public int getRoundTrips()
+	{
+		return m_roundTrips;
+	}
+
+	public int getUnreachable()
+	{
+		return m_unreachable;
+	}
+}
@@ -0,0 +1,210 @@
+package hack.bp.assembler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/****************************************************************************************
+ *  Read stage of a pipeline: a thread of its own reads the channel a chunk at a time
+ *  ahead of the consumer and hands the chunks over through a bounded queue. The reads
+ *  (disk, network volume or pipe) then overlap with whatever the consumer does with
+ *  the bytes, and read() only waits when the consumer is faster than the input.
+ *
+ *  The chunks are recycled through a second queue, so at most queueSize + 2 chunks
+ *  exist at any time whatever the size of the input.
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ ***************************************************************************************/
+public class PipelinedReader implements ReadableByteChannel
+{
+	private final static int DEF_CHUNK_SIZE = 64 * 1024;
+	private final static int DEF_QUEUE_SIZE = 4;
+
+	// Marks the end of the input (or a failure) in the queue
+	private final static ByteBuffer END = ByteBuffer.allocate( 0 );
+
+	private ReadableByteChannel m_channel = null;
+	private BlockingQueue<ByteBuffer> m_full = null;
+	private BlockingQueue<ByteBuffer> m_empty = null;
+	private ByteBuffer m_current = null;
+	private Thread m_thread = null;
+	private volatile IOException m_failure = null;
+	private long m_waitTime = 0;
+
+	public PipelinedReader( ReadableByteChannel channel )
+	{
+		this( channel, DEF_CHUNK_SIZE, DEF_QUEUE_SIZE );
+	}
+
+	public PipelinedReader( ReadableByteChannel channel, int chunkSize, int queueSize )
+	{
+		this.m_channel = channel;
+		this.m_full = new ArrayBlockingQueue<ByteBuffer>( queueSize + 1 );
+		this.m_empty = new ArrayBlockingQueue<ByteBuffer>( queueSize + 2 );
+
+		for( int i = 0; i < queueSize + 2; i++ )
+			m_empty.add( ByteBuffer.allocate( chunkSize ) );
+
+		this.m_thread = new Thread( new Runnable()
+		{
+			public void run()
+			{
+				fill();
+			}
+		}, "PipelinedReader" );
+
+		m_thread.setDaemon( true );
+		m_thread.start();
+	}
+
+	/************************************************************************************
+	 *  Body of the read thread: fills the empty chunks until the end of the channel.
+	 ***********************************************************************************/
+	private void fill()
+	{
+		try
+		{
+			while( true )
+			{
+				ByteBuffer chunk = m_empty.take();
+
+				chunk.clear();
+
+				if( m_channel.read( chunk ) < 0 )
+					break;
+
+				chunk.flip();
+				m_full.put( chunk );
+			}
+		}
+		catch (IOException e)
+		{
+			m_failure = e;
+		}
+		catch (InterruptedException e)
+		{
+			// Stopped
+			return;
+		}
+
+		try
+		{
+			m_full.put( END );
+		}
+		catch (InterruptedException e)
+		{
+			// Stopped
+		}
+	}
+
+	/************************************************************************************
+	 *  Copies the bytes of the next chunk into dst (as much as fits). Returns the
+	 *  number of bytes copied, or -1 at the end of the channel. A failure of the read
+	 *  thread is thrown here.
+	 ***********************************************************************************/
+	public int read( ByteBuffer dst ) throws IOException
+	{
+		if( m_current == END )
+			return -1;
+
+		if( !dst.hasRemaining() )
+			return 0;
+
+		if( ( m_current == null ) || !m_current.hasRemaining() )
+		{
+			if( m_current != null )
+				m_empty.add( m_current );
+
+			m_current = take();
+
+			if( m_current == END )
+			{
+				if( m_failure != null )
+					throw m_failure;
+
+				return -1;
+			}
+		}
+
+		int count = Math.min( dst.remaining(), m_current.remaining() );
+		ByteBuffer bytes = m_current.duplicate();
+
+		bytes.limit( bytes.position() + count );
+		dst.put( bytes );
+		m_current.position( m_current.position() + count );
+
+		return count;
+	}
+
+	/************************************************************************************
+	 *  Takes the next chunk from the queue and counts the time spent waiting for it.
+	 ***********************************************************************************/
+	private ByteBuffer take() throws IOException
+	{
+		ByteBuffer chunk = m_full.poll();
+
+		if( chunk != null )
+			return chunk;
+
+		long timerStart = System.nanoTime();
+
+		try
+		{
+			chunk = m_full.take();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( "Interrupted while waiting for the input!" );
+		}
+
+		m_waitTime += System.nanoTime() - timerStart;
+
+		return chunk;
+	}
+
+	/************************************************************************************
+	 *  Stops the read thread and waits for it, without closing the channel (a read in
+	 *  progress is interrupted, which does close an interruptible channel).
+	 ***********************************************************************************/
+	public void stop()
+	{
+		m_thread.interrupt();
+
+		try
+		{
+			m_thread.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/************************************************************************************
+	 *  Returns the time read() spent waiting for the input, in ns.
+	 ***********************************************************************************/
+	public long getWaitTime()
+	{
+		return m_waitTime;
+	}
+
+	public boolean isOpen()
+	{
+		return m_channel.isOpen();
+	}
+
+	/************************************************************************************
+	 *  Stops the read thread and closes the channel.
+	 ***********************************************************************************/
+	public void close() throws IOException
+	{
+		stop();
+		m_channel.close();
+	}
+}
@@ -0,0 +1,293 @@
+package hack.bp.assembler;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/****************************************************************************************
+ *  Write stage of a pipeline: a HackWriter whose formatting and channel writes are done
+ *  by a thread of its own. The calling thread only appends the words (and patches) to
+ *  a batch, and a full batch is handed over through a bounded queue, so encoding the
+ *  next lines overlaps with writing the previous ones. The caller waits only when the
+ *  output is slower than the encoding.
+ *
+ *  flush() and close() wait until the write thread has written everything handed over
+ *  before them. An IOException of the write thread is thrown by the next call.
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ ***************************************************************************************/
+public class PipelinedWriter extends HackWriter
+{
+	private final static int DEF_BATCH_SIZE = 8 * 1024;
+	private final static int DEF_QUEUE_SIZE = 4;
+
+	// A batch entry that is not a word: a patch, followed by the line and the word
+	private final static int PATCH = -1;
+
+	private final static int WRITE = 0;
+	private final static int FLUSH = 1;
+	private final static int CLOSE = 2;
+
+	private BlockingQueue<Batch> m_full = null;
+	private BlockingQueue<Batch> m_empty = null;
+	private BlockingQueue<Batch> m_done = new ArrayBlockingQueue<Batch>( 1 );
+	private Batch m_batch = null;
+	private Thread m_thread = null;
+	private volatile IOException m_failure = null;
+	private long m_waitTime = 0;
+
+	public PipelinedWriter( WritableByteChannel channel )
+	{
+		this( channel, DEF_BATCH_SIZE, DEF_QUEUE_SIZE );
+	}
+
+	public PipelinedWriter( WritableByteChannel channel, int batchSize, int queueSize )
+	{
+		super( channel );
+
+		this.m_full = new ArrayBlockingQueue<Batch>( queueSize );
+		this.m_empty = new ArrayBlockingQueue<Batch>( queueSize + 1 );
+
+		// Room for a patch (3 entries) at the end of a batch
+		for( int i = 0; i < queueSize + 1; i++ )
+			m_empty.add( new Batch( Math.max( batchSize, 3 ) ) );
+
+		this.m_batch = m_empty.poll();
+		this.m_thread = new Thread( new Runnable()
+		{
+			public void run()
+			{
+				drain();
+			}
+		}, "PipelinedWriter" );
+
+		m_thread.setDaemon( true );
+		m_thread.start();
+	}
+
+	/************************************************************************************
+	 *  Body of the write thread: writes the batches in order. After a failure the
+	 *  batches are only recycled, so the caller never blocks.
+	 ***********************************************************************************/
+	private void drain()
+	{
+		try
+		{
+			while( true )
+			{
+				Batch batch = m_full.take();
+				int command = batch.m_command;
+
+				try
+				{
+					if( m_failure == null )
+					{
+						write( batch );
+
+						if( command == FLUSH )
+							super.flush();
+						else if( command == CLOSE )
+							super.close();
+					}
+				}
+				catch (IOException e)
+				{
+					m_failure = e;
+				}
+
+				batch.m_count = 0;
+				batch.m_command = WRITE;
+
+				if( command == WRITE )
+					m_empty.put( batch );
+				else
+				{
+					m_done.put( batch );
+
+					if( command == CLOSE )
+						return;
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// Stopped
+		}
+	}
+
+	/************************************************************************************
+	 *  Writes the words and applies the patches of a batch, in order.
+	 ***********************************************************************************/
+	private void write( Batch batch ) throws IOException
+	{
+		int[] entries = batch.m_entries;
+
+		for( int i = 0; i < batch.m_count; i++ )
+		{
+			if( entries[ i ] == PATCH )
+			{
+				super.patchWord( entries[ i + 1 ], entries[ i + 2 ] );
+				i += 2;
+			}
+			else
+				super.writeWord( entries[ i ] );
+		}
+	}
+
+	@Override
+	public void writeWord( int word ) throws IOException
+	{
+		if( m_batch.m_count == m_batch.m_entries.length )
+			send( WRITE );
+
+		m_batch.m_entries[ m_batch.m_count++ ] = word & 0xFFFF;
+	}
+
+	@Override
+	public void writeWords( int[] words, int start, int end ) throws IOException
+	{
+		for( int i = start; i < end; i++ )
+			writeWord( words[ i ] );
+	}
+
+	/************************************************************************************
+	 *  Queues the patch after the words written so far (lines up to 2^31 - 1).
+	 ***********************************************************************************/
+	@Override
+	public void patchWord( long line, int word ) throws IOException
+	{
+		if( m_batch.m_count + 3 > m_batch.m_entries.length )
+			send( WRITE );
+
+		int[] entries = m_batch.m_entries;
+
+		entries[ m_batch.m_count++ ] = PATCH;
+		entries[ m_batch.m_count++ ] = (int)line;
+		entries[ m_batch.m_count++ ] = word;
+	}
+
+	/************************************************************************************
+	 *  Hands everything over and waits until it has been written to the channel.
+	 ***********************************************************************************/
+	@Override
+	public void flush() throws IOException
+	{
+		send( FLUSH );
+		await();
+	}
+
+	/************************************************************************************
+	 *  Hands everything over, waits until it has been written and the channel closed,
+	 *  and ends the write thread.
+	 ***********************************************************************************/
+	@Override
+	public void close() throws IOException
+	{
+		send( CLOSE );
+		await();
+	}
+
+	/************************************************************************************
+	 *  Stops the write thread without writing what is left (after an error).
+	 ***********************************************************************************/
+	public void stop()
+	{
+		m_thread.interrupt();
+
+		try
+		{
+			m_thread.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/************************************************************************************
+	 *  Returns the time the caller spent waiting for an empty batch, in ns.
+	 ***********************************************************************************/
+	public long getWaitTime()
+	{
+		return m_waitTime;
+	}
+
+	/************************************************************************************
+	 *  Queues the current batch with the command and takes an empty one.
+	 ***********************************************************************************/
+	private void send( int command ) throws IOException
+	{
+		checkFailure();
+
+		m_batch.m_command = command;
+
+		try
+		{
+			m_full.put( m_batch );
+
+			if( command != WRITE )
+			{
+				m_batch = null;
+				return;
+			}
+
+			m_batch = m_empty.poll();
+
+			if( m_batch == null )
+			{
+				long timerStart = System.nanoTime();
+
+				m_batch = m_empty.take();
+				m_waitTime += System.nanoTime() - timerStart;
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( "Interrupted while writing the output!" );
+		}
+	}
+
+	/************************************************************************************
+	 *  Waits for the write thread to finish a FLUSH or CLOSE batch and takes it back.
+	 ***********************************************************************************/
+	private void await() throws IOException
+	{
+		try
+		{
+			m_batch = m_done.take();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( "Interrupted while writing the output!" );
+		}
+
+		checkFailure();
+	}
+
+	private void checkFailure() throws IOException
+	{
+		if( m_failure != null )
+			throw m_failure;
+	}
+
+	/************************************************************************************
+	 *  Words (and patches) handed over to the write thread at once.
+	 ***********************************************************************************/
+	private static class Batch
+	{
+		private int[] m_entries = null;
+		private int m_count = 0;
+		private int m_command = WRITE;
+
+		Batch( int size )
+		{
+			this.m_entries = new int[ size ];
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package hack.bp.assembler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/****************************************************************************************
+ *  Packed binary ROM image. This is the same machine code as the .hack text file, but
+ *  stored as raw 16-bit words so a simulator (or a flashing tool) can load it without
+ *  parsing any text. The layout is big-endian:
+ *
+ *  	offset  size  field
+ *  	0       4     magic "HACK"
+ *  	4       2     format version (1)
+ *  	6       2     reserved (0)
+ *  	8       4     number of words
+ *  	12      4     CRC-32 of the words
+ *  	16      2*n   the words
+ *
+ *  Writer streams the words to a FileChannel through a fixed buffer and fills in the
+ *  header when it is closed. read() maps the file and hands out the words as a
+ *  ShortBuffer view over the mapping, so nothing is copied.
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ ***************************************************************************************/
+public class RomImage
+{
+	public final static int MAGIC = 0x4841434B;
+	public final static short VERSION = 1;
+	public final static int HEADER_SIZE = 16;
+
+	private final static int DEF_BUFFER_SIZE = 64 * 1024;
+
+	/************************************************************************************
+	 *  Maps a ROM image and returns its words. The header and the checksum are checked
+	 *  first; an IOException is thrown if the file is not a valid image.
+	 ***********************************************************************************/
+	public static ShortBuffer read( File romFile ) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile( romFile, "r" );
+		MappedByteBuffer buffer = null;
+
+		try
+		{
+			FileChannel channel = file.getChannel();
+
+			if( ( channel.size() < HEADER_SIZE ) || ( channel.size() > Integer.MAX_VALUE ) )
+				throw new IOException( "Not a ROM image: " + romFile );
+
+			buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+		}
+		finally
+		{
+			file.close();
+		}
+
+		buffer.order( ByteOrder.BIG_ENDIAN );
+
+		// Check the header
+		if( ( buffer.getInt( 0 ) != MAGIC ) || ( buffer.getShort( 4 ) != VERSION ) )
+			throw new IOException( "Not a ROM image: " + romFile );
+
+		int length = buffer.getInt( 8 );
+		int checksum = buffer.getInt( 12 );
+
+		if( ( length < 0 ) || ( (long)length * 2 != buffer.limit() - HEADER_SIZE ) )
+			throw new IOException( "ROM image length does not match its header: " + romFile );
+
+		// Check the words
+		buffer.position( HEADER_SIZE );
+		ByteBuffer words = buffer.slice();
+
+		if( checksum( words ) != checksum )
+			throw new IOException( "ROM image checksum does not match: " + romFile );
+
+		return words.order( ByteOrder.BIG_ENDIAN ).asShortBuffer();
+	}
+
+	/************************************************************************************
+	 *  Returns the CRC-32 of the bytes between the position and the limit of the buffer
+	 *  (the position is left untouched).
+	 ***********************************************************************************/
+	private static int checksum( ByteBuffer bytes )
+	{
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[ DEF_BUFFER_SIZE ];
+		ByteBuffer view = bytes.duplicate();
+
+		while( view.hasRemaining() )
+		{
+			int count = Math.min( chunk.length, view.remaining() );
+
+			view.get( chunk, 0, count );
+			crc.update( chunk, 0, count );
+		}
+
+		return (int)crc.getValue();
+	}
+
+	/************************************************************************************
+	 *  Streams words into a ROM image file.
+	 ***********************************************************************************/
+	public static class Writer
+	{
+		private FileChannel m_channel = null;
+		private ByteBuffer m_buffer = ByteBuffer.allocate( DEF_BUFFER_SIZE );
+		private CRC32 m_crc = new CRC32();
+		private int m_length = 0;
+
+		/********************************************************************************
+		 *  Creates (or truncates) the file and leaves room for the header.
+		 *******************************************************************************/
+		public Writer( File romFile ) throws IOException
+		{
+			this.m_channel = new RandomAccessFile( romFile, "rw" ).getChannel();
+			this.m_channel.truncate( 0 );
+			this.m_channel.position( HEADER_SIZE );
+		}
+
+		/********************************************************************************
+		 *  Appends the lowest 16 bits of the word.
+		 *******************************************************************************/
+		public void writeWord( int word ) throws IOException
+		{
+			if( m_buffer.remaining() < 2 )
+				flush();
+
+			m_buffer.putShort( (short)word );
+			m_length++;
+		}
+
+		/********************************************************************************
+		 *  Returns the number of words written so far.
+		 *******************************************************************************/
+		public int getLength()
+		{
+			return m_length;
+		}
+
+		/********************************************************************************
+		 *  Writes the remaining words, fills in the header and closes the file.
+		 *******************************************************************************/
+		public void close() throws IOException
+		{
+			try
+			{
+				flush();
+
+				ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+
+				header.putInt( MAGIC );
+				header.putShort( VERSION );
+				header.putShort( (short)0 );
+				header.putInt( m_length );
+				header.putInt( (int)m_crc.getValue() );
+				header.flip();
+
+				int position = 0;
+
+				while( header.hasRemaining() )
+					position += m_channel.write( header, position );
+			}
+			finally
+			{
+				m_channel.close();
+			}
+		}
+
+		/********************************************************************************
+		 *  Writes the buffered words to the file and adds them to the checksum.
+		 *******************************************************************************/
+		private void flush() throws IOException
+		{
+			m_crc.update( m_buffer.array(), 0, m_buffer.position() );
+			m_buffer.flip();
+
+			while( m_buffer.hasRemaining() )
+				m_channel.write( m_buffer );
+
+			m_buffer.clear();
+		}
+	}
+}
@@ -0,0 +1,490 @@
+package hack.bp.assembler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/****************************************************************************************
+ *  Assembles a stream (stdin in a pipeline) in a single pass and writes every word as
+ *  soon as it is known. Nothing of the source is kept once a line has been read.
+ *
+ *  A symbol that has no address yet (a label further down, or a variable, which is only
+ *  known to be one at the end) is a forward reference. Its word is written as a
+ *  placeholder and the reference is added to the symbol's patch chain. When the label
+ *  is defined, or at the end for the variables (in order of their first reference, so
+ *  they get the same addresses as with the Assembler), the chain is walked and every
+ *  word on it patched:
+ *
+ *  	- With setPatchInPlace( true ), for a file the caller opened for writing (the
+ *  	  -onepass mode), the placeholders are written right away and patched in place
+ *  	  (see HackWriter.patchWord()). Memory depends on the number of forward
+ *  	  references waiting, not on the program.
+ *  	- Otherwise (stdout, which may be a pipe or a file opened to append to, where a
+ *  	  positional write lands at the end), what has been written is never changed:
+ *  	  the words from the first waiting reference on are held back (4 bytes each)
+ *  	  and written as soon as the references before them are resolved.
+ *
+ *  With setPipelined( true ) the reading and the writing are stages of their own (see
+ *  PipelinedReader and PipelinedWriter): the input is read ahead, tokenized and encoded
+ *  by the calling thread, and the words are formatted and written behind it, so
+ *  waiting for the disk or a slow pipe overlaps with the assembly.
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ *	0.2 -	Added setPipelined() to read and write on threads of their own. -bp
+ *	0.3 -	A label past the end of the ROM is only an error if it is referenced. -bp
+ *	0.4 -	A value that is not a number is reported with its line. -bp
+ *	0.5 -	The words are only patched in place with setPatchInPlace( true ): on stdout
+ *			opened with >> the patches were appended to the end. -bp
+ ***************************************************************************************/
+public class StreamingAssembler
+{
+	private final static int VAR_START_ADDRESS = 16;
+	private final static int MAX_ADDRESS = ( 1 << 15 ) - 1;
+	private final static int DEF_CHUNK_SIZE = 64 * 1024;
+	private final static int UNRESOLVED = -1;
+
+	private SymbolTable m_symbolTable = new SymbolTable( SymbolTable.PREDEFINED );
+	private Instruction m_instruction = new Instruction();
+	private HackWriter m_out = null;
+	private boolean m_patchInPlace = false;
+	private boolean m_patchFile = false;
+	private boolean m_pipelined = false;
+	private AssemblerMetrics m_metrics = new AssemblerMetrics();
+
+	// Address of the next word
+	private int m_address = 0;
+
+	// Held back words (pipe): m_window[ i - m_windowStart ] is word i, from m_windowHead on
+	private int[] m_window = new int[ 256 ];
+	private int m_windowStart = 0;
+	private int m_windowHead = 0;
+
+	// Patch chains: for each symbol id, its last waiting reference (node + 1, 0 if none)
+	private int[] m_chains = new int[ 64 ];
+
+	// Nodes of the chains: the word to patch and the next node + 1 (free nodes are chained too)
+	private int[] m_nodeWords = new int[ 64 ];
+	private int[] m_nodeNext = new int[ 64 ];
+	private int m_nodeCount = 0;
+	private int m_freeNodes = 0;
+	private int m_waiting = 0;
+	private int m_maxWaiting = 0;
+	private int m_maxHeldBack = 0;
+
+	// Symbols in the order of their first forward reference (the variables among them)
+	private int[] m_referenceOrder = new int[ 64 ];
+	private int m_referenceCount = 0;
+	private int m_nextVariable = VAR_START_ADDRESS;
+
+	/************************************************************************************
+	 *  Reads the source from in until its end and writes the .hack text to out (which
+	 *  is flushed but left open). Returns the number of words written. Throws an
+	 *  AssemblerException if the source cannot be assembled.
+	 ***********************************************************************************/
+	public int assemble( ReadableByteChannel in, WritableByteChannel out )
+	{
+		long timerStart = System.nanoTime();
+
+		PipelinedReader reader = null;
+		PipelinedWriter writer = null;
+
+		if( m_pipelined )
+		{
+			in = reader = new PipelinedReader( in );
+			m_out = writer = new PipelinedWriter( out );
+		}
+		else
+			m_out = new HackWriter( out );
+
+		m_patchInPlace = m_patchFile && m_out.canPatch();
+		m_metrics.m_source = "<stream>";
+		m_metrics.m_jobs = 1;
+
+		try
+		{
+			read( in );
+			defineVariables();
+
+			if( !m_patchInPlace )
+				release();
+
+			m_out.flush();
+		}
+		catch (IOException e)
+		{
+			throw new AssemblerException( "Error: " + e.getMessage(), e );
+		}
+		finally
+		{
+			// The stages are idle unless the assembly failed half-way
+			if( reader != null )
+				reader.stop();
+
+			if( writer != null )
+				writer.stop();
+		}
+
+		m_metrics.m_words = m_address;
+		m_metrics.m_bytesWritten = m_out.getBytesWritten();
+		m_metrics.m_symbols = m_symbolTable.size() - SymbolTable.PREDEFINED.size();
+		m_metrics.m_totalTime = System.nanoTime() - timerStart;
+
+		return m_address;
+	}
+
+	/************************************************************************************
+	 *  Reads the input a chunk at a time and assembles every complete line.
+	 ***********************************************************************************/
+	private void read( ReadableByteChannel in ) throws IOException
+	{
+		ByteBuffer chunk = ByteBuffer.allocate( DEF_CHUNK_SIZE );
+		int lineNumber = 0;
+		boolean end = false;
+
+		while( !end )
+		{
+			end = ( in.read( chunk ) < 0 );
+
+			// The lines up to the last new line (all of them at the end)
+			int limit = chunk.position();
+
+			if( !end )
+			{
+				while( ( limit > 0 ) && ( chunk.get( limit - 1 ) != '\n' ) )
+					limit--;
+
+				// A line longer than the chunk
+				if( limit == 0 )
+				{
+					if( !chunk.hasRemaining() )
+					{
+						chunk.flip();
+						chunk = ByteBuffer.allocate( chunk.capacity() * 2 ).put( chunk );
+					}
+
+					continue;
+				}
+			}
+
+			m_metrics.m_bytesRead += limit;
+
+			ByteBuffer lines = chunk.duplicate();
+
+			lines.position( 0 );
+			lines.limit( limit );
+
+			MappedSource source = new MappedSource( lines );
+
+			while( source.hasNextLine() )
+			{
+				source.nextLine();
+				m_instruction.tokenize( source );
+				assemble( m_instruction, ++lineNumber );
+			}
+
+			// Keep the start of the next line
+			chunk.limit( chunk.position() );
+			chunk.position( limit );
+			chunk.compact();
+		}
+
+		m_metrics.m_linesRead = lineNumber;
+	}
+
+	/************************************************************************************
+	 *  Assembles one tokenized line.
+	 ***********************************************************************************/
+	private void assemble( Instruction instruction, int lineNumber ) throws IOException
+	{
+		Parser.Commands commandType = instruction.getType();
+
+		// A_COMMAND - The value, the address of the symbol or a placeholder
+		if( commandType == Parser.Commands.A_COMMAND )
+		{
+			if( !instruction.symbolHasLetter() )
+			{
+				writeWord( checkAddress( Assembler.literalValue( instruction, lineNumber ), 
+						lineNumber ) );
+				m_metrics.m_aLiterals++;
+				return;
+			}
+
+			int id = m_symbolTable.intern( instruction.getChars(),
+					instruction.getSymbolStart(), instruction.getSymbolEnd() );
+
+			if( m_symbolTable.isDefined( id ) )
+				writeWord( checkAddress( m_symbolTable.getAddress( id ), lineNumber ) );
+			else
+			{
+				addReference( id, m_address );
+				writeWord( UNRESOLVED );
+			}
+
+			m_metrics.m_aSymbols++;
+		}
+
+		// C_COMMAND - The encoded word
+		else if( commandType == Parser.Commands.C_COMMAND )
+		{
+			int word = Code.cCommand( instruction );
+
+			if( word == Code.UNKNOWN )
+				throw new AssemblerException( "Line " + lineNumber +
+						": Unknown mnemonic in '" + instruction.command() + "'!" );
+
+			writeWord( word );
+			m_metrics.m_cCommands++;
+		}
+
+		// L_COMMAND - Define the label and patch the words waiting for it
+		else if( commandType == Parser.Commands.L_COMMAND )
+		{
+			int id = m_symbolTable.intern( instruction.getChars(),
+					instruction.getSymbolStart(), instruction.getSymbolEnd() );
+
+			if( m_symbolTable.isDefined( id ) )
+				throw new AssemblerException(
+						"Assembly file contains multiple symbols of the same label!" );
+
+			m_symbolTable.setAddress( id, m_address );
+
+			// Only an address that is used has to fit
+			if( ( id < m_chains.length ) && ( m_chains[ id ] != 0 ) )
+				resolve( id, checkAddress( m_address, lineNumber ) );
+			m_metrics.m_labels++;
+		}
+
+		// BAD_COMMAND - Comments and blank lines
+		else
+			m_metrics.m_otherLines++;
+	}
+
+	/************************************************************************************
+	 *  Returns the address if it fits in an A_COMMAND, or throws an AssemblerException.
+	 ***********************************************************************************/
+	private static int checkAddress( int address, int lineNumber )
+	{
+		if( ( address < 0 ) || ( address > MAX_ADDRESS ) )
+			throw new AssemblerException( "Line " + lineNumber + ": The address " +
+					address + " does not fit in an A_COMMAND!" );
+
+		return address;
+	}
+
+	/************************************************************************************
+	 *  Appends a word (UNRESOLVED for a placeholder).
+	 ***********************************************************************************/
+	private void writeWord( int word ) throws IOException
+	{
+		if( m_patchInPlace )
+			m_out.writeWord( ( word == UNRESOLVED ) ? 0 : word );
+		else if( ( m_windowHead == m_address ) && ( word != UNRESOLVED ) )
+		{
+			// Nothing is held back
+			m_out.writeWord( word );
+			m_windowStart = m_windowHead = m_address + 1;
+		}
+		else
+		{
+			int index = m_address - m_windowStart;
+
+			if( index == m_window.length )
+			{
+				// Drop the words already written before growing
+				int kept = m_address - m_windowHead;
+
+				if( kept < m_window.length / 2 )
+					System.arraycopy( m_window, m_windowHead - m_windowStart, m_window, 0, kept );
+				else
+				{
+					int[] window = new int[ m_window.length * 2 ];
+
+					System.arraycopy( m_window, m_windowHead - m_windowStart, window, 0, kept );
+					m_window = window;
+				}
+
+				m_windowStart = m_windowHead;
+				index = kept;
+			}
+
+			m_window[ index ] = word;
+			m_maxHeldBack = Math.max( m_maxHeldBack, m_address + 1 - m_windowHead );
+		}
+
+		m_address++;
+	}
+
+	/************************************************************************************
+	 *  Adds the word at the address to the patch chain of the symbol.
+	 ***********************************************************************************/
+	private void addReference( int id, int address )
+	{
+		if( id >= m_chains.length )
+			m_chains = Arrays.copyOf( m_chains, Math.max( id + 1, m_chains.length * 2 ) );
+
+		// First reference: remember the order for the variables
+		if( m_chains[ id ] == 0 )
+		{
+			if( m_referenceCount == m_referenceOrder.length )
+				m_referenceOrder = Arrays.copyOf( m_referenceOrder, m_referenceCount * 2 );
+
+			m_referenceOrder[ m_referenceCount++ ] = id;
+		}
+
+		int node = m_freeNodes - 1;
+
+		if( node >= 0 )
+			m_freeNodes = m_nodeNext[ node ];
+		else
+		{
+			if( m_nodeCount == m_nodeWords.length )
+			{
+				m_nodeWords = Arrays.copyOf( m_nodeWords, m_nodeCount * 2 );
+				m_nodeNext = Arrays.copyOf( m_nodeNext, m_nodeCount * 2 );
+			}
+
+			node = m_nodeCount++;
+		}
+
+		m_nodeWords[ node ] = address;
+		m_nodeNext[ node ] = m_chains[ id ];
+		m_chains[ id ] = node + 1;
+
+		m_waiting++;
+		m_maxWaiting = Math.max( m_maxWaiting, m_waiting );
+	}
+
+	/************************************************************************************
+	 *  Patches every word waiting for the symbol and frees its chain.
+	 ***********************************************************************************/
+	private void resolve( int id, int address ) throws IOException
+	{
+		if( id >= m_chains.length )
+			return;
+
+		int next = m_chains[ id ];
+
+		if( next == 0 )
+			return;
+
+		m_chains[ id ] = 0;
+
+		while( next != 0 )
+		{
+			int node = next - 1;
+			int word = m_nodeWords[ node ];
+
+			if( m_patchInPlace )
+				m_out.patchWord( word, address );
+			else
+				m_window[ word - m_windowStart ] = address;
+
+			next = m_nodeNext[ node ];
+			m_nodeNext[ node ] = m_freeNodes;
+			m_freeNodes = node + 1;
+			m_waiting--;
+		}
+
+		if( !m_patchInPlace )
+			release();
+	}
+
+	/************************************************************************************
+	 *  Writes the held back words up to the first one that is still waiting.
+	 ***********************************************************************************/
+	private void release() throws IOException
+	{
+		int end = m_windowHead - m_windowStart;
+		int head = end;
+
+		while( ( head < m_address - m_windowStart ) && ( m_window[ head ] != UNRESOLVED ) )
+			head++;
+
+		if( head > end )
+		{
+			m_out.writeWords( m_window, end, head );
+			m_windowHead = m_windowStart + head;
+		}
+	}
+
+	/************************************************************************************
+	 *  Gives the symbols that were never defined as labels their RAM addresses (16 and
+	 *  on), in the order of their first reference.
+	 ***********************************************************************************/
+	private void defineVariables() throws IOException
+	{
+		for( int i = 0; i < m_referenceCount; i++ )
+		{
+			int id = m_referenceOrder[ i ];
+
+			if( m_symbolTable.isDefined( id ) )
+				continue;
+
+			m_symbolTable.setAddress( id, m_nextVariable++ );
+			m_metrics.m_variables++;
+			resolve( id, m_symbolTable.getAddress( id ) );
+		}
+	}
+
+	/************************************************************************************
+	 *  Reads and writes on threads of their own (off by default).
+	 ***********************************************************************************/
+	public void setPipelined( boolean pipelined )
+	{
+		this.m_pipelined = pipelined;
+	}
+
+	public boolean isPipelined()
+	{
+		return m_pipelined;
+	}
+
+	/************************************************************************************
+	 *  Patches the words in place when the output is a file that can seek (off by
+	 *  default). Only for a file opened for writing, not appending.
+	 ***********************************************************************************/
+	public void setPatchInPlace( boolean patchInPlace )
+	{
+		this.m_patchFile = patchInPlace;
+	}
+
+	public boolean isPatchInPlace()
+	{
+		return m_patchFile;
+	}
+
+	/************************************************************************************
+	 *  Returns the metrics of the job (source, lines, commands, words...).
+	 ***********************************************************************************/
+	public AssemblerMetrics getMetrics()
+	{
+		return m_metrics;
+	}
+
+	/************************************************************************************
+	 *  Returns the largest number of forward references that were waiting at once.
+	 ***********************************************************************************/
+	public int getMaxWaiting()
+	{
+		return m_maxWaiting;
+	}
+
+	/************************************************************************************
+	 *  Returns the largest number of words held back at once (0 when the output is a
+	 *  file and the words are patched in place).
+	 ***********************************************************************************/
+	public int getMaxHeldBack()
+	{
+		return m_maxHeldBack;
+	}
+
+	public SymbolTable getSymbolTable()
+	{
+		return m_symbolTable;
+	}
+}
@@ -0,0 +1,357 @@
+package hack.bp.assembler;
+
+import java.util.Arrays;
+
+/****************************************************************************************
+ *  Symbol table of one assembly job: maps labels, variables and the pre-defined symbols
+ *  to their addresses.
+ *
+ *  The pre-defined symbols live in PREDEFINED, which is shared by every job and cannot
+ *  be changed. A job starts from a copy of it (see the copy constructor), so jobs on
+ *  different threads never see each other's symbols.
+ *
+ *  The table is an open-addressing hash table over primitive arrays. Every symbol gets
+ *  an id (0, 1, 2... in the order they were added) and an int address, which is
+ *  UNDEFINED until it is set. The characters of the symbols are kept in one shared char
+ *  array, so a symbol can be looked up (or added) straight from a slice of the parser's
+ *  buffer without creating a String. Once the id is known, reading or assigning the
+ *  address is a plain array access.
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ *	0.2 -	Replaced the HashMap<String, Integer> with open addressing over int arrays.
+ *			Symbols are looked up from char slices and have ids. -bp
+ *	0.3 -	Added clearAddresses(). -bp
+ *	0.4 -	Removed getOrAssign(): the passes intern the symbols and use their ids. -bp
+ ***************************************************************************************/
+public class SymbolTable
+{
+	public final static int UNDEFINED = -1;
+
+	private final static int DEF_SYM_TABLE_CNT = 64;
+	private final static int DEF_CHARS_SIZE = 512;
+
+	public final static SymbolTable PREDEFINED = createPredefined();
+
+	// Entries, indexed by id
+	private int[] m_keyStarts = null;
+	private int[] m_keyLengths = null;
+	private int[] m_hashes = null;
+	private int[] m_addresses = null;
+	private int m_size = 0;
+
+	// Characters of all the symbols, back to back
+	private char[] m_chars = null;
+	private int m_charCount = 0;
+
+	// Hash slots holding id + 1 (0 is an empty slot)
+	private int[] m_slots = null;
+	private boolean m_readOnly = false;
+
+	/************************************************************************************
+	 *  Creates an empty table.
+	 ***********************************************************************************/
+	public SymbolTable()
+	{
+		this.m_keyStarts = new int[ DEF_SYM_TABLE_CNT ];
+		this.m_keyLengths = new int[ DEF_SYM_TABLE_CNT ];
+		this.m_hashes = new int[ DEF_SYM_TABLE_CNT ];
+		this.m_addresses = new int[ DEF_SYM_TABLE_CNT ];
+		this.m_chars = new char[ DEF_CHARS_SIZE ];
+		this.m_slots = new int[ DEF_SYM_TABLE_CNT * 2 ];
+	}
+
+	/************************************************************************************
+	 *  Creates a table holding the same symbols (with the same ids) as base, usually
+	 *  PREDEFINED. This is a handful of array copies. The new table can be changed
+	 *  even when base cannot.
+	 ***********************************************************************************/
+	public SymbolTable( SymbolTable base )
+	{
+		this.m_keyStarts = base.m_keyStarts.clone();
+		this.m_keyLengths = base.m_keyLengths.clone();
+		this.m_hashes = base.m_hashes.clone();
+		this.m_addresses = base.m_addresses.clone();
+		this.m_size = base.m_size;
+		this.m_chars = base.m_chars.clone();
+		this.m_charCount = base.m_charCount;
+		this.m_slots = base.m_slots.clone();
+	}
+
+	/************************************************************************************
+	 *  Pre-defined symbols for assembler.
+	 ***********************************************************************************/
+	private static SymbolTable createPredefined()
+	{
+		SymbolTable table = new SymbolTable();
+
+		table.put( "SP", 	 	0 );
+		table.put( "LCL",  	1 );
+		table.put( "ARG",  	2 );
+		table.put( "THIS", 	3 );
+		table.put( "THAT", 	4 );
+		table.put( "R0",	 	0 );
+		table.put( "R1",	 	1 );
+		table.put( "R2",	 	2 );
+		table.put( "R3",	 	3 );
+		table.put( "R4",	 	4 );
+		table.put( "R5",	 	5 );
+		table.put( "R6",	 	6 );
+		table.put( "R7",	 	7 );
+		table.put( "R8",	 	8 );
+		table.put( "R9",	 	9 );
+		table.put( "R10",	 	10 );
+		table.put( "R11",	 	11 );
+		table.put( "R12",	 	12 );
+		table.put( "R13",	 	13 );
+		table.put( "R14",	 	14 );
+		table.put( "R15",	   	15 );
+		table.put( "SCREEN", 	16384 );
+		table.put( "KBD", 		24576 );
+
+		table.m_readOnly = true;
+
+		return table;
+	}
+
+	/************************************************************************************
+	 *  Returns the id of the symbol in chars[start, end), or UNDEFINED if it is not in
+	 *  the table.
+	 ***********************************************************************************/
+	public int find( char[] chars, int start, int end )
+	{
+		int hash = hash( chars, start, end );
+		int mask = m_slots.length - 1;
+
+		for( int slot = hash & mask; m_slots[ slot ] != 0; slot = ( slot + 1 ) & mask )
+		{
+			int id = m_slots[ slot ] - 1;
+
+			if( ( m_hashes[ id ] == hash ) && keyEquals( id, chars, start, end ) )
+				return id;
+		}
+
+		return UNDEFINED;
+	}
+
+	/************************************************************************************
+	 *  Returns the id of the symbol in chars[start, end). The symbol is added (with an
+	 *  UNDEFINED address) if it is not in the table yet. One probe either way.
+	 ***********************************************************************************/
+	public int intern( char[] chars, int start, int end )
+	{
+		int hash = hash( chars, start, end );
+		int mask = m_slots.length - 1;
+		int slot = hash & mask;
+
+		for( ; m_slots[ slot ] != 0; slot = ( slot + 1 ) & mask )
+		{
+			int id = m_slots[ slot ] - 1;
+
+			if( ( m_hashes[ id ] == hash ) && keyEquals( id, chars, start, end ) )
+				return id;
+		}
+
+		checkWritable();
+
+		// Add the entry in the empty slot the probe stopped at
+		int id = addEntry( chars, start, end, hash );
+		m_slots[ slot ] = id + 1;
+
+		// Keep the table at most half full
+		if( m_size * 2 > m_slots.length )
+			rehash( m_slots.length * 2 );
+
+		return id;
+	}
+
+	/************************************************************************************
+	 *  Returns the id of the symbol, adding it if needed (see intern( char[]... )).
+	 ***********************************************************************************/
+	public int intern( String symbol )
+	{
+		return intern( symbol.toCharArray(), 0, symbol.length() );
+	}
+
+	/************************************************************************************
+	 *  Checks if the symbol is in the table with an address.
+	 ***********************************************************************************/
+	public boolean contains( String symbol )
+	{
+		int id = find( symbol.toCharArray(), 0, symbol.length() );
+
+		return ( id != UNDEFINED ) && isDefined( id );
+	}
+
+	/************************************************************************************
+	 *  Returns the address of the symbol, or UNDEFINED.
+	 ***********************************************************************************/
+	public int getAddress( String symbol )
+	{
+		int id = find( symbol.toCharArray(), 0, symbol.length() );
+
+		return ( id == UNDEFINED ) ? UNDEFINED : m_addresses[ id ];
+	}
+
+	/************************************************************************************
+	 *  Adds the symbol (or changes its address).
+	 ***********************************************************************************/
+	public void put( String symbol, int address )
+	{
+		setAddress( intern( symbol ), address );
+	}
+
+	/************************************************************************************
+	 *  Returns the address of the symbol with the given id (UNDEFINED if it has none).
+	 ***********************************************************************************/
+	public int getAddress( int id )
+	{
+		return m_addresses[ id ];
+	}
+
+	/************************************************************************************
+	 *  Sets the address of the symbol with the given id.
+	 ***********************************************************************************/
+	public void setAddress( int id, int address )
+	{
+		checkWritable();
+		m_addresses[ id ] = address;
+	}
+
+	/************************************************************************************
+	 *  Removes the address of every symbol from firstId on. The symbols (and their ids)
+	 *  stay in the table.
+	 ***********************************************************************************/
+	public void clearAddresses( int firstId )
+	{
+		checkWritable();
+
+		if( firstId < m_size )
+			Arrays.fill( m_addresses, firstId, m_size, UNDEFINED );
+	}
+
+	/************************************************************************************
+	 *  Checks if the symbol with the given id has an address.
+	 ***********************************************************************************/
+	public boolean isDefined( int id )
+	{
+		return m_addresses[ id ] != UNDEFINED;
+	}
+
+	/************************************************************************************
+	 *  Returns the symbol with the given id as a String.
+	 ***********************************************************************************/
+	public String getSymbol( int id )
+	{
+		return new String( m_chars, m_keyStarts[ id ], m_keyLengths[ id ] );
+	}
+
+	/************************************************************************************
+	 *  Returns the number of symbols in the table (ids go from 0 to size() - 1).
+	 ***********************************************************************************/
+	public int size()
+	{
+		return m_size;
+	}
+
+	/************************************************************************************
+	 *  Appends a new entry and returns its id.
+	 ***********************************************************************************/
+	private int addEntry( char[] chars, int start, int end, int hash )
+	{
+		int length = end - start;
+
+		if( m_size == m_addresses.length )
+		{
+			int capacity = m_size * 2;
+
+			m_keyStarts = Arrays.copyOf( m_keyStarts, capacity );
+			m_keyLengths = Arrays.copyOf( m_keyLengths, capacity );
+			m_hashes = Arrays.copyOf( m_hashes, capacity );
+			m_addresses = Arrays.copyOf( m_addresses, capacity );
+		}
+
+		if( m_charCount + length > m_chars.length )
+			m_chars = Arrays.copyOf( m_chars, Math.max( m_chars.length * 2, m_charCount + length ) );
+
+		System.arraycopy( chars, start, m_chars, m_charCount, length );
+
+		int id = m_size++;
+
+		m_keyStarts[ id ] = m_charCount;
+		m_keyLengths[ id ] = length;
+		m_hashes[ id ] = hash;
+		m_addresses[ id ] = UNDEFINED;
+		m_charCount += length;
+
+		return id;
+	}
+
+	/************************************************************************************
+	 *  Rebuilds the slots with the given (power of 2) size.
+	 ***********************************************************************************/
+	private void rehash( int slotCount )
+	{
+		int mask = slotCount - 1;
+
+		m_slots = new int[ slotCount ];
+
+		for( int id = 0; id < m_size; id++ )
+		{
+			int slot = m_hashes[ id ] & mask;
+
+			while( m_slots[ slot ] != 0 )
+				slot = ( slot + 1 ) & mask;
+
+			m_slots[ slot ] = id + 1;
+		}
+	}
+
+	/************************************************************************************
+	 *  Compares the symbol with the given id to chars[start, end).
+	 ***********************************************************************************/
+	private boolean keyEquals( int id, char[] chars, int start, int end )
+	{
+		int length = m_keyLengths[ id ];
+
+		if( length != end - start )
+			return false;
+
+		int keyStart = m_keyStarts[ id ];
+
+		for( int i = 0; i < length; i++ )
+		{
+			if( m_chars[ keyStart + i ] != chars[ start + i ] )
+				return false;
+		}
+
+		return true;
+	}
+
+	/************************************************************************************
+	 *  Hashes chars[start, end). The bits are mixed so that the low bits (the ones
+	 *  used to pick a slot) depend on every character.
+	 ***********************************************************************************/
+	private static int hash( char[] chars, int start, int end )
+	{
+		int hash = 0;
+
+		for( int i = start; i < end; i++ )
+			hash = 31 * hash + chars[ i ];
+
+		hash *= 0x9E3779B9;
+
+		return hash ^ ( hash >>> 16 );
+	}
+
+	/************************************************************************************
+	 *  Throws if this is the shared table of pre-defined symbols.
+	 ***********************************************************************************/
+	private void checkWritable()
+	{
+		if( m_readOnly )
+			throw new UnsupportedOperationException( "The symbol table cannot be changed!" );
+	}
+}
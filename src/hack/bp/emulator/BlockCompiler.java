@@ -0,0 +1,677 @@
+package hack.bp.emulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/****************************************************************************************
+ *  Translates the basic blocks of a Hack program into JVM classes, so HotSpot compiles
+ *  the hot loops of the program to native code.
+ *
+ *  The blocks start at the leaders of the program: the first instruction, every jump
+ *  target the program loads with an @ right before a jump (the label addresses), and
+ *  every instruction that follows a jump. A block runs up to its first jump, or up to
+ *  the next leader. Every block becomes one class implementing CompiledBlock, with A, D
+ *  and the budget in local variables of execute(). A jump back to the start of the block
+ *  is a loop inside the method.
+ *
+ *  The class files are written by hand (format version 49, which needs no stack map
+ *  frames) and loaded by a private class loader. Blocks that use a comp bit pattern
+ *  outside of the 28 documented ones, and the halt loop at the end of a program, are not
+ *  translated: the interpreter runs them. A jump to a computed address (a return, A=M
+ *  then 0;JMP) ends the block with a return of A.
+ *
+ *  A store to M inside the screen also sets the word's bit in the dirty array of the
+ *  Memory (see Screen). When the block loaded A itself the check is made here, at
+ *  translation time, otherwise it is a subtraction and a shift at run time.
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ *	0.2 -	Stores to the screen mark the words in the dirty array passed to execute(). -bp
+ *	0.3 -	Blocks ending in a computed jump are translated. Addresses above 32767 are
+ *			pushed from the constant pool. -bp
+ ***************************************************************************************/
+public class BlockCompiler
+{
+	private final static int MAX_BLOCK_LENGTH = 1000;
+	private final static int UNKNOWN = -1;
+
+	// Local variables of execute( short[] ram, int[] state, int[] dirty )
+	private final static int RAM = 1;
+	private final static int STATE = 2;
+	private final static int DIRTY = 3;
+	private final static int LOCAL_A = 4;
+	private final static int LOCAL_D = 5;
+	private final static int LOCAL_BUDGET = 6;
+	private final static int LOCAL_OUT = 7;
+	private final static int LOCAL_TARGET = 8;
+	private final static int LOCAL_ADDRESS = 9;
+
+	// Opcodes
+	private final static int ICONST_M1 = 0x02;
+	private final static int ICONST_0 = 0x03;
+	private final static int ICONST_1 = 0x04;
+	private final static int ICONST_2 = 0x05;
+	private final static int ICONST_5 = 0x08;
+	private final static int BIPUSH = 0x10;
+	private final static int SIPUSH = 0x11;
+	private final static int LDC = 0x12;
+	private final static int ILOAD = 0x15;
+	private final static int ALOAD = 0x19;
+	private final static int ALOAD_0 = 0x2A;
+	private final static int IALOAD = 0x2E;
+	private final static int SALOAD = 0x35;
+	private final static int ISTORE = 0x36;
+	private final static int IASTORE = 0x4F;
+	private final static int SASTORE = 0x56;
+	private final static int DUP = 0x59;
+	private final static int DUP2 = 0x5C;
+	private final static int IADD = 0x60;
+	private final static int ISUB = 0x64;
+	private final static int INEG = 0x74;
+	private final static int ISHL = 0x78;
+	private final static int IUSHR = 0x7C;
+	private final static int IAND = 0x7E;
+	private final static int IOR = 0x80;
+	private final static int IXOR = 0x82;
+	private final static int I2S = 0x93;
+	private final static int IFEQ = 0x99;
+	private final static int IFNE = 0x9A;
+	private final static int IFLT = 0x9B;
+	private final static int IFGE = 0x9C;
+	private final static int IFGT = 0x9D;
+	private final static int IFLE = 0x9E;
+	private final static int IF_ICMPLT = 0xA1;
+	private final static int GOTO = 0xA7;
+	private final static int IRETURN = 0xAC;
+	private final static int RETURN = 0xB1;
+	private final static int INVOKESPECIAL = 0xB7;
+
+	// Constant pool of every generated class (the class name comes first)
+	private final static int CP_THIS_NAME = 1;
+	private final static int CP_THIS = 2;
+	private final static int CP_OBJECT_NAME = 3;
+	private final static int CP_OBJECT = 4;
+	private final static int CP_BLOCK_NAME = 5;
+	private final static int CP_BLOCK = 6;
+	private final static int CP_INIT = 7;
+	private final static int CP_VOID = 8;
+	private final static int CP_INIT_TYPE = 9;
+	private final static int CP_OBJECT_INIT = 10;
+	private final static int CP_EXECUTE = 11;
+	private final static int CP_EXECUTE_TYPE = 12;
+	private final static int CP_CODE = 13;
+	private final static int CP_ADDRESS_MASK = 14;
+	private final static int CP_ROM_SIZE = 15;
+	private final static int CP_COUNT = 16;
+
+	private short[] m_rom = null;
+	private boolean[] m_leaders = null;
+	private Loader m_loader = new Loader();
+
+	public BlockCompiler( short[] rom )
+	{
+		this.m_rom = rom;
+		this.m_leaders = findLeaders( rom );
+	}
+
+	/************************************************************************************
+	 *  Returns true for every address where a block starts.
+	 ***********************************************************************************/
+	public boolean[] getLeaders()
+	{
+		return m_leaders;
+	}
+
+	/************************************************************************************
+	 *  Marks the leaders of the program: the first instruction, the instruction after
+	 *  every jump and the target of every jump whose @ comes right before it.
+	 ***********************************************************************************/
+	private static boolean[] findLeaders( short[] rom )
+	{
+		boolean[] leaders = new boolean[ rom.length + 1 ];
+
+		leaders[ 0 ] = true;
+
+		for( int pc = 0; pc < rom.length; pc++ )
+		{
+			int instruction = rom[ pc ];
+
+			if( ( instruction >= 0 ) || ( ( instruction & 0x7 ) == 0 ) )
+				continue;
+
+			leaders[ pc + 1 ] = true;
+
+			if( ( pc > 0 ) && ( rom[ pc - 1 ] >= 0 ) && ( rom[ pc - 1 ] < rom.length ) )
+				leaders[ rom[ pc - 1 ] ] = true;
+		}
+
+		return leaders;
+	}
+
+	/************************************************************************************
+	 *  Translates the block that starts at the address. Returns null if it cannot be
+	 *  translated.
+	 ***********************************************************************************/
+	public CompiledBlock compile( int start )
+	{
+		// Find the end of the block
+		int end = start;
+
+		while( ( end < m_rom.length ) && ( end - start < MAX_BLOCK_LENGTH ) )
+		{
+			int instruction = m_rom[ end++ ];
+
+			if( ( instruction < 0 ) && ( ( instruction & 0x7 ) != 0 ) )
+				break;
+
+			if( m_leaders[ end ] )
+				break;
+		}
+
+		if( end == start )
+			return null;
+
+		byte[] code = translate( start, end );
+
+		if( code == null )
+			return null;
+
+		String name = "hack/bp/emulator/generated/Block" + start;
+
+		try
+		{
+			Class<?> blockClass = m_loader.define( name.replace( '/', '.' ), classFile( name, code ) );
+
+			return (CompiledBlock)blockClass.getDeclaredConstructor().newInstance();
+		}
+		catch (Exception e)
+		{
+			return null;
+		}
+		catch (LinkageError e)
+		{
+			// The class did not verify, leave the block to the interpreter
+			return null;
+		}
+	}
+
+	/************************************************************************************
+	 *  Returns the bytecode of execute() for the instructions [start, end), or null if
+	 *  they cannot be translated.
+	 ***********************************************************************************/
+	private byte[] translate( int start, int end )
+	{
+		Bytecode code = new Bytecode();
+		int length = end - start;
+
+		// a = state[ A ], d = state[ D ], budget = state[ BUDGET ]
+		loadState( code, CompiledBlock.A, LOCAL_A );
+		loadState( code, CompiledBlock.D, LOCAL_D );
+		loadState( code, CompiledBlock.BUDGET, LOCAL_BUDGET );
+
+		// Loop: leave if the budget is too small for one pass, otherwise take a pass
+		int loop = code.size();
+
+		code.local( ILOAD, LOCAL_BUDGET );
+		code.sipush( length );
+		int exitStart = code.branch( IF_ICMPLT );
+
+		code.local( ILOAD, LOCAL_BUDGET );
+		code.sipush( length );
+		code.op( ISUB );
+		code.local( ISTORE, LOCAL_BUDGET );
+
+		int knownA = UNKNOWN;
+		int returnPatches[] = new int[ 4 ];
+		int returnCount = 0;
+
+		for( int pc = start; pc < end; pc++ )
+		{
+			int instruction = m_rom[ pc ];
+
+			// A_COMMAND
+			if( instruction >= 0 )
+			{
+				code.sipush( instruction );
+				code.local( ISTORE, LOCAL_A );
+				knownA = instruction;
+				continue;
+			}
+
+			// C_COMMAND: out = (short)comp
+			if( !comp( code, ( instruction >>> 6 ) & 0x7F ) )
+				return null;
+
+			code.op( I2S );
+			code.local( ISTORE, LOCAL_OUT );
+
+			int jump = instruction & 0x7;
+			int target = knownA;
+
+			// The jump target is the A of before the instruction
+			if( jump != 0 )
+				code.local( ILOAD, LOCAL_A ).local( ISTORE, LOCAL_TARGET );
+
+			// M (at the A of before the instruction)
+			if( ( instruction & 0x08 ) != 0 )
+			{
+				code.local( ALOAD, RAM );
+				pushAddress( code );
+
+				if( knownA == UNKNOWN )
+					code.op( DUP ).local( ISTORE, LOCAL_ADDRESS );
+
+				code.local( ILOAD, LOCAL_OUT );
+				code.op( SASTORE );
+				markDirty( code, knownA );
+			}
+
+			if( ( instruction & 0x20 ) != 0 )
+			{
+				code.local( ILOAD, LOCAL_OUT ).local( ISTORE, LOCAL_A );
+				knownA = UNKNOWN;
+			}
+
+			if( ( instruction & 0x10 ) != 0 )
+				code.local( ILOAD, LOCAL_OUT ).local( ISTORE, LOCAL_D );
+
+			if( jump == 0 )
+				continue;
+
+			// The halt loop is left to the interpreter (it detects it). A computed jump
+			// that starts the block may be one, when it jumps to itself at run time.
+			if( ( jump == 0x7 ) && ( ( instruction & 0x38 ) == 0 ) && ( ( target == pc ) ||
+					( ( target == pc - 1 ) && ( m_rom[ target ] == target ) ) ||
+					( ( target == UNKNOWN ) && ( pc == start ) ) ) )
+				return null;
+
+			// Not taken: the next instruction
+			int notTaken = -1;
+
+			if( jump != 0x7 )
+			{
+				code.local( ILOAD, LOCAL_OUT );
+				notTaken = code.branch( negatedJump( jump ) );
+			}
+
+			// Taken: loop, or return the target
+			if( target == start )
+				code.patch( code.branch( GOTO ), loop );
+			else
+			{
+				if( target == UNKNOWN )
+				{
+					code.local( ILOAD, LOCAL_TARGET );
+					code.op( LDC ).u1( CP_ADDRESS_MASK );
+					code.op( IAND );
+				}
+				else
+					code.sipush( target );
+
+				returnPatches[ returnCount++ ] = code.branch( GOTO );
+			}
+
+			if( notTaken >= 0 )
+			{
+				code.patch( notTaken, code.size() );
+				pushAddress( code, pc + 1 );
+				returnPatches[ returnCount++ ] = code.branch( GOTO );
+			}
+		}
+
+		// Fall through into the next block
+		if( ( m_rom[ end - 1 ] >= 0 ) || ( ( m_rom[ end - 1 ] & 0x7 ) == 0 ) )
+		{
+			pushAddress( code, end );
+			returnPatches[ returnCount++ ] = code.branch( GOTO );
+		}
+
+		// Budget too small: nothing more is executed, come back to the start
+		code.patch( exitStart, code.size() );
+		code.sipush( start );
+
+		// Return: store the registers back, the next address is on the stack
+		int exit = code.size();
+
+		storeState( code, CompiledBlock.A, LOCAL_A );
+		storeState( code, CompiledBlock.D, LOCAL_D );
+		storeState( code, CompiledBlock.BUDGET, LOCAL_BUDGET );
+		code.op( IRETURN );
+
+		for( int i = 0; i < returnCount; i++ )
+			code.patch( returnPatches[ i ], exit );
+
+		return code.toByteArray();
+	}
+
+	/************************************************************************************
+	 *  Pushes the value of one of the 28 comp functions. Returns false for any other
+	 *  bit pattern.
+	 ***********************************************************************************/
+	private static boolean comp( Bytecode code, int comp )
+	{
+		// 'a' bit: the y operand is M instead of A
+		boolean m = ( comp & 0x40 ) != 0;
+
+		switch( comp & 0x3F )
+		{
+			case 0x2A: code.op( ICONST_0 ); break;
+			case 0x3F: code.op( ICONST_1 ); break;
+			case 0x3A: code.op( ICONST_M1 ); break;
+			case 0x0C: code.local( ILOAD, LOCAL_D ); break;
+			case 0x30: pushY( code, m ); break;
+			case 0x0D: code.local( ILOAD, LOCAL_D ).op( ICONST_M1 ).op( IXOR ); break;
+			case 0x31: pushY( code, m ); code.op( ICONST_M1 ).op( IXOR ); break;
+			case 0x0F: code.local( ILOAD, LOCAL_D ).op( INEG ); break;
+			case 0x33: pushY( code, m ); code.op( INEG ); break;
+			case 0x1F: code.local( ILOAD, LOCAL_D ).op( ICONST_1 ).op( IADD ); break;
+			case 0x37: pushY( code, m ); code.op( ICONST_1 ).op( IADD ); break;
+			case 0x0E: code.local( ILOAD, LOCAL_D ).op( ICONST_1 ).op( ISUB ); break;
+			case 0x32: pushY( code, m ); code.op( ICONST_1 ).op( ISUB ); break;
+			case 0x02: code.local( ILOAD, LOCAL_D ); pushY( code, m ); code.op( IADD ); break;
+			case 0x13: code.local( ILOAD, LOCAL_D ); pushY( code, m ); code.op( ISUB ); break;
+			case 0x07: pushY( code, m ); code.local( ILOAD, LOCAL_D ).op( ISUB ); break;
+			case 0x00: code.local( ILOAD, LOCAL_D ); pushY( code, m ); code.op( IAND ); break;
+			case 0x15: code.local( ILOAD, LOCAL_D ); pushY( code, m ); code.op( IOR ); break;
+			default:
+				return false;
+		}
+
+		// The functions without a y operand only exist with a = 0
+		switch( comp )
+		{
+			case 0x6A: case 0x7F: case 0x7A: case 0x4C: case 0x4D: case 0x4F: case 0x5F: case 0x4E:
+				return false;
+			default:
+				return true;
+		}
+	}
+
+	/************************************************************************************
+	 *  Pushes A, or M (ram[ A & mask ]).
+	 ***********************************************************************************/
+	private static void pushY( Bytecode code, boolean m )
+	{
+		if( m )
+		{
+			code.local( ALOAD, RAM );
+			pushAddress( code );
+			code.op( SALOAD );
+		}
+		else
+			code.local( ILOAD, LOCAL_A );
+	}
+
+	/************************************************************************************
+	 *  Pushes an address of the ROM: sipush up to 32767, the end of a full ROM (32768)
+	 *  from the constant pool.
+	 ***********************************************************************************/
+	private static void pushAddress( Bytecode code, int address )
+	{
+		if( address <= Short.MAX_VALUE )
+			code.sipush( address );
+		else if( address == Emulator.ROM_SIZE )
+			code.op( LDC ).u1( CP_ROM_SIZE );
+		else
+			throw new IllegalArgumentException( "Not a ROM address: " + address );
+	}
+
+	/************************************************************************************
+	 *  Pushes A & Memory.ADDRESS_MASK.
+	 ***********************************************************************************/
+	private static void pushAddress( Bytecode code )
+	{
+		code.local( ILOAD, LOCAL_A );
+		code.sipush( Memory.ADDRESS_MASK );
+		code.op( IAND );
+	}
+
+	/************************************************************************************
+	 *  Sets the bit of the word just stored to in the dirty array if it is in the
+	 *  screen. The address is knownA, or in LOCAL_ADDRESS when that is UNKNOWN:
+	 *
+	 *  	offset = address - SCREEN
+	 *  	if( ( offset >>> 13 ) == 0 )
+	 *  		dirty[ offset >>> 5 ] |= 1 << offset
+	 ***********************************************************************************/
+	private static void markDirty( Bytecode code, int knownA )
+	{
+		if( knownA != UNKNOWN )
+		{
+			int offset = ( knownA & Memory.ADDRESS_MASK ) - Memory.SCREEN;
+
+			if( ( offset >>> 13 ) != 0 )
+				return;
+
+			code.local( ALOAD, DIRTY );
+			code.sipush( offset >>> 5 );
+			code.op( DUP2 ).op( IALOAD );
+			code.op( ICONST_1 ).u1( BIPUSH ).u1( offset & 31 ).op( ISHL );
+			code.op( IOR ).op( IASTORE );
+			return;
+		}
+
+		code.local( ILOAD, LOCAL_ADDRESS );
+		code.sipush( Memory.SCREEN );
+		code.op( ISUB ).op( DUP ).local( ISTORE, LOCAL_ADDRESS );
+		code.u1( BIPUSH ).u1( 13 ).op( IUSHR );
+		int outside = code.branch( IFNE );
+
+		code.local( ALOAD, DIRTY );
+		code.local( ILOAD, LOCAL_ADDRESS ).op( ICONST_5 ).op( IUSHR );
+		code.op( DUP2 ).op( IALOAD );
+		code.op( ICONST_1 ).local( ILOAD, LOCAL_ADDRESS ).op( ISHL );
+		code.op( IOR ).op( IASTORE );
+		code.patch( outside, code.size() );
+	}
+
+	/************************************************************************************
+	 *  Returns the branch opcode that is taken when the jump is NOT.
+	 ***********************************************************************************/
+	private static int negatedJump( int jump )
+	{
+		switch( jump )
+		{
+			case 1:  return IFLE;	// JGT
+			case 2:  return IFNE;	// JEQ
+			case 3:  return IFLT;	// JGE
+			case 4:  return IFGE;	// JLT
+			case 5:  return IFEQ;	// JNE
+			default: return IFGT;	// JLE
+		}
+	}
+
+	private static void loadState( Bytecode code, int index, int local )
+	{
+		code.local( ALOAD, STATE );
+		code.op( ICONST_0 + index );
+		code.op( IALOAD );
+		code.local( ISTORE, local );
+	}
+
+	private static void storeState( Bytecode code, int index, int local )
+	{
+		code.local( ALOAD, STATE );
+		code.op( ICONST_0 + index );
+		code.local( ILOAD, local );
+		code.op( IASTORE );
+	}
+
+	/************************************************************************************
+	 *  Writes a class file with a constructor and execute() made of the given code.
+	 ***********************************************************************************/
+	private static byte[] classFile( String name, byte[] code ) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream( code.length + 512 );
+		DataOutputStream out = new DataOutputStream( bytes );
+
+		out.writeInt( 0xCAFEBABE );
+		out.writeShort( 0 );
+		out.writeShort( 49 );
+
+		// Constant pool
+		out.writeShort( CP_COUNT );
+		utf8( out, name );
+		classRef( out, CP_THIS_NAME );
+		utf8( out, "java/lang/Object" );
+		classRef( out, CP_OBJECT_NAME );
+		utf8( out, CompiledBlock.class.getName().replace( '.', '/' ) );
+		classRef( out, CP_BLOCK_NAME );
+		utf8( out, "<init>" );
+		utf8( out, "()V" );
+		out.writeByte( 12 );	// NameAndType
+		out.writeShort( CP_INIT );
+		out.writeShort( CP_VOID );
+		out.writeByte( 10 );	// Methodref
+		out.writeShort( CP_OBJECT );
+		out.writeShort( CP_INIT_TYPE );
+		utf8( out, "execute" );
+		utf8( out, "([S[I[I)I" );
+		utf8( out, "Code" );
+		out.writeByte( 3 );		// Integer
+		out.writeInt( 0xFFFF );
+		out.writeByte( 3 );		// Integer
+		out.writeInt( Emulator.ROM_SIZE );
+
+		// public final class <name> extends Object implements CompiledBlock
+		out.writeShort( 0x0001 | 0x0010 | 0x0020 );
+		out.writeShort( CP_THIS );
+		out.writeShort( CP_OBJECT );
+		out.writeShort( 1 );
+		out.writeShort( CP_BLOCK );
+		out.writeShort( 0 );	// fields
+
+		out.writeShort( 2 );	// methods
+
+		// public <init>() { super(); }
+		byte[] init = { ALOAD_0, (byte)INVOKESPECIAL, 0, CP_OBJECT_INIT, (byte)RETURN };
+
+		out.writeShort( 0x0001 );
+		out.writeShort( CP_INIT );
+		out.writeShort( CP_VOID );
+		codeAttribute( out, init, 1, 1 );
+
+		// public int execute( short[] ram, int[] state, int[] dirty )
+		out.writeShort( 0x0001 );
+		out.writeShort( CP_EXECUTE );
+		out.writeShort( CP_EXECUTE_TYPE );
+		codeAttribute( out, code, 6, LOCAL_ADDRESS + 1 );
+
+		out.writeShort( 0 );	// class attributes
+		out.flush();
+
+		return bytes.toByteArray();
+	}
+
+	private static void codeAttribute( DataOutputStream out, byte[] code, int maxStack,
+			int maxLocals ) throws IOException
+	{
+		out.writeShort( 1 );
+		out.writeShort( CP_CODE );
+		out.writeInt( 12 + code.length );
+		out.writeShort( maxStack );
+		out.writeShort( maxLocals );
+		out.writeInt( code.length );
+		out.write( code );
+		out.writeShort( 0 );	// exception table
+		out.writeShort( 0 );	// attributes
+	}
+
+	private static void utf8( DataOutputStream out, String text ) throws IOException
+	{
+		out.writeByte( 1 );
+		out.writeUTF( text );
+	}
+
+	private static void classRef( DataOutputStream out, int nameIndex ) throws IOException
+	{
+		out.writeByte( 7 );
+		out.writeShort( nameIndex );
+	}
+
+	/************************************************************************************
+	 *  Growable buffer of bytecode with helpers for the few instructions used.
+	 ***********************************************************************************/
+	private static class Bytecode
+	{
+		private byte[] m_bytes = new byte[ 256 ];
+		private int m_size = 0;
+
+		int size()
+		{
+			return m_size;
+		}
+
+		Bytecode u1( int value )
+		{
+			if( m_size == m_bytes.length )
+				m_bytes = java.util.Arrays.copyOf( m_bytes, m_size * 2 );
+
+			m_bytes[ m_size++ ] = (byte)value;
+
+			return this;
+		}
+
+		Bytecode op( int opcode )
+		{
+			return u1( opcode );
+		}
+
+		Bytecode sipush( int value )
+		{
+			return u1( SIPUSH ).u1( value >> 8 ).u1( value );
+		}
+
+		Bytecode local( int opcode, int index )
+		{
+			return u1( opcode ).u1( index );
+		}
+
+		/********************************************************************************
+		 *  Appends a branch with an offset to fill in later, and returns its address.
+		 *******************************************************************************/
+		int branch( int opcode )
+		{
+			int address = m_size;
+
+			u1( opcode ).u1( 0 ).u1( 0 );
+
+			return address;
+		}
+
+		/********************************************************************************
+		 *  Points the branch at the address to the target.
+		 *******************************************************************************/
+		void patch( int address, int target )
+		{
+			int offset = target - address;
+
+			m_bytes[ address + 1 ] = (byte)( offset >> 8 );
+			m_bytes[ address + 2 ] = (byte)offset;
+		}
+
+		byte[] toByteArray()
+		{
+			return java.util.Arrays.copyOf( m_bytes, m_size );
+		}
+	}
+
+	/************************************************************************************
+	 *  Class loader of the generated blocks.
+	 ***********************************************************************************/
+	private static class Loader extends ClassLoader
+	{
+		Loader()
+		{
+			super( BlockCompiler.class.getClassLoader() );
+		}
+
+		Class<?> define( String name, byte[] classFile )
+		{
+			return defineClass( name, classFile, 0, classFile.length );
+		}
+	}
+}
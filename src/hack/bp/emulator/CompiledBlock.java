@@ -0,0 +1,31 @@
+package hack.bp.emulator;
+
+/****************************************************************************************
+ *  A basic block of a Hack program translated to JVM bytecode by BlockCompiler. The
+ *  registers are passed in and out through the state array:
+ *
+ *  	state[ A ]       register A
+ *  	state[ D ]       register D
+ *  	state[ BUDGET ]  number of instructions the block may still execute
+ *
+ *  execute() runs the block (again and again if it jumps back to its own start) as long
+ *  as the budget allows a whole pass, and returns the address of the next instruction.
+ *  If the budget is too small for even one pass nothing is executed, the budget is left
+ *  as it is and the start address of the block is returned.
+ *
+ *  Every store to a word of the screen sets its bit in dirty (see Memory.getDirty()).
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ *	0.2 -	Added the dirty array of the screen to execute(). -bp
+ ***************************************************************************************/
+public interface CompiledBlock
+{
+	public final static int A = 0;
+	public final static int D = 1;
+	public final static int BUDGET = 2;
+
+	public int execute( short[] ram, int[] state, int[] dirty );
+}
@@ -0,0 +1,534 @@
+package hack.bp.emulator;
+
+import hack.bp.assembler.Disassembler;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/****************************************************************************************
+ *  Headless emulator of the Hack CPU. The program is loaded into a short[] ROM (from the
+ *  .hack text written by the assembler or from a packed .rom image) and runs against a
+ *  32K-word Memory. One call to run() executes instructions in a tight loop that keeps
+ *  the registers in locals:
+ *
+ *  	- A_COMMAND (highest bit 0): A = the instruction.
+ *  	- C_COMMAND: the 7 comp bits select the ALU function of D and A (or M when the
+ *  	  'a' bit is set). The common 28 functions are a switch; any other bit pattern
+ *  	  goes through the ALU (zx, nx, zy, ny, f, no) bit by bit. The result is stored
+ *  	  in the dest registers and the jump bits (lt, eq, gt) are tested against it.
+ *  	  As in the hardware, M and the jump target are the A of before the instruction.
+ *
+ *  The emulator stops after the given number of cycles, when the PC leaves the program,
+ *  or when the program halts in the usual way (an unconditional jump back to itself or
+ *  to the @ that loads its own address, without changing any register).
+ *
+ *  With setTranslation( true ) the emulator counts how often each basic block is entered
+ *  and, once a block is hot, runs it as a JVM class generated by BlockCompiler. Cold code
+ *  (and whatever cannot be translated) is still interpreted, one block at a time.
+ *
+ *  Both mark the screen words they store to as dirty in the Memory, so a Screen only
+ *  draws what changed since its last capture().
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ *	0.2 -	Translation of hot blocks to bytecode (setTranslation()). -bp
+ *	0.3 -	The programs are read by Disassembler.readProgram(). -bp
+ *	0.4 -	Stores to the screen set its dirty bits. Options -screen, -frames and
+ *			-golden. -bp
+ *	0.5 -	run() checks the address returned by a block before it looks it up. -bp
+ *	0.6 -	A golden image that is not 512x256 is reported as such. -bp
+ ***************************************************************************************/
+public class Emulator
+{
+	public final static int ROM_SIZE = 32 * 1024;
+
+	private final static int DEST_A = 0x20;
+	private final static int DEST_D = 0x10;
+	private final static int DEST_M = 0x08;
+	private final static int DEST_BITS = DEST_A | DEST_D | DEST_M;
+	private final static int JUMP_ALWAYS = 0x7;
+
+	// Entries into a block before it is translated
+	private final static int HOT_BLOCK = 1000;
+
+	private short[] m_rom = null;
+	private Memory m_memory = new Memory();
+
+	// Registers
+	private int m_a = 0;
+	private int m_d = 0;
+	private int m_pc = 0;
+
+	private long m_cycles = 0;
+	private boolean m_halted = false;
+
+	// Translation (null when it is off)
+	private BlockCompiler m_compiler = null;
+	private CompiledBlock[] m_blocks = null;
+	private int[] m_entries = null;
+	private int[] m_state = new int[ 3 ];
+
+	/************************************************************************************
+	 *  Runs a program and prints how long it took and the registers (and the RAM words
+	 *  asked for).
+	 ***********************************************************************************/
+	public static void main( String[] args )
+	{
+		if( ( args.length == 0 ) || !( args[ 0 ].endsWith( ".hack" ) || args[ 0 ].endsWith( ".rom" ) ) )
+		{
+			System.out.println( "Usage: <program> <fileName>.hack|.rom [-translate] [-cycles n] " +
+					"[-set address=value]... [-dump from[-to]]... [-screen <file>.png [-frames n]] " +
+					"[-golden <file>.png]" +
+					"\n\t -Runs the program until it halts (or for n cycles)." +
+					"\n\t -translate: runs the hot blocks as generated JVM classes." +
+					"\n\t -set: stores a value in the RAM before running." +
+					"\n\t -dump: prints RAM words after running." +
+					"\n\t -screen: writes the screen after running as a PNG image." +
+					"\n\t -frames: writes <file>-0000.png, ... every n cycles instead (when the" +
+					"\n\t  screen changed)." +
+					"\n\t -golden: compares the screen after running with an image, exits with 1" +
+					"\n\t  when they differ." );
+			return;
+		}
+
+		try
+		{
+			Emulator emulator = new Emulator( loadRom( new File( args[ 0 ] ) ) );
+			long maxCycles = Long.MAX_VALUE;
+			File screenFile = null;
+			File goldenFile = null;
+			long frameCycles = 0;
+
+			for( int i = 1; i < args.length; i++ )
+			{
+				if( args[ i ].equals( "-translate" ) )
+					emulator.setTranslation( true );
+				else if( i + 1 == args.length )
+					break;
+				else if( args[ i ].equals( "-cycles" ) )
+					maxCycles = Long.parseLong( args[ ++i ] );
+				else if( args[ i ].equals( "-screen" ) )
+					screenFile = new File( args[ ++i ] );
+				else if( args[ i ].equals( "-golden" ) )
+					goldenFile = new File( args[ ++i ] );
+				else if( args[ i ].equals( "-frames" ) )
+					frameCycles = Long.parseLong( args[ ++i ] );
+				else if( args[ i ].equals( "-set" ) )
+				{
+					String[] assignment = args[ ++i ].split( "=" );
+					emulator.getMemory().write( Integer.parseInt( assignment[ 0 ] ),
+							Integer.parseInt( assignment[ 1 ] ) );
+				}
+				else
+					i++;
+			}
+
+			Screen screen = new Screen( emulator.getMemory() );
+			long cycles = 0;
+			long timerStart = System.nanoTime();
+
+			if( ( screenFile != null ) && ( frameCycles > 0 ) )
+			{
+				int frame = 0;
+
+				while( !emulator.isHalted() && ( cycles < maxCycles ) )
+				{
+					long executed = emulator.run( Math.min( frameCycles, maxCycles - cycles ) );
+
+					if( screen.capture() > 0 )
+						screen.writePng( Screen.frameFile( screenFile, frame++ ) );
+
+					if( executed == 0 )
+						break;
+
+					cycles += executed;
+				}
+			}
+			else
+				cycles = emulator.run( maxCycles );
+
+			long timerEnd = System.nanoTime();
+
+			System.out.println( String.format( "Emulator: %s after %d cycles " +
+					"(elapsed time: %dns, %.1f M instructions/s)",
+					emulator.isHalted() ? "Halted" : "Stopped", cycles, timerEnd - timerStart,
+					cycles * 1e3 / Math.max( timerEnd - timerStart, 1 ) ) );
+			System.out.println( "PC=" + emulator.getPC() + " A=" + emulator.getA() + " D=" + emulator.getD() );
+
+			for( int i = 1; i + 1 < args.length; i++ )
+			{
+				if( !args[ i ].equals( "-dump" ) )
+					continue;
+
+				String[] range = args[ ++i ].split( "-" );
+				int from = Integer.parseInt( range[ 0 ] );
+				int to = ( range.length > 1 ) ? Integer.parseInt( range[ 1 ] ) : from;
+
+				for( int address = from; address <= to; address++ )
+					System.out.println( "RAM[" + address + "] = " + emulator.getMemory().read( address ) );
+			}
+
+			screen.capture();
+
+			if( ( screenFile != null ) && ( frameCycles <= 0 ) )
+				screen.writePng( screenFile );
+
+			if( goldenFile != null )
+			{
+				BufferedImage golden = Screen.readPng( goldenFile );
+
+				if( ( golden.getWidth() != Screen.WIDTH ) || ( golden.getHeight() != Screen.HEIGHT ) )
+				{
+					System.out.println( "Screen: " + goldenFile + " is " + golden.getWidth() + "x" +
+							golden.getHeight() + ", not " + Screen.WIDTH + "x" + Screen.HEIGHT + "!" );
+					System.exit( 1 );
+				}
+
+				int differences = screen.compare( golden );
+
+				System.out.println( "Screen: " + ( ( differences == 0 ) ? "Matches " + goldenFile :
+						differences + " pixels differ from " + goldenFile ) );
+
+				if( differences != 0 )
+					System.exit( 1 );
+			}
+		}
+		catch (IOException e)
+		{
+			System.out.println( "Emulator: " + e.getMessage() );
+			System.exit( 1 );
+		}
+	}
+
+	/************************************************************************************
+	 *  Creates an emulator for the program (the array is used as the ROM, it is not
+	 *  copied).
+	 ***********************************************************************************/
+	public Emulator( short[] rom )
+	{
+		if( rom.length > ROM_SIZE )
+			throw new IllegalArgumentException( "The program does not fit in the ROM (" +
+					rom.length + " words)!" );
+
+		this.m_rom = rom;
+	}
+
+	/************************************************************************************
+	 *  Reads a program: a packed ROM image if the name ends with .rom, otherwise .hack
+	 *  text (one 16 digit binary word per line).
+	 ***********************************************************************************/
+	public static short[] loadRom( File file ) throws IOException
+	{
+		short[] rom = Disassembler.readProgram( file );
+
+		if( rom.length > ROM_SIZE )
+			throw new IOException( "The program does not fit in the ROM (" + rom.length +
+					" words): " + file );
+
+		return rom;
+	}
+
+	/************************************************************************************
+	 *  Clears the registers and the RAM and starts the program over.
+	 ***********************************************************************************/
+	public void reset()
+	{
+		m_a = 0;
+		m_d = 0;
+		m_pc = 0;
+		m_cycles = 0;
+		m_halted = false;
+		m_memory.clear();
+	}
+
+	/************************************************************************************
+	 *  Executes one instruction (unless the program has halted).
+	 ***********************************************************************************/
+	public void step()
+	{
+		run( 1 );
+	}
+
+	/************************************************************************************
+	 *  Turns the translation of hot blocks on or off (off by default). Turning it on
+	 *  again starts over with new counters.
+	 ***********************************************************************************/
+	public void setTranslation( boolean on )
+	{
+		if( on )
+		{
+			m_compiler = new BlockCompiler( m_rom );
+			m_blocks = new CompiledBlock[ m_rom.length ];
+			m_entries = new int[ m_rom.length ];
+		}
+		else
+		{
+			m_compiler = null;
+			m_blocks = null;
+			m_entries = null;
+		}
+	}
+
+	public boolean isTranslating()
+	{
+		return m_compiler != null;
+	}
+
+	/************************************************************************************
+	 *  Executes at most maxCycles instructions and returns how many were executed. It
+	 *  returns early when the program halts (see isHalted()).
+	 ***********************************************************************************/
+	public long run( long maxCycles )
+	{
+		if( m_compiler == null )
+			return interpret( maxCycles, null );
+
+		final boolean[] leaders = m_compiler.getLeaders();
+		final short[] ram = m_memory.getWords();
+		final int[] dirty = m_memory.getDirty();
+		final int[] state = m_state;
+		long cycles = 0;
+
+		while( !m_halted && ( cycles < maxCycles ) )
+		{
+			int pc = m_pc;
+			CompiledBlock block = null;
+
+			if( ( pc >= 0 ) && ( pc < m_rom.length ) && leaders[ pc ] )
+			{
+				block = m_blocks[ pc ];
+
+				if( ( block == null ) && ( m_entries[ pc ] >= 0 ) && ( ++m_entries[ pc ] == HOT_BLOCK ) )
+				{
+					block = m_compiler.compile( pc );
+					m_blocks[ pc ] = block;
+
+					// Never try again
+					if( block == null )
+						m_entries[ pc ] = -1;
+				}
+			}
+
+			if( block != null )
+			{
+				int budget = (int)Math.min( maxCycles - cycles, Integer.MAX_VALUE );
+
+				state[ CompiledBlock.A ] = m_a;
+				state[ CompiledBlock.D ] = m_d;
+				state[ CompiledBlock.BUDGET ] = budget;
+
+				int next = block.execute( ram, state, dirty );
+				int executed = budget - state[ CompiledBlock.BUDGET ];
+
+				if( executed > 0 )
+				{
+					m_a = state[ CompiledBlock.A ];
+					m_d = state[ CompiledBlock.D ];
+					m_pc = next;
+					m_cycles += executed;
+					cycles += executed;
+					continue;
+				}
+			}
+
+			// Cold code (or a budget too small for the block): up to the next block
+			cycles += interpret( maxCycles - cycles, leaders );
+		}
+
+		return cycles;
+	}
+
+	/************************************************************************************
+	 *  The interpreter. Executes at most maxCycles instructions, and if stops is not
+	 *  null it also returns before any instruction whose address is marked in it (but
+	 *  never before the first one).
+	 ***********************************************************************************/
+	private long interpret( long maxCycles, boolean[] stops )
+	{
+		final short[] rom = m_rom;
+		final short[] ram = m_memory.getWords();
+		final int[] dirty = m_memory.getDirty();
+		final int romLength = rom.length;
+
+		int a = m_a;
+		int d = m_d;
+		int pc = m_pc;
+		long cycles = 0;
+
+		while( !m_halted && ( cycles < maxCycles ) )
+		{
+			if( ( pc >= romLength ) || ( pc < 0 ) )
+			{
+				m_halted = true;
+				break;
+			}
+
+			if( ( stops != null ) && stops[ pc ] && ( cycles > 0 ) )
+				break;
+
+			int instruction = rom[ pc ];
+			cycles++;
+
+			// A_COMMAND
+			if( instruction >= 0 )
+			{
+				a = instruction;
+				pc++;
+				continue;
+			}
+
+			// C_COMMAND
+			int out = 0;
+
+			switch( ( instruction >>> 6 ) & 0x7F )
+			{
+				case 0x2A: out = 0; break;
+				case 0x3F: out = 1; break;
+				case 0x3A: out = -1; break;
+				case 0x0C: out = d; break;
+				case 0x30: out = a; break;
+				case 0x70: out = ram[ a & Memory.ADDRESS_MASK ]; break;
+				case 0x0D: out = ~d; break;
+				case 0x31: out = ~a; break;
+				case 0x71: out = ~ram[ a & Memory.ADDRESS_MASK ]; break;
+				case 0x0F: out = -d; break;
+				case 0x33: out = -a; break;
+				case 0x73: out = -ram[ a & Memory.ADDRESS_MASK ]; break;
+				case 0x1F: out = d + 1; break;
+				case 0x37: out = a + 1; break;
+				case 0x77: out = ram[ a & Memory.ADDRESS_MASK ] + 1; break;
+				case 0x0E: out = d - 1; break;
+				case 0x32: out = a - 1; break;
+				case 0x72: out = ram[ a & Memory.ADDRESS_MASK ] - 1; break;
+				case 0x02: out = d + a; break;
+				case 0x42: out = d + ram[ a & Memory.ADDRESS_MASK ]; break;
+				case 0x13: out = d - a; break;
+				case 0x53: out = d - ram[ a & Memory.ADDRESS_MASK ]; break;
+				case 0x07: out = a - d; break;
+				case 0x47: out = ram[ a & Memory.ADDRESS_MASK ] - d; break;
+				case 0x00: out = d & a; break;
+				case 0x40: out = d & ram[ a & Memory.ADDRESS_MASK ]; break;
+				case 0x15: out = d | a; break;
+				case 0x55: out = d | ram[ a & Memory.ADDRESS_MASK ]; break;
+				default:
+					out = alu( instruction, d, ( ( instruction & 0x1000 ) != 0 ) ?
+							ram[ a & Memory.ADDRESS_MASK ] : a );
+					break;
+			}
+
+			out = (short)out;
+
+			// The jump target and the M address are the A of before the instruction
+			int target = a;
+
+			if( ( instruction & DEST_M ) != 0 )
+			{
+				int address = a & Memory.ADDRESS_MASK;
+				int offset = address - Memory.SCREEN;
+
+				ram[ address ] = (short)out;
+
+				// A word of the screen: one bit per word in its row
+				if( ( offset >>> 13 ) == 0 )
+					dirty[ offset >>> 5 ] |= 1 << offset;
+			}
+
+			if( ( instruction & DEST_A ) != 0 )
+				a = out;
+
+			if( ( instruction & DEST_D ) != 0 )
+				d = out;
+
+			int jump = instruction & JUMP_ALWAYS;
+
+			if( ( jump & ( ( out < 0 ) ? 4 : ( ( out == 0 ) ? 2 : 1 ) ) ) == 0 )
+			{
+				pc++;
+				continue;
+			}
+
+			target &= 0xFFFF;
+
+			// Halt: a jump that changes nothing back to itself or to the @ before it
+			if( ( jump == JUMP_ALWAYS ) && ( ( instruction & DEST_BITS ) == 0 ) &&
+					( ( target == pc ) || ( ( target == pc - 1 ) && ( rom[ target ] == target ) ) ) )
+				m_halted = true;
+
+			pc = target;
+		}
+
+		m_a = a;
+		m_d = d;
+		m_pc = pc;
+		m_cycles += cycles;
+
+		return cycles;
+	}
+
+	/************************************************************************************
+	 *  Computes the Hack ALU for the control bits of the instruction (zx, nx, zy, ny,
+	 *  f, no), with x = D and y = A or M.
+	 ***********************************************************************************/
+	private static int alu( int instruction, int x, int y )
+	{
+		if( ( instruction & 0x800 ) != 0 )
+			x = 0;
+
+		if( ( instruction & 0x400 ) != 0 )
+			x = ~x;
+
+		if( ( instruction & 0x200 ) != 0 )
+			y = 0;
+
+		if( ( instruction & 0x100 ) != 0 )
+			y = ~y;
+
+		int out = ( ( instruction & 0x80 ) != 0 ) ? x + y : x & y;
+
+		return ( ( instruction & 0x40 ) != 0 ) ? ~out : out;
+	}
+
+	public int getA()
+	{
+		return m_a;
+	}
+
+	public int getD()
+	{
+		return m_d;
+	}
+
+	public int getPC()
+	{
+		return m_pc;
+	}
+
+	/************************************************************************************
+	 *  Returns the number of instructions executed since the last reset().
+	 ***********************************************************************************/
+	public long getCycles()
+	{
+		return m_cycles;
+	}
+
+	/************************************************************************************
+	 *  Checks if the program has halted (or the PC has left the program).
+	 ***********************************************************************************/
+	public boolean isHalted()
+	{
+		return m_halted;
+	}
+
+	public Memory getMemory()
+	{
+		return m_memory;
+	}
+
+	public short[] getRom()
+	{
+		return m_rom;
+	}
+}
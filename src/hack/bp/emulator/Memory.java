@@ -0,0 +1,90 @@
+package hack.bp.emulator;
+
+import java.util.Arrays;
+
+/****************************************************************************************
+ *  Data memory (RAM) of the Hack computer: 32K 16-bit words. The screen is mapped at
+ *  SCREEN (8K words, one bit per pixel) and the keyboard at KBD. Addresses are 15 bits
+ *  wide, the highest bit of an address is ignored.
+ *
+ *  The words are kept in a short[] that the CPU reads and writes directly.
+ *
+ *  Every store to the screen also marks its word as dirty: one int per row of the
+ *  screen, one bit per word of the row (16 pixels). The CPU sets the bits, a Screen
+ *  clears them when it has drawn the words.
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ *	0.2 -	Added the dirty bits of the screen. -bp
+ ***************************************************************************************/
+public class Memory
+{
+	public final static int SIZE = 32 * 1024;
+	public final static int ADDRESS_MASK = SIZE - 1;
+	public final static int SCREEN = 16384;
+	public final static int SCREEN_SIZE = 8192;
+	public final static int KBD = 24576;
+	public final static int SCREEN_ROWS = 256;
+	public final static int SCREEN_ROW_WORDS = SCREEN_SIZE / SCREEN_ROWS;
+
+	private short[] m_words = new short[ SIZE ];
+	private int[] m_dirty = new int[ SCREEN_ROWS ];
+
+	/************************************************************************************
+	 *  Returns the word at the address (sign-extended).
+	 ***********************************************************************************/
+	public int read( int address )
+	{
+		return m_words[ address & ADDRESS_MASK ];
+	}
+
+	/************************************************************************************
+	 *  Stores the lowest 16 bits of the value at the address.
+	 ***********************************************************************************/
+	public void write( int address, int value )
+	{
+		address &= ADDRESS_MASK;
+		m_words[ address ] = (short)value;
+
+		int offset = address - SCREEN;
+
+		if( ( offset >>> 13 ) == 0 )
+			m_dirty[ offset >>> 5 ] |= 1 << offset;
+	}
+
+	/************************************************************************************
+	 *  Sets the key code seen by the program in KBD (0 when no key is pressed).
+	 ***********************************************************************************/
+	public void setKey( int keyCode )
+	{
+		m_words[ KBD ] = (short)keyCode;
+	}
+
+	/************************************************************************************
+	 *  Clears every word (the whole screen is dirty).
+	 ***********************************************************************************/
+	public void clear()
+	{
+		Arrays.fill( m_words, (short)0 );
+		Arrays.fill( m_dirty, -1 );
+	}
+
+	/************************************************************************************
+	 *  Returns the words themselves (not a copy).
+	 ***********************************************************************************/
+	public short[] getWords()
+	{
+		return m_words;
+	}
+
+	/************************************************************************************
+	 *  Returns the dirty bits of the screen (not a copy): the bit w of int r is set
+	 *  when the word SCREEN + r * SCREEN_ROW_WORDS + w was written since it was cleared.
+	 ***********************************************************************************/
+	public int[] getDirty()
+	{
+		return m_dirty;
+	}
+}
@@ -0,0 +1,251 @@
+package hack.bp.emulator;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/****************************************************************************************
+ *  Headless frame buffer of the Hack screen: a packed 512x256 image with one bit per
+ *  pixel (1 is black), kept up to date from the SCREEN words of a Memory.
+ *
+ *  capture() only draws the words marked dirty since the last capture (see
+ *  Memory.getDirty()) and clears their bits, so a frame costs as much as what changed
+ *  in it plus a look at 256 ints. The image can be written as a PNG or compared with
+ *  a golden image, pixel by pixel.
+ *
+ *  In a Hack word the lowest bit is the leftmost pixel, the image has the leftmost pixel
+ *  in the highest bit of a byte: every byte of a word is drawn bit-reversed.
+ *
+ *  @author bp
+ *
+ *	@changes
+ *	0.1 -	Initial implementation. -bp
+ ***************************************************************************************/
+public class Screen
+{
+	public final static int WIDTH = 512;
+	public final static int HEIGHT = Memory.SCREEN_ROWS;
+
+	// Bytes of a row of the image (2 per word)
+	private final static int STRIDE = WIDTH / 8;
+
+	// The bits of every byte in reverse order
+	private final static byte[] REVERSED = new byte[ 256 ];
+
+	static
+	{
+		for( int i = 0; i < 256; i++ )
+			REVERSED[ i ] = (byte)( Integer.reverse( i ) >>> 24 );
+	}
+
+	private Memory m_memory = null;
+	private BufferedImage m_image = null;
+	private byte[] m_pixels = null;
+
+	private long m_frames = 0;
+	private long m_wordsDrawn = 0;
+	private Rectangle m_changedArea = null;
+
+	/************************************************************************************
+	 *  Creates the frame buffer of a memory. The image starts blank, so everything
+	 *  already on the screen is marked dirty.
+	 ***********************************************************************************/
+	public Screen( Memory memory )
+	{
+		this.m_memory = memory;
+		this.m_image = createImage();
+		this.m_pixels = ( (DataBufferByte)m_image.getRaster().getDataBuffer() ).getData();
+
+		int[] dirty = memory.getDirty();
+		short[] words = memory.getWords();
+
+		for( int i = 0; i < Memory.SCREEN_SIZE; i++ )
+		{
+			if( words[ Memory.SCREEN + i ] != 0 )
+				dirty[ i >>> 5 ] |= 1 << i;
+		}
+	}
+
+	/************************************************************************************
+	 *  Returns a white 512x256 image of one bit per pixel, 0 white and 1 black.
+	 ***********************************************************************************/
+	private static BufferedImage createImage()
+	{
+		byte[] levels = { (byte)0xFF, 0 };
+
+		return new BufferedImage( WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_BINARY,
+				new IndexColorModel( 1, 2, levels, levels, levels ) );
+	}
+
+	/************************************************************************************
+	 *  Draws the words written since the last capture into the image and clears their
+	 *  dirty bits. Returns the number of words drawn (0 when the frame did not change).
+	 ***********************************************************************************/
+	public int capture()
+	{
+		final int[] dirty = m_memory.getDirty();
+		final short[] words = m_memory.getWords();
+		final byte[] pixels = m_pixels;
+		int count = 0;
+		int top = HEIGHT;
+		int bottom = -1;
+		int changedRows = 0;
+
+		for( int row = 0; row < HEIGHT; row++ )
+		{
+			int bits = dirty[ row ];
+
+			if( bits == 0 )
+				continue;
+
+			dirty[ row ] = 0;
+			changedRows |= bits;
+			top = Math.min( top, row );
+			bottom = row;
+
+			while( bits != 0 )
+			{
+				int offset = ( row << 5 ) + Integer.numberOfTrailingZeros( bits );
+				int word = words[ Memory.SCREEN + offset ];
+
+				pixels[ offset << 1 ] = REVERSED[ word & 0xFF ];
+				pixels[ ( offset << 1 ) + 1 ] = REVERSED[ ( word >>> 8 ) & 0xFF ];
+
+				bits &= bits - 1;
+				count++;
+			}
+		}
+
+		m_frames++;
+		m_wordsDrawn += count;
+
+		if( count == 0 )
+			m_changedArea = null;
+		else
+		{
+			// Columns of the leftmost and rightmost words drawn in any row
+			int left = Integer.numberOfTrailingZeros( changedRows ) * 16;
+			int right = ( 32 - Integer.numberOfLeadingZeros( changedRows ) ) * 16;
+
+			m_changedArea = new Rectangle( left, top, right - left, bottom - top + 1 );
+		}
+
+		return count;
+	}
+
+	/************************************************************************************
+	 *  Returns the part of the image drawn by the last capture() (whole words), or null
+	 *  if nothing changed.
+	 ***********************************************************************************/
+	public Rectangle getChangedArea()
+	{
+		return m_changedArea;
+	}
+
+	/************************************************************************************
+	 *  Returns the image as of the last capture() (not a copy).
+	 ***********************************************************************************/
+	public BufferedImage getImage()
+	{
+		return m_image;
+	}
+
+	/************************************************************************************
+	 *  Returns the pixels of the image, 64 bytes per row with the leftmost pixel in the
+	 *  highest bit (not a copy).
+	 ***********************************************************************************/
+	public byte[] getPixels()
+	{
+		return m_pixels;
+	}
+
+	/************************************************************************************
+	 *  Returns the number of capture() calls.
+	 ***********************************************************************************/
+	public long getFrames()
+	{
+		return m_frames;
+	}
+
+	/************************************************************************************
+	 *  Returns the number of words drawn by all the capture() calls.
+	 ***********************************************************************************/
+	public long getWordsDrawn()
+	{
+		return m_wordsDrawn;
+	}
+
+	/************************************************************************************
+	 *  Writes the image as a PNG file (created or replaced).
+	 ***********************************************************************************/
+	public void writePng( File file ) throws IOException
+	{
+		if( !ImageIO.write( m_image, "png", file ) )
+			throw new IOException( "No PNG writer for " + file );
+	}
+
+	/************************************************************************************
+	 *  Reads an image, as golden frame for compare().
+	 ***********************************************************************************/
+	public static BufferedImage readPng( File file ) throws IOException
+	{
+		BufferedImage image = ImageIO.read( file );
+
+		if( image == null )
+			throw new IOException( "Not an image: " + file );
+
+		return image;
+	}
+
+	/************************************************************************************
+	 *  Returns the number of pixels that differ from a golden image, or -1 if it is not
+	 *  512x256. Any image type is accepted: it is reduced to black and white first.
+	 ***********************************************************************************/
+	public int compare( BufferedImage golden )
+	{
+		if( ( golden.getWidth() != WIDTH ) || ( golden.getHeight() != HEIGHT ) )
+			return -1;
+
+		byte[] expected = null;
+
+		if( ( golden.getType() == BufferedImage.TYPE_BYTE_BINARY ) &&
+				golden.getColorModel().equals( m_image.getColorModel() ) )
+			expected = ( (DataBufferByte)golden.getRaster().getDataBuffer() ).getData();
+		else
+		{
+			BufferedImage binary = createImage();
+			Graphics2D graphics = binary.createGraphics();
+
+			graphics.drawImage( golden, 0, 0, null );
+			graphics.dispose();
+			expected = ( (DataBufferByte)binary.getRaster().getDataBuffer() ).getData();
+		}
+
+		int differences = 0;
+
+		for( int i = 0; i < m_pixels.length; i++ )
+			differences += Integer.bitCount( ( m_pixels[ i ] ^ expected[ i ] ) & 0xFF );
+
+		return differences;
+	}
+
+	/************************************************************************************
+	 *  Returns the file of a frame: <name>-0000.png, <name>-0001.png, ... next to file.
+	 ***********************************************************************************/
+	public static File frameFile( File file, int frame )
+	{
+		String name = file.getName();
+		int dot = name.lastIndexOf( '.' );
+
+		if( dot > 0 )
+			name = name.substring( 0, dot );
+
+		return new File( file.getParentFile(), String.format( "%s-%04d.png", name, frame ) );
+	}
+}